@@ -2,14 +2,24 @@ import activation.SigmoidActivationFunction;
 import cost.CostFunction;
 import cost.CrossEntropyCostFunction;
 import cost.QuadraticCostFunction;
+import inference.EvaluationResult;
+import inference.Evaluator;
+import mnist.Dataset;
 import mnist.MnistLoader;
 import mnist.MnistSet;
+import mnist.Preprocessing;
 import neural.NeuronLayer;
 import neural.NeuronNetwork;
 import org.jblas.DoubleMatrix;
 import training.BackPropagation;
+import training.CosineSchedule;
+import training.EarlyStopping;
+import training.TrainingMetrics;
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.List;
 
 public class Main {
@@ -20,6 +30,12 @@ public class Main {
     // filenames for the test set
     static final String testLabelFile = "data/t10k-labels-idx1-ubyte.dat";
     static final String testImageFile = "data/t10k-images-idx3-ubyte.dat";
+    // checkpoint of the network, training resumes from it if it exists
+    static final String checkpointFile = "data/network.ckpt";
+    // directory of the preprocessed datasets, repeat runs load them instead of decoding the images
+    static final String cacheDirectory = "data/cache";
+    // per-epoch training metrics written after training
+    static final String metricsFile = "data/training-metrics.csv";
     private static double[] avg;
     private static int[] classification;
     private static double[] ep;
@@ -27,30 +43,30 @@ public class Main {
     public static void main(String[] args) {
         MnistLoader loader = new MnistLoader();
 
-        // load the MNIST training data using the loader
-        List<MnistSet> trainingSets = null;
-        List<MnistSet> validationSets = null;
-        List<MnistSet> testSets = null;
+        // load the MNIST training data using the loader, the images are kept packed and expanded when used
+        Dataset trainingData = null;
+        Dataset testData = null;
 
         try {
-            trainingSets = loader.create(trainLabelFile, trainImageFile);
+            trainingData = loader.createDataset(trainLabelFile, trainImageFile, Preprocessing.OTSU, Paths.get(cacheDirectory));
         } catch (IOException e) {
             e.printStackTrace();
         }
 
         try {
-            testSets = loader.create(testLabelFile, testImageFile);
+            testData = loader.createDataset(testLabelFile, testImageFile, Preprocessing.OTSU, Paths.get(cacheDirectory));
         } catch (IOException e) {
             e.printStackTrace();
         }
 
         // assert that we have data
-        assert trainingSets != null;
-        assert testSets != null;
+        assert trainingData != null;
+        assert testData != null;
 
         // split the training set into training and validation set
-        validationSets = trainingSets.subList(50000, 60000);
-        trainingSets = trainingSets.subList(0, 50000);
+        List<MnistSet> validationSets = trainingData.slice(50000, 60000).asList();
+        List<MnistSet> trainingSets = trainingData.slice(0, 50000).asList();
+        List<MnistSet> testSets = testData.asList();
 
         boolean validate = true;
         boolean training = true;
@@ -103,50 +119,104 @@ public class Main {
         CostFunction costFunction = new QuadraticCostFunction();
 
         if (training) {
-            // create neural network
-            NeuronNetwork network = new NeuronNetwork();
+            NeuronNetwork network = null;
+            Path checkpoint = Paths.get(checkpointFile);
+
+            // resume from the checkpoint of an earlier run if there is one. The checkpoint only holds the network, so
+            // the learning rate schedule, the early stopping and the optimizer state start over
+            if (Files.exists(checkpoint)) {
+                try {
+                    network = NeuronNetwork.load(checkpoint);
+                    List<NeuronLayer> layers = network.getLayers();
+                    if (layers.size() != 3 || layers.get(0).getNeuronCount() != 28 * 28
+                            || layers.get(1).getNeuronCount() != hiddenNeurons || layers.get(2).getNeuronCount() != 10) {
+                        System.out.println("Ignoring checkpoint " + checkpoint + ", its layers do not match the configured network");
+                        network = null;
+                    } else {
+                        System.out.println("Resuming from checkpoint " + checkpoint);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
 
-            // add layers to the network
-            network.addLayer(new NeuronLayer(null, 28 * 28, false));
-            network.addLayer(new NeuronLayer(new SigmoidActivationFunction(), hiddenNeurons, true));
-            network.addLayer(new NeuronLayer(new SigmoidActivationFunction(), 10, true));
+            if (network == null) {
+                // create neural network
+                network = new NeuronNetwork();
 
-            // finalize the network which creates the neurons in the layers
-            network.finalizeNetwork();
+                // add layers to the network
+                network.addLayer(new NeuronLayer(null, 28 * 28, false));
+                network.addLayer(new NeuronLayer(new SigmoidActivationFunction(), hiddenNeurons, true));
+                network.addLayer(new NeuronLayer(new SigmoidActivationFunction(), 10, true));
+
+                // finalize the network which creates the neurons in the layers
+                network.finalizeNetwork();
+            }
 
             // create the trainer that will be doing the training
             BackPropagation backPropagationTrainer =
                     new BackPropagation(network, costFunction, learningRate, momentum);
+            backPropagationTrainer.enableCheckpoints(checkpoint, 10000);
+            TrainingMetrics metrics = new TrainingMetrics();
+            backPropagationTrainer.setMetrics(metrics);
+
+            // scores the test set in batches on all cores
+            Evaluator evaluator = new Evaluator(costFunction, Runtime.getRuntime().availableProcessors(), 256);
+
+            // anneal the learning rate over the epochs and stop once the validation accuracy stops improving
+            backPropagationTrainer.setSchedule(new CosineSchedule(iterations, learningRate / 10));
+            EarlyStopping stopping = new EarlyStopping(trainingData.slice(50000, 60000), evaluator, EarlyStopping.Criterion.ACCURACY, 2, 0.0005);
 
             //int c = 1;
             //ep = new double[50001*10];
 
             for (int i = 0; i < iterations; i++) {
                 // perform the training using the validation set
+                double epochLearningRate = backPropagationTrainer.getLearningRate();
                 avg = backPropagationTrainer.train(trainingSets);
 
                 // use the test set to test accuracy of the network
+                EvaluationResult evaluation = evaluator.evaluate(network, testData);
+                int[] predictions = evaluation.getPredictions();
                 int classified = 0;
-                int count = 1;
-                classification = new int[10001];
-                for (MnistSet testPair : testSets) {
-                    DoubleMatrix result = network.feedForward(testPair.getInput());
-                    if (result.argmax() == testPair.getOutput().argmax()) {
+                classification = new int[testData.size() + 1];
+                for (int count = 1; count <= testData.size(); count++) {
+                    if (predictions[count - 1] == testData.getLabel(count - 1)) {
                         classified++;
                     }
                     classification[count] = classified;
-                    count++;
                 }
                 System.out.println("Epoch " + i);
-                System.out.println("Learning Rate: " + learningRate + " | Momentum: " + momentum + " | Hidden Neurons: " + hiddenNeurons);
-                System.out.println("Accuracy: " + classified + "/" + testSets.size());
+                // the schedule has already moved on to the next epoch, show the rate this one was trained with
+                System.out.println("Learning Rate: " + epochLearningRate + " | Momentum: " + momentum + " | Hidden Neurons: " + hiddenNeurons);
+                System.out.println(evaluation);
                 /*for(int j = 1; j < avg.length; j++) {
                     ep[c] = avg[j];
                     //System.out.println(ep[c]);
                     c++;
                 }*/
+
+                if (stopping.update(network)) {
+                    System.out.println("Validation accuracy stopped improving after epoch " + stopping.getBestEpoch());
+                    break;
+                }
+            }
+            stopping.restoreBest(network);
+
+            // replace the last periodic checkpoint, so a later run resumes from the best weights
+            try {
+                network.save(checkpoint);
+            } catch (IOException e) {
+                e.printStackTrace();
             }
 
+            evaluator.close();
+
+            try {
+                metrics.writeCsv(Paths.get(metricsFile));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
         //XYLineChartExample.main(args);
     }
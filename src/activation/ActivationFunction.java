@@ -2,8 +2,82 @@ package activation;
 
 
 import org.jblas.DoubleMatrix;
+import org.jblas.FloatMatrix;
+import org.jblas.MatrixFunctions;
 
 public interface ActivationFunction {
     DoubleMatrix fn(DoubleMatrix input);
     DoubleMatrix delta(DoubleMatrix input);
+
+    /**
+     * Applies the activation function to the input and stores the result in the given matrix.
+     * @param input Weighted output of the layer.
+     * @param result Matrix of the same size as the input that receives the result.
+     * @return The result matrix.
+     */
+    default DoubleMatrix fnInto(DoubleMatrix input, DoubleMatrix result) {
+        return result.copy(fn(input));
+    }
+
+    /**
+     * Applies the derivative of the activation function to the input and stores the result in the given matrix.
+     * @param input Weighted output of the layer.
+     * @param result Matrix of the same size as the input that receives the result.
+     * @return The result matrix.
+     */
+    default DoubleMatrix deltaInto(DoubleMatrix input, DoubleMatrix result) {
+        return result.copy(delta(input));
+    }
+
+    /**
+     * Single precision version of fnInto. The default implementation goes through double precision matrices.
+     * @param input Weighted output of the layer.
+     * @param result Matrix of the same size as the input that receives the result.
+     * @return The result matrix.
+     */
+    default FloatMatrix fnInto(FloatMatrix input, FloatMatrix result) {
+        DoubleMatrix output = fn(MatrixFunctions.floatToDouble(input));
+        for (int i = 0; i < output.length; i++) {
+            result.data[i] = (float) output.data[i];
+        }
+        return result;
+    }
+
+    /**
+     * Single precision version of deltaInto. The default implementation goes through double precision matrices.
+     * @param input Weighted output of the layer.
+     * @param result Matrix of the same size as the input that receives the result.
+     * @return The result matrix.
+     */
+    default FloatMatrix deltaInto(FloatMatrix input, FloatMatrix result) {
+        DoubleMatrix output = delta(MatrixFunctions.floatToDouble(input));
+        for (int i = 0; i < output.length; i++) {
+            result.data[i] = (float) output.data[i];
+        }
+        return result;
+    }
+
+    /**
+     * Computes the derivative of the activation function for a weighted output whose output the layer has already
+     * computed, which lets functions like the sigmoid skip recomputing the exponentials. The default implementation
+     * ignores the output and uses deltaInto.
+     * @param input Weighted output of the layer.
+     * @param output Output of the layer, the result of fn for the same input.
+     * @param result Matrix of the same size as the input that receives the result, may be the output itself.
+     * @return The result matrix.
+     */
+    default DoubleMatrix derivativeInto(DoubleMatrix input, DoubleMatrix output, DoubleMatrix result) {
+        return deltaInto(input, result);
+    }
+
+    /**
+     * Single precision version of derivativeInto.
+     * @param input Weighted output of the layer.
+     * @param output Output of the layer, the result of fn for the same input.
+     * @param result Matrix of the same size as the input that receives the result, may be the output itself.
+     * @return The result matrix.
+     */
+    default FloatMatrix derivativeInto(FloatMatrix input, FloatMatrix output, FloatMatrix result) {
+        return deltaInto(input, result);
+    }
 }
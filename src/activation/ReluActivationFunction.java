@@ -0,0 +1,68 @@
+package activation;
+
+import org.jblas.DoubleMatrix;
+import org.jblas.FloatMatrix;
+
+/**
+ * Rectified linear unit, f(z) = max(0, z). The derivative at 0 is taken as 0.
+ */
+public class ReluActivationFunction implements ActivationFunction {
+    @Override
+    public DoubleMatrix fn(DoubleMatrix input) {
+        return fnInto(input, new DoubleMatrix(input.rows, input.columns));
+    }
+
+    @Override
+    public DoubleMatrix delta(DoubleMatrix input) {
+        return deltaInto(input, new DoubleMatrix(input.rows, input.columns));
+    }
+
+    @Override
+    public DoubleMatrix fnInto(DoubleMatrix input, DoubleMatrix result) {
+        for (int i = 0; i < input.length; i++) {
+            result.data[i] = Math.max(0.0, input.data[i]);
+        }
+        return result;
+    }
+
+    @Override
+    public DoubleMatrix deltaInto(DoubleMatrix input, DoubleMatrix result) {
+        for (int i = 0; i < input.length; i++) {
+            result.data[i] = input.data[i] > 0.0 ? 1.0 : 0.0;
+        }
+        return result;
+    }
+
+    @Override
+    public DoubleMatrix derivativeInto(DoubleMatrix input, DoubleMatrix output, DoubleMatrix result) {
+        // the output is positive exactly where the input is
+        for (int i = 0; i < output.length; i++) {
+            result.data[i] = output.data[i] > 0.0 ? 1.0 : 0.0;
+        }
+        return result;
+    }
+
+    @Override
+    public FloatMatrix fnInto(FloatMatrix input, FloatMatrix result) {
+        for (int i = 0; i < input.length; i++) {
+            result.data[i] = Math.max(0.0f, input.data[i]);
+        }
+        return result;
+    }
+
+    @Override
+    public FloatMatrix deltaInto(FloatMatrix input, FloatMatrix result) {
+        for (int i = 0; i < input.length; i++) {
+            result.data[i] = input.data[i] > 0.0f ? 1.0f : 0.0f;
+        }
+        return result;
+    }
+
+    @Override
+    public FloatMatrix derivativeInto(FloatMatrix input, FloatMatrix output, FloatMatrix result) {
+        for (int i = 0; i < output.length; i++) {
+            result.data[i] = output.data[i] > 0.0f ? 1.0f : 0.0f;
+        }
+        return result;
+    }
+}
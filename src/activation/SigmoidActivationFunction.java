@@ -1,16 +1,69 @@
 package activation;
 
 import org.jblas.DoubleMatrix;
-import org.jblas.MatrixFunctions;
+import org.jblas.FloatMatrix;
 
 public class SigmoidActivationFunction implements ActivationFunction{
     @Override
     public DoubleMatrix fn(DoubleMatrix input) {
-        return MatrixFunctions.pow(MatrixFunctions.exp(input.neg()).add(1), -1);
+        return fnInto(input, new DoubleMatrix(input.rows, input.columns));
     }
 
     @Override
     public DoubleMatrix delta(DoubleMatrix input) {
-        return fn(input).mul(DoubleMatrix.ones(input.rows, input.columns).sub(fn(input)));
+        return deltaInto(input, new DoubleMatrix(input.rows, input.columns));
+    }
+
+    @Override
+    public DoubleMatrix fnInto(DoubleMatrix input, DoubleMatrix result) {
+        for (int i = 0; i < input.length; i++) {
+            result.data[i] = 1.0 / (1.0 + Math.exp(-input.data[i]));
+        }
+        return result;
+    }
+
+    @Override
+    public DoubleMatrix deltaInto(DoubleMatrix input, DoubleMatrix result) {
+        for (int i = 0; i < input.length; i++) {
+            double s = 1.0 / (1.0 + Math.exp(-input.data[i]));
+            result.data[i] = s * (1.0 - s);
+        }
+        return result;
+    }
+
+    @Override
+    public FloatMatrix fnInto(FloatMatrix input, FloatMatrix result) {
+        for (int i = 0; i < input.length; i++) {
+            result.data[i] = (float) (1.0 / (1.0 + Math.exp(-input.data[i])));
+        }
+        return result;
+    }
+
+    @Override
+    public FloatMatrix deltaInto(FloatMatrix input, FloatMatrix result) {
+        for (int i = 0; i < input.length; i++) {
+            double s = 1.0 / (1.0 + Math.exp(-input.data[i]));
+            result.data[i] = (float) (s * (1.0 - s));
+        }
+        return result;
+    }
+
+    @Override
+    public DoubleMatrix derivativeInto(DoubleMatrix input, DoubleMatrix output, DoubleMatrix result) {
+        // f'(z) = f(z) * (1 - f(z)) from the cached output
+        for (int i = 0; i < output.length; i++) {
+            double s = output.data[i];
+            result.data[i] = s * (1.0 - s);
+        }
+        return result;
+    }
+
+    @Override
+    public FloatMatrix derivativeInto(FloatMatrix input, FloatMatrix output, FloatMatrix result) {
+        for (int i = 0; i < output.length; i++) {
+            float s = output.data[i];
+            result.data[i] = s * (1.0f - s);
+        }
+        return result;
     }
 }
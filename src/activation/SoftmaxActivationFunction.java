@@ -0,0 +1,98 @@
+package activation;
+
+import org.jblas.DoubleMatrix;
+import org.jblas.FloatMatrix;
+
+/**
+ * Softmax over every column, f(z)_i = exp(z_i) / sum_j exp(z_j), so every column of the output sums to 1. The maximum
+ * of the column is subtracted before taking the exponentials, which keeps them from overflowing.
+ *
+ * The softmax is meant for the output layer together with LogLikelihoodCostFunction, whose error a - y already
+ * accounts for the full Jacobian. The element-wise delta only returns its diagonal f_i * (1 - f_i).
+ */
+public class SoftmaxActivationFunction implements ActivationFunction {
+    @Override
+    public DoubleMatrix fn(DoubleMatrix input) {
+        return fnInto(input, new DoubleMatrix(input.rows, input.columns));
+    }
+
+    @Override
+    public DoubleMatrix delta(DoubleMatrix input) {
+        return deltaInto(input, new DoubleMatrix(input.rows, input.columns));
+    }
+
+    @Override
+    public DoubleMatrix fnInto(DoubleMatrix input, DoubleMatrix result) {
+        int rows = input.rows;
+        for (int j = 0; j < input.columns; j++) {
+            int offset = j * rows;
+            double max = Double.NEGATIVE_INFINITY;
+            for (int i = offset; i < offset + rows; i++) {
+                max = Math.max(max, input.data[i]);
+            }
+            double sum = 0;
+            for (int i = offset; i < offset + rows; i++) {
+                double e = Math.exp(input.data[i] - max);
+                result.data[i] = e;
+                sum += e;
+            }
+            double inverse = 1.0 / sum;
+            for (int i = offset; i < offset + rows; i++) {
+                result.data[i] *= inverse;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public DoubleMatrix deltaInto(DoubleMatrix input, DoubleMatrix result) {
+        return derivativeInto(input, fnInto(input, result), result);
+    }
+
+    @Override
+    public DoubleMatrix derivativeInto(DoubleMatrix input, DoubleMatrix output, DoubleMatrix result) {
+        for (int i = 0; i < output.length; i++) {
+            double s = output.data[i];
+            result.data[i] = s * (1.0 - s);
+        }
+        return result;
+    }
+
+    @Override
+    public FloatMatrix fnInto(FloatMatrix input, FloatMatrix result) {
+        int rows = input.rows;
+        for (int j = 0; j < input.columns; j++) {
+            int offset = j * rows;
+            float max = Float.NEGATIVE_INFINITY;
+            for (int i = offset; i < offset + rows; i++) {
+                max = Math.max(max, input.data[i]);
+            }
+            // the sum is accumulated in double, the exponentials are rounded to float
+            double sum = 0;
+            for (int i = offset; i < offset + rows; i++) {
+                float e = (float) Math.exp(input.data[i] - max);
+                result.data[i] = e;
+                sum += e;
+            }
+            float inverse = (float) (1.0 / sum);
+            for (int i = offset; i < offset + rows; i++) {
+                result.data[i] *= inverse;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public FloatMatrix deltaInto(FloatMatrix input, FloatMatrix result) {
+        return derivativeInto(input, fnInto(input, result), result);
+    }
+
+    @Override
+    public FloatMatrix derivativeInto(FloatMatrix input, FloatMatrix output, FloatMatrix result) {
+        for (int i = 0; i < output.length; i++) {
+            float s = output.data[i];
+            result.data[i] = s * (1.0f - s);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,72 @@
+package activation;
+
+import org.jblas.DoubleMatrix;
+import org.jblas.FloatMatrix;
+
+/**
+ * Hyperbolic tangent, f(z) = tanh(z) with outputs in (-1, 1).
+ */
+public class TanhActivationFunction implements ActivationFunction {
+    @Override
+    public DoubleMatrix fn(DoubleMatrix input) {
+        return fnInto(input, new DoubleMatrix(input.rows, input.columns));
+    }
+
+    @Override
+    public DoubleMatrix delta(DoubleMatrix input) {
+        return deltaInto(input, new DoubleMatrix(input.rows, input.columns));
+    }
+
+    @Override
+    public DoubleMatrix fnInto(DoubleMatrix input, DoubleMatrix result) {
+        for (int i = 0; i < input.length; i++) {
+            result.data[i] = Math.tanh(input.data[i]);
+        }
+        return result;
+    }
+
+    @Override
+    public DoubleMatrix deltaInto(DoubleMatrix input, DoubleMatrix result) {
+        for (int i = 0; i < input.length; i++) {
+            double t = Math.tanh(input.data[i]);
+            result.data[i] = 1.0 - t * t;
+        }
+        return result;
+    }
+
+    @Override
+    public DoubleMatrix derivativeInto(DoubleMatrix input, DoubleMatrix output, DoubleMatrix result) {
+        // f'(z) = 1 - f(z)^2 from the cached output
+        for (int i = 0; i < output.length; i++) {
+            double t = output.data[i];
+            result.data[i] = 1.0 - t * t;
+        }
+        return result;
+    }
+
+    @Override
+    public FloatMatrix fnInto(FloatMatrix input, FloatMatrix result) {
+        for (int i = 0; i < input.length; i++) {
+            result.data[i] = (float) Math.tanh(input.data[i]);
+        }
+        return result;
+    }
+
+    @Override
+    public FloatMatrix deltaInto(FloatMatrix input, FloatMatrix result) {
+        for (int i = 0; i < input.length; i++) {
+            double t = Math.tanh(input.data[i]);
+            result.data[i] = (float) (1.0 - t * t);
+        }
+        return result;
+    }
+
+    @Override
+    public FloatMatrix derivativeInto(FloatMatrix input, FloatMatrix output, FloatMatrix result) {
+        for (int i = 0; i < output.length; i++) {
+            float t = output.data[i];
+            result.data[i] = 1.0f - t * t;
+        }
+        return result;
+    }
+}
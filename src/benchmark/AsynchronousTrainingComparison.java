@@ -0,0 +1,107 @@
+package benchmark;
+
+import activation.SigmoidActivationFunction;
+import cost.CostFunction;
+import cost.CrossEntropyCostFunction;
+import inference.InferenceModel;
+import mnist.Dataset;
+import mnist.MnistLoader;
+import mnist.SampleSource;
+import neural.NeuronLayer;
+import neural.NeuronNetwork;
+import training.AsynchronousBackPropagation;
+import training.BackPropagation;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Compares the synchronous per-sample trainer with asynchronous Hogwild and lock-striped training at increasing
+ * thread counts. Every run starts from the same initial weights and trains the same number of epochs, and the table
+ * shows the training throughput and the final test accuracy of every mode.
+ *
+ * Usage: AsynchronousTrainingComparison [epochs] [max threads] [train labels] [train images] [test labels] [test images]
+ */
+public class AsynchronousTrainingComparison {
+
+    private static final int HIDDEN_SIZE = 100;
+    private static final double LEARNING_RATE = 0.1;
+    private static final long SEED = 42;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int epochs = args.length > 0 ? Integer.parseInt(args[0]) : 1;
+        int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        String trainLabels = args.length > 2 ? args[2] : "data/train-labels-idx1-ubyte.dat";
+        String trainImages = args.length > 3 ? args[3] : "data/train-images-idx3-ubyte.dat";
+        String testLabels = args.length > 4 ? args[4] : "data/t10k-labels-idx1-ubyte.dat";
+        String testImages = args.length > 5 ? args[5] : "data/t10k-images-idx3-ubyte.dat";
+
+        MnistLoader loader = new MnistLoader();
+        Dataset trainingData = loader.createDataset(trainLabels, trainImages);
+        Dataset testData = loader.createDataset(testLabels, testImages);
+
+        // every run starts from a copy of the same initial weights
+        NeuronNetwork initial = new NeuronNetwork();
+        initial.addLayer(new NeuronLayer(null, trainingData.getInputSize(), false));
+        initial.addLayer(new NeuronLayer(new SigmoidActivationFunction(), HIDDEN_SIZE, true));
+        initial.addLayer(new NeuronLayer(new SigmoidActivationFunction(), trainingData.getClassCount(), true));
+        initial.finalizeNetwork();
+        Path weights = Files.createTempFile("initial", ".ckpt");
+        initial.save(weights);
+
+        CostFunction costFunction = new CrossEntropyCostFunction();
+        StringBuilder table = new StringBuilder(String.format(Locale.ROOT, "%-12s %8s %14s %10s%n", "Mode", "Threads", "Samples/s", "Accuracy"));
+        try {
+            NeuronNetwork network = NeuronNetwork.load(weights);
+            BackPropagation synchronous = new BackPropagation(network, costFunction, LEARNING_RATE, 0.0);
+            Random random = new Random(SEED);
+            long start = System.nanoTime();
+            for (int epoch = 0; epoch < epochs; epoch++) {
+                synchronous.trainBatch(trainingData.shuffle(random), 1);
+            }
+            table.append(row("synchronous", 1, (long) trainingData.size() * epochs, System.nanoTime() - start, network, testData));
+
+            for (AsynchronousBackPropagation.Mode mode : AsynchronousBackPropagation.Mode.values()) {
+                for (int threads = 1; threads <= maxThreads; threads *= 2) {
+                    network = NeuronNetwork.load(weights);
+                    AsynchronousBackPropagation asynchronous = new AsynchronousBackPropagation(network, costFunction, LEARNING_RATE, threads, mode, SEED);
+                    start = System.nanoTime();
+                    for (int epoch = 0; epoch < epochs; epoch++) {
+                        asynchronous.train(trainingData);
+                    }
+                    table.append(row(mode.name().toLowerCase(Locale.ROOT), threads, (long) trainingData.size() * epochs, System.nanoTime() - start, network, testData));
+                }
+            }
+        } finally {
+            Files.deleteIfExists(weights);
+        }
+        System.out.print(table);
+    }
+
+    private static String row(String mode, int threads, long samples, long nanos, NeuronNetwork network, SampleSource testData) {
+        return String.format(Locale.ROOT, "%-12s %8d %14.1f %10.4f%n", mode, threads, samples * 1e9 / nanos, accuracy(network, testData));
+    }
+
+    private static double accuracy(NeuronNetwork network, SampleSource testData) {
+        InferenceModel model = new InferenceModel(network);
+        double[] input = new double[testData.getInputSize()];
+        int correct = 0;
+        for (int k = 0; k < testData.size(); k++) {
+            testData.readInput(k, input, 0);
+            double[] output = model.predict(input);
+            int predicted = 0;
+            for (int i = 1; i < output.length; i++) {
+                if (output[i] > output[predicted]) {
+                    predicted = i;
+                }
+            }
+            if (predicted == testData.getLabel(k)) {
+                correct++;
+            }
+        }
+        return (double) correct / testData.size();
+    }
+}
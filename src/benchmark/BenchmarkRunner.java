@@ -0,0 +1,177 @@
+package benchmark;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * Minimal throughput benchmark harness modelled after JMH. Every benchmark runs a number of warmup iterations followed
+ * by measured iterations of a fixed duration, and reports the operations per second of the measured iterations. The
+ * results are written as JSON in the same shape as the JMH JSON output, so they can be compared between versions
+ * with the usual tooling.
+ */
+public class BenchmarkRunner {
+
+    /**
+     * Result of a single benchmark.
+     */
+    public static class Result {
+        private final String name;
+        private final Map<String, String> params;
+        private final double[] scores; // operations per second of every measured iteration
+
+        Result(String name, Map<String, String> params, double[] scores) {
+            this.name = name;
+            this.params = params;
+            this.scores = scores;
+        }
+
+        /**
+         * Returns the mean throughput.
+         * @return Operations per second.
+         */
+        public double getScore() {
+            double sum = 0;
+            for (double score : scores) {
+                sum += score;
+            }
+            return sum / scores.length;
+        }
+
+        /**
+         * Returns the half width of the 99% confidence interval of the throughput.
+         * @return Error in operations per second.
+         */
+        public double getScoreError() {
+            if (scores.length < 2) {
+                return Double.NaN;
+            }
+            double mean = getScore();
+            double squares = 0;
+            for (double score : scores) {
+                squares += (score - mean) * (score - mean);
+            }
+            return 2.576 * Math.sqrt(squares / (scores.length - 1)) / Math.sqrt(scores.length);
+        }
+    }
+
+    // results are written here so the JIT cannot remove the benchmarked code
+    private static volatile long sink;
+
+    private final int warmupIterations;
+    private final int measurementIterations;
+    private final long iterationNanos;
+    private final List<Result> results = new ArrayList<>();
+
+    /**
+     * Creates the runner.
+     * @param warmupIterations Number of iterations that are run before measuring.
+     * @param measurementIterations Number of measured iterations.
+     * @param iterationMillis Duration of every iteration.
+     */
+    public BenchmarkRunner(int warmupIterations, int measurementIterations, long iterationMillis) {
+        if (measurementIterations < 1 || iterationMillis < 1) {
+            throw new IllegalArgumentException("At least one measured iteration of at least 1 ms is needed");
+        }
+        this.warmupIterations = warmupIterations;
+        this.measurementIterations = measurementIterations;
+        this.iterationNanos = iterationMillis * 1000000L;
+    }
+
+    /**
+     * Runs a benchmark and prints its result.
+     * @param name Name of the benchmark.
+     * @param params Parameters of the benchmark, used to tell results of the same benchmark apart.
+     * @param operation Operation to measure, its result is consumed so it cannot be optimized away.
+     * @return Result of the benchmark.
+     * @throws Exception If the operation fails.
+     */
+    public Result run(String name, Map<String, String> params, Callable<?> operation) throws Exception {
+        for (int i = 0; i < warmupIterations; i++) {
+            iteration(operation);
+        }
+        double[] scores = new double[measurementIterations];
+        for (int i = 0; i < measurementIterations; i++) {
+            scores[i] = iteration(operation);
+        }
+
+        Result result = new Result(name, Collections.unmodifiableMap(new LinkedHashMap<>(params)), scores);
+        results.add(result);
+        System.out.println(String.format(Locale.ROOT, "%-45s %-30s %14.3f +- %10.3f ops/s",
+                name, params, result.getScore(), result.getScoreError()));
+        return result;
+    }
+
+    /**
+     * Runs the operation for the iteration duration.
+     * @return Operations per second.
+     */
+    private double iteration(Callable<?> operation) throws Exception {
+        long operations = 0;
+        long hash = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            hash += System.identityHashCode(operation.call());
+            operations++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < iterationNanos);
+        sink = hash;
+        return operations * 1e9 / elapsed;
+    }
+
+    /**
+     * Returns the results of all benchmarks that were run.
+     * @return Results in the order they were run.
+     */
+    public List<Result> getResults() {
+        return Collections.unmodifiableList(results);
+    }
+
+    /**
+     * Formats the results in the JMH JSON format.
+     * @return JSON array with one element per benchmark.
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder("[\n");
+        for (int r = 0; r < results.size(); r++) {
+            Result result = results.get(r);
+            json.append("    {\n");
+            json.append("        \"benchmark\" : ").append(quote(result.name)).append(",\n");
+            json.append("        \"mode\" : \"thrpt\",\n");
+            json.append("        \"warmupIterations\" : ").append(warmupIterations).append(",\n");
+            json.append("        \"measurementIterations\" : ").append(measurementIterations).append(",\n");
+            json.append("        \"measurementTime\" : \"").append(iterationNanos / 1000000L).append(" ms\",\n");
+            json.append("        \"params\" : {");
+            int p = 0;
+            for (Map.Entry<String, String> param : result.params.entrySet()) {
+                json.append(p++ == 0 ? "\n" : ",\n");
+                json.append("            ").append(quote(param.getKey())).append(" : ").append(quote(param.getValue()));
+            }
+            json.append(p == 0 ? "},\n" : "\n        },\n");
+            json.append("        \"primaryMetric\" : {\n");
+            json.append("            \"score\" : ").append(number(result.getScore())).append(",\n");
+            json.append("            \"scoreError\" : ").append(number(result.getScoreError())).append(",\n");
+            json.append("            \"scoreUnit\" : \"ops/s\",\n");
+            json.append("            \"rawData\" : [\n                [");
+            for (int i = 0; i < result.scores.length; i++) {
+                json.append(i == 0 ? "" : ", ").append(number(result.scores[i]));
+            }
+            json.append("]\n            ]\n        }\n");
+            json.append(r == results.size() - 1 ? "    }\n" : "    },\n");
+        }
+        return json.append("]\n").toString();
+    }
+
+    private static String quote(String value) {
+        return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    private static String number(double value) {
+        return Double.isNaN(value) ? "\"NaN\"" : String.format(Locale.ROOT, "%.6f", value);
+    }
+}
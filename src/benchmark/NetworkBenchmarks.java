@@ -0,0 +1,191 @@
+package benchmark;
+
+import activation.ActivationFunction;
+import activation.FastSigmoidActivationFunction;
+import activation.ReluActivationFunction;
+import activation.SigmoidActivationFunction;
+import activation.SoftmaxActivationFunction;
+import activation.TanhActivationFunction;
+import cost.CostFunction;
+import cost.CrossEntropyCostFunction;
+import cost.LogLikelihoodCostFunction;
+import cost.QuadraticCostFunction;
+import mnist.MnistLoader;
+import mnist.MnistSet;
+import neural.NeuronLayer;
+import neural.NeuronNetwork;
+import neural.Precision;
+import neural.SparseInput;
+import org.jblas.DoubleMatrix;
+import training.BackPropagation;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Throughput benchmarks of the feedforward, a training step, the activation and cost functions and the MNIST loader
+ * at several hidden layer sizes.
+ *
+ * Usage: NetworkBenchmarks [--quick] [results.json]
+ */
+public class NetworkBenchmarks {
+
+    private static final int INPUT_SIZE = 28 * 28;
+    private static final int OUTPUT_SIZE = 10;
+    private static final int BATCH_SIZE = 64;
+    private static final int[] HIDDEN_SIZES = {30, 100, 300};
+    private static final int LOADER_IMAGES = 2000;
+
+    public static void main(String[] args) throws Exception {
+        boolean quick = false;
+        Path output = null;
+        for (String arg : args) {
+            if (arg.equals("--quick")) {
+                quick = true;
+            } else {
+                output = Paths.get(arg);
+            }
+        }
+
+        BenchmarkRunner runner = quick ? new BenchmarkRunner(1, 3, 200) : new BenchmarkRunner(5, 10, 1000);
+        Random random = new Random(42);
+
+        DoubleMatrix input = randomInput(random, 1);
+        DoubleMatrix batch = randomInput(random, BATCH_SIZE);
+        DoubleMatrix expected = DoubleMatrix.zeros(OUTPUT_SIZE);
+        expected.put(3, 1.0);
+        MnistSet trainingSet = new MnistSet(input, expected);
+        DoubleMatrix batchExpected = new DoubleMatrix(OUTPUT_SIZE, BATCH_SIZE);
+        for (int j = 0; j < BATCH_SIZE; j++) {
+            batchExpected.put(random.nextInt(OUTPUT_SIZE), j, 1.0);
+        }
+
+        for (int hidden : HIDDEN_SIZES) {
+            Map<String, String> params = params("hidden", hidden);
+
+            NeuronNetwork network = network(hidden);
+            runner.run("NeuronNetwork.feedForward", params, () -> network.feedForward(input));
+
+            Map<String, String> batchParams = params("hidden", hidden);
+            batchParams.put("batch", String.valueOf(BATCH_SIZE));
+            runner.run("NeuronNetwork.feedForward.batch", batchParams, () -> network.feedForward(batch));
+
+            BackPropagation trainer = new BackPropagation(network, new CrossEntropyCostFunction(), 0.1, 0.0);
+            runner.run("BackPropagation.iteration", params, () -> trainer.iteration(trainingSet));
+
+            NeuronNetwork singleNetwork = network(hidden);
+            singleNetwork.setPrecision(Precision.SINGLE);
+            BackPropagation singleTrainer = new BackPropagation(singleNetwork, new CrossEntropyCostFunction(), 0.1, 0.0);
+            runner.run("BackPropagation.iteration.batch", batchParams, () -> trainer.iteration(batch, batchExpected));
+            runner.run("BackPropagation.iteration.batch.single", batchParams, () -> singleTrainer.iteration(batch, batchExpected));
+
+            SparseInput sparseInput = SparseInput.of(input);
+            SparseInput sparseBatch = SparseInput.of(batch);
+            runner.run("NeuronNetwork.feedForward.sparse", params, () -> network.feedForward(sparseInput));
+            runner.run("BackPropagation.iteration.sparse", params, () -> trainer.iteration(sparseInput, expected));
+            runner.run("BackPropagation.iteration.batch.sparse", batchParams, () -> trainer.iteration(sparseBatch, batchExpected));
+
+            SigmoidActivationFunction sigmoid = new SigmoidActivationFunction();
+            DoubleMatrix z = DoubleMatrix.randn(hidden);
+            runner.run("SigmoidActivationFunction.fn", params("size", hidden), () -> sigmoid.fn(z));
+            runner.run("SigmoidActivationFunction.delta", params("size", hidden), () -> sigmoid.delta(z));
+
+            DoubleMatrix result = new DoubleMatrix(hidden);
+            DoubleMatrix activated = sigmoid.fn(z);
+            runner.run("SigmoidActivationFunction.derivativeInto", params("size", hidden), () -> sigmoid.derivativeInto(z, activated, result));
+            FastSigmoidActivationFunction fastSigmoid = new FastSigmoidActivationFunction();
+            runner.run("FastSigmoidActivationFunction.fnInto", params("size", hidden), () -> fastSigmoid.fnInto(z, result));
+            ActivationFunction[] activations = {new ReluActivationFunction(), new TanhActivationFunction(), new SoftmaxActivationFunction()};
+            for (ActivationFunction activation : activations) {
+                runner.run(activation.getClass().getSimpleName() + ".fnInto", params("size", hidden), () -> activation.fnInto(z, result));
+            }
+        }
+
+        DoubleMatrix z = DoubleMatrix.randn(OUTPUT_SIZE);
+        DoubleMatrix a = new SigmoidActivationFunction().fn(z);
+        DoubleMatrix delta = new DoubleMatrix(OUTPUT_SIZE);
+        for (CostFunction costFunction : new CostFunction[]{new QuadraticCostFunction(), new CrossEntropyCostFunction(), new LogLikelihoodCostFunction()}) {
+            String name = costFunction.getClass().getSimpleName();
+            runner.run(name + ".fn", params("size", OUTPUT_SIZE), () -> costFunction.fn(a, expected));
+            runner.run(name + ".delta", params("size", OUTPUT_SIZE), () -> costFunction.delta(z, a, expected));
+            runner.run(name + ".deltaAndCostInto", params("size", OUTPUT_SIZE), () -> costFunction.deltaAndCostInto(z, a, expected, delta));
+        }
+
+        Path directory = Files.createTempDirectory("mnist-benchmark");
+        try {
+            Path labels = directory.resolve("labels.idx");
+            Path images = directory.resolve("images.idx");
+            writeIdx(labels, images, LOADER_IMAGES, random);
+            MnistLoader loader = new MnistLoader();
+            runner.run("MnistLoader.create", params("images", LOADER_IMAGES),
+                    () -> loader.create(labels.toString(), images.toString()));
+            runner.run("MnistLoader.createDataset", params("images", LOADER_IMAGES),
+                    () -> loader.createDataset(labels.toString(), images.toString()));
+        } finally {
+            Files.deleteIfExists(directory.resolve("labels.idx"));
+            Files.deleteIfExists(directory.resolve("images.idx"));
+            Files.deleteIfExists(directory);
+        }
+
+        if (output != null) {
+            Files.write(output, runner.toJson().getBytes(StandardCharsets.UTF_8));
+            System.out.println("Results written to " + output);
+        }
+    }
+
+    private static Map<String, String> params(String name, int value) {
+        Map<String, String> params = new LinkedHashMap<>();
+        params.put(name, String.valueOf(value));
+        return params;
+    }
+
+    private static NeuronNetwork network(int hidden) {
+        NeuronNetwork network = new NeuronNetwork();
+        network.addLayer(new NeuronLayer(null, INPUT_SIZE, false));
+        network.addLayer(new NeuronLayer(new SigmoidActivationFunction(), hidden, true));
+        network.addLayer(new NeuronLayer(new SigmoidActivationFunction(), OUTPUT_SIZE, true));
+        network.finalizeNetwork();
+        return network;
+    }
+
+    /**
+     * Creates binary inputs with roughly the density of thresholded MNIST digits.
+     */
+    private static DoubleMatrix randomInput(Random random, int columns) {
+        DoubleMatrix input = new DoubleMatrix(INPUT_SIZE, columns);
+        for (int i = 0; i < input.length; i++) {
+            input.data[i] = random.nextDouble() < 0.2 ? 1.0 : 0.0;
+        }
+        return input;
+    }
+
+    /**
+     * Writes IDX label and image files with random content.
+     */
+    private static void writeIdx(Path labels, Path images, int count, Random random) throws IOException {
+        try (DataOutputStream labelOut = new DataOutputStream(Files.newOutputStream(labels));
+             DataOutputStream imageOut = new DataOutputStream(Files.newOutputStream(images))) {
+            labelOut.writeInt(2049);
+            labelOut.writeInt(count);
+            imageOut.writeInt(2051);
+            imageOut.writeInt(count);
+            imageOut.writeInt(28);
+            imageOut.writeInt(28);
+            byte[] image = new byte[INPUT_SIZE];
+            for (int i = 0; i < count; i++) {
+                labelOut.writeByte(random.nextInt(OUTPUT_SIZE));
+                for (int p = 0; p < image.length; p++) {
+                    image[p] = (byte) (random.nextDouble() < 0.2 ? random.nextInt(256) : 0);
+                }
+                imageOut.write(image);
+            }
+        }
+    }
+}
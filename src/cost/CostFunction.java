@@ -1,9 +1,84 @@
 package cost;
 
 import org.jblas.DoubleMatrix;
+import org.jblas.FloatMatrix;
+import org.jblas.MatrixFunctions;
 
 public interface CostFunction {
     String getName();
+
+    /**
+     * Computes the cost of the output. On a batch with one sample per column the costs of the samples are summed, so
+     * the cost of a set of samples does not depend on how they are split into batches.
+     * @param a Output of the output layer.
+     * @param y Expected output.
+     * @return Cost of the output, summed over all columns.
+     */
     double fn(DoubleMatrix a, DoubleMatrix y);
     DoubleMatrix delta(DoubleMatrix z, DoubleMatrix a, DoubleMatrix y);
+
+    /**
+     * Computes the output error and stores it in the given matrix.
+     * @param z Weighted output of the output layer.
+     * @param a Output of the output layer.
+     * @param y Expected output.
+     * @param result Matrix of the same size as the output that receives the error.
+     * @return The result matrix.
+     */
+    default DoubleMatrix deltaInto(DoubleMatrix z, DoubleMatrix a, DoubleMatrix y, DoubleMatrix result) {
+        return result.copy(delta(z, a, y));
+    }
+
+    /**
+     * Computes the output error into the given matrix and returns the cost of the output, fused into a single pass
+     * over the output where the cost function allows it. The default implementation calls deltaInto and fn.
+     * @param z Weighted output of the output layer.
+     * @param a Output of the output layer.
+     * @param y Expected output.
+     * @param result Matrix of the same size as the output that receives the error.
+     * @return Cost of the output, summed over all columns.
+     */
+    default double deltaAndCostInto(DoubleMatrix z, DoubleMatrix a, DoubleMatrix y, DoubleMatrix result) {
+        deltaInto(z, a, y, result);
+        return fn(a, y);
+    }
+
+    /**
+     * Single precision version of fn. The default implementation goes through double precision matrices.
+     * @param a Output of the output layer.
+     * @param y Expected output.
+     * @return Cost of the output.
+     */
+    default double fn(FloatMatrix a, FloatMatrix y) {
+        return fn(MatrixFunctions.floatToDouble(a), MatrixFunctions.floatToDouble(y));
+    }
+
+    /**
+     * Single precision version of deltaInto. The default implementation goes through double precision matrices.
+     * @param z Weighted output of the output layer.
+     * @param a Output of the output layer.
+     * @param y Expected output.
+     * @param result Matrix of the same size as the output that receives the error.
+     * @return The result matrix.
+     */
+    default FloatMatrix deltaInto(FloatMatrix z, FloatMatrix a, FloatMatrix y, FloatMatrix result) {
+        DoubleMatrix delta = delta(MatrixFunctions.floatToDouble(z), MatrixFunctions.floatToDouble(a), MatrixFunctions.floatToDouble(y));
+        for (int i = 0; i < delta.length; i++) {
+            result.data[i] = (float) delta.data[i];
+        }
+        return result;
+    }
+
+    /**
+     * Single precision version of deltaAndCostInto. The default implementation calls deltaInto and fn.
+     * @param z Weighted output of the output layer.
+     * @param a Output of the output layer.
+     * @param y Expected output.
+     * @param result Matrix of the same size as the output that receives the error.
+     * @return Cost of the output, summed over all columns.
+     */
+    default double deltaAndCostInto(FloatMatrix z, FloatMatrix a, FloatMatrix y, FloatMatrix result) {
+        deltaInto(z, a, y, result);
+        return fn(a, y);
+    }
 }
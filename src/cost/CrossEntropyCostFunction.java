@@ -1,8 +1,16 @@
 package cost;
 
 import org.jblas.DoubleMatrix;
-import org.jblas.MatrixFunctions;
+import org.jblas.FloatMatrix;
 
+/**
+ * Cross entropy cost of sigmoid outputs, -y * ln(a) - (1 - y) * ln(1 - a) summed over all outputs. With sigmoid
+ * outputs the error simplifies to a - y.
+ *
+ * fn only sees the outputs and is Infinity once a saturated output rounds to exactly 0 or 1. The fused
+ * deltaAndCostInto computes the cost from the weighted output z instead, as max(z, 0) - y * z + ln(1 + e^-|z|), which
+ * stays finite for any z.
+ */
 public class CrossEntropyCostFunction implements CostFunction {
 
     public String getName() {
@@ -11,11 +19,79 @@ public class CrossEntropyCostFunction implements CostFunction {
 
     @Override
     public double fn(DoubleMatrix a, DoubleMatrix y) {
-        return (y.neg().mul(MatrixFunctions.log(a)).sub(DoubleMatrix.ones(y.rows, y.columns).sub(y).mul(MatrixFunctions.log(DoubleMatrix.ones(a.rows, a.columns).sub(a)))).div(50000)).sum();
+        // computed without temporary matrices
+        double sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            sum += cost(a.data[i], y.data[i]);
+        }
+        return sum;
     }
 
     @Override
     public DoubleMatrix delta(DoubleMatrix z, DoubleMatrix a, DoubleMatrix y) {
         return (a.sub(y));
     }
+
+    @Override
+    public DoubleMatrix deltaInto(DoubleMatrix z, DoubleMatrix a, DoubleMatrix y, DoubleMatrix result) {
+        return a.subi(y, result);
+    }
+
+    @Override
+    public double deltaAndCostInto(DoubleMatrix z, DoubleMatrix a, DoubleMatrix y, DoubleMatrix result) {
+        double sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            double expected = y.data[i];
+            result.data[i] = a.data[i] - expected;
+            sum += costOfWeightedOutput(z.data[i], expected);
+        }
+        return sum;
+    }
+
+    @Override
+    public double fn(FloatMatrix a, FloatMatrix y) {
+        // accumulated in double, the float outputs are only widened
+        double sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            sum += cost(a.data[i], y.data[i]);
+        }
+        return sum;
+    }
+
+    @Override
+    public FloatMatrix deltaInto(FloatMatrix z, FloatMatrix a, FloatMatrix y, FloatMatrix result) {
+        return a.subi(y, result);
+    }
+
+    @Override
+    public double deltaAndCostInto(FloatMatrix z, FloatMatrix a, FloatMatrix y, FloatMatrix result) {
+        double sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            float expected = y.data[i];
+            result.data[i] = a.data[i] - expected;
+            sum += costOfWeightedOutput(z.data[i], expected);
+        }
+        return sum;
+    }
+
+    /**
+     * Cost of a single output. One-hot targets only need one of the two logarithms.
+     */
+    private static double cost(double a, double y) {
+        if (y == 1.0) {
+            return -Math.log(a);
+        }
+        if (y == 0.0) {
+            return -Math.log(1 - a);
+        }
+        return -y * Math.log(a) - (1 - y) * Math.log(1 - a);
+    }
+
+    /**
+     * Cost of a single output computed from its weighted output, -y * ln(sigmoid(z)) - (1 - y) * ln(1 - sigmoid(z))
+     * rearranged so that neither logarithm is taken of a rounded sigmoid.
+     */
+    private static double costOfWeightedOutput(double z, double y) {
+        return Math.max(z, 0.0) - y * z + Math.log1p(Math.exp(-Math.abs(z)));
+    }
 }
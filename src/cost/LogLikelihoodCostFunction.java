@@ -0,0 +1,108 @@
+package cost;
+
+import org.jblas.DoubleMatrix;
+import org.jblas.FloatMatrix;
+
+/**
+ * Log-likelihood cost of softmax outputs, -sum_i y_i * ln(a_i) over every column. With softmax outputs the error
+ * simplifies to a - y.
+ *
+ * The fused deltaAndCostInto takes the logarithms from the weighted output instead of the output, ln(a_i) = z_i - lse
+ * with lse = max + ln(sum_j exp(z_j - max)), which stays finite when a softmax output rounds to 0.
+ */
+public class LogLikelihoodCostFunction implements CostFunction {
+
+    public String getName() {
+        return "Log-Likelihood Cost Function";
+    }
+
+    @Override
+    public double fn(DoubleMatrix a, DoubleMatrix y) {
+        double sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            if (y.data[i] != 0.0) {
+                sum -= y.data[i] * Math.log(a.data[i]);
+            }
+        }
+        return sum;
+    }
+
+    @Override
+    public DoubleMatrix delta(DoubleMatrix z, DoubleMatrix a, DoubleMatrix y) {
+        return a.sub(y);
+    }
+
+    @Override
+    public DoubleMatrix deltaInto(DoubleMatrix z, DoubleMatrix a, DoubleMatrix y, DoubleMatrix result) {
+        return a.subi(y, result);
+    }
+
+    @Override
+    public double deltaAndCostInto(DoubleMatrix z, DoubleMatrix a, DoubleMatrix y, DoubleMatrix result) {
+        int rows = z.rows;
+        double sum = 0;
+        for (int j = 0; j < z.columns; j++) {
+            int offset = j * rows;
+            double max = Double.NEGATIVE_INFINITY;
+            for (int i = offset; i < offset + rows; i++) {
+                max = Math.max(max, z.data[i]);
+            }
+            double exponentials = 0;
+            for (int i = offset; i < offset + rows; i++) {
+                exponentials += Math.exp(z.data[i] - max);
+            }
+            double logSumExp = max + Math.log(exponentials);
+            for (int i = offset; i < offset + rows; i++) {
+                double expected = y.data[i];
+                result.data[i] = a.data[i] - expected;
+                if (expected != 0.0) {
+                    sum += expected * (logSumExp - z.data[i]);
+                }
+            }
+        }
+        return sum;
+    }
+
+    @Override
+    public double fn(FloatMatrix a, FloatMatrix y) {
+        double sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            if (y.data[i] != 0.0f) {
+                sum -= y.data[i] * Math.log(a.data[i]);
+            }
+        }
+        return sum;
+    }
+
+    @Override
+    public FloatMatrix deltaInto(FloatMatrix z, FloatMatrix a, FloatMatrix y, FloatMatrix result) {
+        return a.subi(y, result);
+    }
+
+    @Override
+    public double deltaAndCostInto(FloatMatrix z, FloatMatrix a, FloatMatrix y, FloatMatrix result) {
+        // the logarithms are taken in double, the error is rounded to float
+        int rows = z.rows;
+        double sum = 0;
+        for (int j = 0; j < z.columns; j++) {
+            int offset = j * rows;
+            double max = Double.NEGATIVE_INFINITY;
+            for (int i = offset; i < offset + rows; i++) {
+                max = Math.max(max, z.data[i]);
+            }
+            double exponentials = 0;
+            for (int i = offset; i < offset + rows; i++) {
+                exponentials += Math.exp(z.data[i] - max);
+            }
+            double logSumExp = max + Math.log(exponentials);
+            for (int i = offset; i < offset + rows; i++) {
+                float expected = y.data[i];
+                result.data[i] = a.data[i] - expected;
+                if (expected != 0.0f) {
+                    sum += expected * (logSumExp - z.data[i]);
+                }
+            }
+        }
+        return sum;
+    }
+}
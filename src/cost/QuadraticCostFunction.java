@@ -2,8 +2,11 @@ package cost;
 
 import activation.SigmoidActivationFunction;
 import org.jblas.DoubleMatrix;
-import org.jblas.MatrixFunctions;
+import org.jblas.FloatMatrix;
 
+/**
+ * Quadratic cost, 0.5 * (sum_i |a_i - y_i|)^2 per sample. On a batch the costs of the columns are summed.
+ */
 public class QuadraticCostFunction implements CostFunction {
 
     SigmoidActivationFunction f = new SigmoidActivationFunction();
@@ -15,11 +18,82 @@ public class QuadraticCostFunction implements CostFunction {
     @Override
     public double fn(DoubleMatrix a, DoubleMatrix y) {
         //return 0.5 * MatrixFunctions.pow(a.sub(y), 2).norm1();
-        return 0.5 * Math.pow((a.sub(y)).norm1(), 2);   //MatrixFunctions.pow(a.sub(y), 2).norm1();
+        double sum = 0;
+        for (int j = 0; j < a.columns; j++) {
+            double norm1 = 0;
+            for (int i = j * a.rows; i < (j + 1) * a.rows; i++) {
+                norm1 += Math.abs(a.data[i] - y.data[i]);
+            }
+            sum += 0.5 * norm1 * norm1;
+        }
+        return sum;
     }
 
     @Override
     public DoubleMatrix delta(DoubleMatrix z, DoubleMatrix a, DoubleMatrix y) {
         return (a.sub(y)).mul(f.delta(z));
     }
+
+    @Override
+    public DoubleMatrix deltaInto(DoubleMatrix z, DoubleMatrix a, DoubleMatrix y, DoubleMatrix result) {
+        f.derivativeInto(z, a, result);
+        for (int i = 0; i < result.length; i++) {
+            result.data[i] *= a.data[i] - y.data[i];
+        }
+        return result;
+    }
+
+    @Override
+    public double deltaAndCostInto(DoubleMatrix z, DoubleMatrix a, DoubleMatrix y, DoubleMatrix result) {
+        f.derivativeInto(z, a, result);
+        double sum = 0;
+        for (int j = 0; j < a.columns; j++) {
+            double norm1 = 0;
+            for (int i = j * a.rows; i < (j + 1) * a.rows; i++) {
+                double difference = a.data[i] - y.data[i];
+                result.data[i] *= difference;
+                norm1 += Math.abs(difference);
+            }
+            sum += 0.5 * norm1 * norm1;
+        }
+        return sum;
+    }
+
+    @Override
+    public double fn(FloatMatrix a, FloatMatrix y) {
+        double sum = 0;
+        for (int j = 0; j < a.columns; j++) {
+            double norm1 = 0;
+            for (int i = j * a.rows; i < (j + 1) * a.rows; i++) {
+                norm1 += Math.abs(a.data[i] - y.data[i]);
+            }
+            sum += 0.5 * norm1 * norm1;
+        }
+        return sum;
+    }
+
+    @Override
+    public FloatMatrix deltaInto(FloatMatrix z, FloatMatrix a, FloatMatrix y, FloatMatrix result) {
+        f.derivativeInto(z, a, result);
+        for (int i = 0; i < result.length; i++) {
+            result.data[i] *= a.data[i] - y.data[i];
+        }
+        return result;
+    }
+
+    @Override
+    public double deltaAndCostInto(FloatMatrix z, FloatMatrix a, FloatMatrix y, FloatMatrix result) {
+        f.derivativeInto(z, a, result);
+        double sum = 0;
+        for (int j = 0; j < a.columns; j++) {
+            double norm1 = 0;
+            for (int i = j * a.rows; i < (j + 1) * a.rows; i++) {
+                float difference = a.data[i] - y.data[i];
+                result.data[i] *= difference;
+                norm1 += Math.abs(difference);
+            }
+            sum += 0.5 * norm1 * norm1;
+        }
+        return sum;
+    }
 }
@@ -0,0 +1,116 @@
+package inference;
+
+import java.util.Locale;
+
+/**
+ * Scores of a network on a labelled dataset: the accuracy, the confusion matrix, the average cost and the predicted
+ * class of every sample.
+ */
+public final class EvaluationResult {
+
+    private final long[][] confusion;
+    private final int[] predictions;
+    private final double cost;
+    private final long correct;
+
+    /**
+     * Creates the result.
+     * @param confusion Confusion matrix, confusion[actual][predicted] counts the samples of a class predicted as a class.
+     * @param predictions Predicted class of every sample.
+     * @param cost Cost summed over all samples.
+     */
+    EvaluationResult(long[][] confusion, int[] predictions, double cost) {
+        this.confusion = confusion;
+        this.predictions = predictions;
+        this.cost = cost;
+        long diagonal = 0;
+        for (int i = 0; i < confusion.length; i++) {
+            diagonal += confusion[i][i];
+        }
+        this.correct = diagonal;
+    }
+
+    /**
+     * Returns the number of scored samples.
+     * @return Sample count.
+     */
+    public int getSamples() {
+        return predictions.length;
+    }
+
+    /**
+     * Returns the number of correctly classified samples.
+     * @return Number of samples whose predicted class is their label.
+     */
+    public long getCorrect() {
+        return correct;
+    }
+
+    /**
+     * Returns the fraction of correctly classified samples.
+     * @return Accuracy between 0 and 1.
+     */
+    public double getAccuracy() {
+        return predictions.length > 0 ? (double) correct / predictions.length : 0.0;
+    }
+
+    /**
+     * Returns the cost of the network averaged over the samples.
+     * @return Average cost.
+     */
+    public double getAverageCost() {
+        return predictions.length > 0 ? cost / predictions.length : 0.0;
+    }
+
+    /**
+     * Returns the confusion matrix.
+     * @return Copy of the matrix, element [actual][predicted] counts the samples of a class predicted as a class.
+     */
+    public long[][] getConfusionMatrix() {
+        long[][] copy = new long[confusion.length][];
+        for (int i = 0; i < confusion.length; i++) {
+            copy[i] = confusion[i].clone();
+        }
+        return copy;
+    }
+
+    /**
+     * Returns the fraction of the samples of a class that were classified correctly.
+     * @param label Class of the samples.
+     * @return Recall of the class, 0 if the dataset has no samples of it.
+     */
+    public double getClassAccuracy(int label) {
+        long total = 0;
+        for (long count : confusion[label]) {
+            total += count;
+        }
+        return total > 0 ? (double) confusion[label][label] / total : 0.0;
+    }
+
+    /**
+     * Returns the predicted class of every sample.
+     * @return Copy of the predictions, in the order of the dataset.
+     */
+    public int[] getPredictions() {
+        return predictions.clone();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder(String.format(Locale.ROOT, "Accuracy: %d/%d (%.4f) | Average cost: %.6f%n",
+                correct, predictions.length, getAccuracy(), getAverageCost()));
+        text.append("actual\\predicted");
+        for (int j = 0; j < confusion.length; j++) {
+            text.append(String.format(Locale.ROOT, " %6d", j));
+        }
+        text.append(String.format(Locale.ROOT, " %8s%n", "accuracy"));
+        for (int i = 0; i < confusion.length; i++) {
+            text.append(String.format(Locale.ROOT, "%16d", i));
+            for (int j = 0; j < confusion.length; j++) {
+                text.append(String.format(Locale.ROOT, " %6d", confusion[i][j]));
+            }
+            text.append(String.format(Locale.ROOT, " %8.4f%n", getClassAccuracy(i)));
+        }
+        return text.toString();
+    }
+}
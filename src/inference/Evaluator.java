@@ -0,0 +1,180 @@
+package inference;
+
+import cost.CostFunction;
+import mnist.SampleSource;
+import neural.NeuronNetwork;
+import org.jblas.DoubleMatrix;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Scores labelled datasets on a pool of threads. The dataset is split into batches, every batch is scored with a
+ * single matrix product per layer and the partial counts are merged into an EvaluationResult.
+ *
+ * A network is always scored through an InferenceModel, a snapshot of its weights. Taking the snapshot is the only
+ * part that has to run on the training thread, so with evaluateAsync training continues while the snapshot is scored.
+ */
+public class Evaluator implements AutoCloseable {
+
+    /**
+     * Counts of a single batch.
+     */
+    private static final class Partial {
+        final long[][] confusion;
+        double cost;
+
+        Partial(int classCount) {
+            this.confusion = new long[classCount][classCount];
+        }
+    }
+
+    private final CostFunction costFunction;
+    private final int batchSize;
+    private final ExecutorService executor;
+
+    /**
+     * Creates the evaluator and its threads.
+     * @param costFunction Cost function of the average cost.
+     * @param threadCount Number of threads scoring batches at the same time.
+     * @param batchSize Number of samples scored together.
+     */
+    public Evaluator(CostFunction costFunction, int threadCount, int batchSize) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("Thread count must be at least 1, got " + threadCount);
+        }
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1, got " + batchSize);
+        }
+        this.costFunction = costFunction;
+        this.batchSize = batchSize;
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threadCount, runnable -> {
+            Thread thread = new Thread(runnable, "evaluator-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Scores a dataset with the current weights of a network, waiting for the result.
+     * @param network Network to score, not modified.
+     * @param data Labelled samples.
+     * @return Scores of the network.
+     */
+    public EvaluationResult evaluate(NeuronNetwork network, SampleSource data) {
+        return evaluate(new InferenceModel(network), data);
+    }
+
+    /**
+     * Scores a dataset with a model, waiting for the result.
+     * @param model Model to score.
+     * @param data Labelled samples.
+     * @return Scores of the model.
+     */
+    public EvaluationResult evaluate(InferenceModel model, SampleSource data) {
+        try {
+            return evaluateAsync(model, data).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Takes a snapshot of the weights of a network and scores a dataset with it in the background. The network may
+     * be trained further as soon as this method returns.
+     * @param network Network to score, not modified.
+     * @param data Labelled samples, read concurrently by the threads.
+     * @return Future completed with the scores of the snapshot.
+     */
+    public CompletableFuture<EvaluationResult> evaluateAsync(NeuronNetwork network, SampleSource data) {
+        return evaluateAsync(new InferenceModel(network), data);
+    }
+
+    /**
+     * Scores a dataset with a model in the background.
+     * @param model Model to score.
+     * @param data Labelled samples, read concurrently by the threads.
+     * @return Future completed with the scores of the model.
+     */
+    public CompletableFuture<EvaluationResult> evaluateAsync(InferenceModel model, SampleSource data) {
+        if (data.getInputSize() != model.getInputSize()) {
+            throw new IllegalArgumentException("Expected samples of size " + model.getInputSize() + ", got " + data.getInputSize());
+        }
+        int classCount = model.getOutputSize();
+        int[] predictions = new int[data.size()];
+
+        List<CompletableFuture<Partial>> batches = new ArrayList<>();
+        for (int from = 0; from < data.size(); from += batchSize) {
+            int start = from;
+            int end = Math.min(from + batchSize, data.size());
+            batches.add(CompletableFuture.supplyAsync(() -> score(model, data, start, end, predictions), executor));
+        }
+
+        return CompletableFuture.allOf(batches.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            long[][] confusion = new long[classCount][classCount];
+            double cost = 0;
+            for (CompletableFuture<Partial> batch : batches) {
+                Partial partial = batch.join();
+                for (int i = 0; i < classCount; i++) {
+                    for (int j = 0; j < classCount; j++) {
+                        confusion[i][j] += partial.confusion[i][j];
+                    }
+                }
+                cost += partial.cost;
+            }
+            return new EvaluationResult(confusion, predictions, cost);
+        });
+    }
+
+    /**
+     * Stops the threads of the evaluator.
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Scores the samples from (inclusive) to (exclusive) as one batch.
+     */
+    private Partial score(InferenceModel model, SampleSource data, int from, int to, int[] predictions) {
+        int inputSize = model.getInputSize();
+        int classCount = model.getOutputSize();
+        int size = to - from;
+
+        // stack the inputs and one-hot labels column by column
+        DoubleMatrix inputs = new DoubleMatrix(inputSize, size);
+        DoubleMatrix expected = new DoubleMatrix(classCount, size);
+        for (int k = 0; k < size; k++) {
+            data.readInput(from + k, inputs.data, k * inputSize);
+            expected.data[k * classCount + data.getLabel(from + k)] = 1.0;
+        }
+
+        DoubleMatrix outputs = model.predictBatch(inputs);
+
+        Partial partial = new Partial(classCount);
+        for (int k = 0; k < size; k++) {
+            int offset = k * classCount;
+            int predicted = 0;
+            for (int i = 1; i < classCount; i++) {
+                if (outputs.data[offset + i] > outputs.data[offset + predicted]) {
+                    predicted = i;
+                }
+            }
+            predictions[from + k] = predicted;
+            partial.confusion[data.getLabel(from + k)][predicted]++;
+        }
+        // summed over the samples of the batch, so the total does not depend on the batch size
+        partial.cost = costFunction.fn(outputs, expected);
+        return partial;
+    }
+}
@@ -0,0 +1,282 @@
+package inference;
+
+import activation.ActivationFunction;
+import neural.NeuronLayer;
+import neural.NeuronNetwork;
+import neural.ParameterStore;
+import org.jblas.DoubleMatrix;
+
+import java.util.List;
+
+/**
+ * Immutable copy of a trained network used for scoring. Unlike NeuronNetwork.feedForward, which stores intermediate
+ * results in the layers, the model keeps all intermediate results in caller-owned or thread-local scratch buffers, so
+ * any number of threads can score at the same time without locking.
+ *
+ * A model created from a ParameterStore scores a heap snapshot of the store. Before every prediction it compares the
+ * generation of the store with the one of its snapshot and takes a new snapshot when an update was published, so it
+ * sees the weights the store was last updated with. The snapshot is a heap copy per process: the mapped store is what
+ * processes share and where they pick up published weights, but jblas BLAS only multiplies Java arrays, so scoring
+ * with it needs the weights on the heap. Scoring straight from the mapping would trade that copy for scalar loops.
+ *
+ * The activation functions are shared between threads and are therefore expected to be stateless.
+ */
+public final class InferenceModel {
+
+    /**
+     * Scratch buffers holding the intermediate results of a single prediction. A scratch object may only be used by
+     * one thread at a time.
+     */
+    public static final class Scratch {
+        private final DoubleMatrix[] weightedOutputs;
+        private final DoubleMatrix[] outputs;
+
+        private Scratch(int[] layerSizes) {
+            this.weightedOutputs = new DoubleMatrix[layerSizes.length];
+            this.outputs = new DoubleMatrix[layerSizes.length];
+            for (int l = 1; l < layerSizes.length; l++) {
+                this.weightedOutputs[l] = new DoubleMatrix(layerSizes[l]);
+                this.outputs[l] = new DoubleMatrix(layerSizes[l]);
+            }
+        }
+    }
+
+    /**
+     * Copied weights and biases, replaced as a whole when the parameter store publishes new weights.
+     */
+    private static final class Parameters {
+        private final long generation; // generation of the parameter store the weights were copied at
+        private final DoubleMatrix[] weights; // copied weights per layer, the input layer has none
+        private final DoubleMatrix[] biases; // copied biases per layer, the input layer has none
+
+        private Parameters(long generation, DoubleMatrix[] weights, DoubleMatrix[] biases) {
+            this.generation = generation;
+            this.weights = weights;
+            this.biases = biases;
+        }
+    }
+
+    private final int[] layerSizes; // neuron count per layer, starting with the input layer
+    private final ParameterStore store; // store the weights are copied from, null for a copied network
+    private volatile Parameters parameters;
+    private final ActivationFunction[] activations; // activation function per layer
+    private final ThreadLocal<Scratch> threadScratch;
+
+    /**
+     * Creates the model from the current weights and biases of the network. Later training of the network does not
+     * affect the model.
+     * @param network Trained network.
+     */
+    public InferenceModel(NeuronNetwork network) {
+        List<NeuronLayer> layers = network.getLayers();
+        if (layers.size() < 2) {
+            throw new IllegalArgumentException("Network needs at least an input and an output layer");
+        }
+
+        this.layerSizes = new int[layers.size()];
+        this.store = null;
+        this.activations = new ActivationFunction[layers.size()];
+        DoubleMatrix[] weights = new DoubleMatrix[layers.size()];
+        DoubleMatrix[] biases = new DoubleMatrix[layers.size()];
+        if (!network.isFinalized()) {
+            throw new IllegalStateException("Network has not been finalized");
+        }
+
+        for (int l = 0; l < layers.size(); l++) {
+            NeuronLayer layer = layers.get(l);
+            this.layerSizes[l] = layer.getNeuronCount();
+            if (l > 0) {
+                weights[l] = layer.exportWeights();
+                biases[l] = layer.exportBias();
+                this.activations[l] = layer.getActivationFunction();
+            }
+        }
+        this.parameters = new Parameters(0, weights, biases);
+
+        this.threadScratch = ThreadLocal.withInitial(this::newScratch);
+    }
+
+    /**
+     * Creates the model on a heap snapshot of the weights and biases of a parameter store. Updates of the store are seen
+     * by the next prediction after they were published.
+     * @param store Store holding a trained network, typically a checkpoint mapped with ParameterStore.map.
+     */
+    public InferenceModel(ParameterStore store) {
+        this.layerSizes = store.getLayerSizes();
+        if (layerSizes.length < 2) {
+            throw new IllegalArgumentException("Network needs at least an input and an output layer");
+        }
+        this.store = store;
+        this.activations = new ActivationFunction[layerSizes.length];
+        for (int l = 1; l < layerSizes.length; l++) {
+            this.activations[l] = store.getActivationFunction(l);
+        }
+        this.parameters = snapshot();
+
+        this.threadScratch = ThreadLocal.withInitial(this::newScratch);
+    }
+
+    /**
+     * Returns the current weights and biases, taking a new snapshot of the parameter store if it published an update.
+     * While an update is written the previous snapshot is used.
+     */
+    private Parameters parameters() {
+        Parameters current = this.parameters;
+        if (store == null) {
+            return current;
+        }
+        long generation = store.getGeneration();
+        if (generation == current.generation || (generation & 1) != 0) {
+            return current;
+        }
+        synchronized (this) {
+            // another thread may have taken the snapshot already
+            if (this.parameters.generation == current.generation) {
+                this.parameters = snapshot();
+            }
+            return this.parameters;
+        }
+    }
+
+    /**
+     * Copies the weights and biases of the parameter store into new matrices, since the current ones may still be
+     * used by other threads.
+     */
+    private Parameters snapshot() {
+        DoubleMatrix[] weights = new DoubleMatrix[layerSizes.length];
+        DoubleMatrix[] biases = new DoubleMatrix[layerSizes.length];
+        for (int l = 1; l < layerSizes.length; l++) {
+            weights[l] = new DoubleMatrix(layerSizes[l], layerSizes[l - 1]);
+            biases[l] = new DoubleMatrix(layerSizes[l]);
+        }
+        long generation = store.snapshot(weights, biases);
+        return new Parameters(generation, weights, biases);
+    }
+
+    /**
+     * Returns the size of the input expected by the model.
+     * @return Input size.
+     */
+    public int getInputSize() {
+        return layerSizes[0];
+    }
+
+    /**
+     * Returns the size of the output produced by the model.
+     * @return Output size.
+     */
+    public int getOutputSize() {
+        return layerSizes[layerSizes.length - 1];
+    }
+
+    /**
+     * Returns the activation function of the output layer.
+     * @return Output activation function.
+     */
+    public ActivationFunction getOutputActivation() {
+        return activations[layerSizes.length - 1];
+    }
+
+    /**
+     * Creates scratch buffers for use with predict(double[], double[], Scratch). Callers that score from many
+     * short-lived threads should keep their own scratch objects instead of relying on the thread-local ones.
+     * @return New scratch buffers.
+     */
+    public Scratch newScratch() {
+        return new Scratch(layerSizes);
+    }
+
+    /**
+     * Scores a single input using the scratch buffers of the calling thread.
+     * @param input Input of the network.
+     * @return Output of the network.
+     */
+    public double[] predict(double[] input) {
+        double[] output = new double[getOutputSize()];
+        predict(input, output, threadScratch.get());
+        return output;
+    }
+
+    /**
+     * Scores a single input using caller-owned buffers, which creates no objects at all.
+     * @param input Input of the network.
+     * @param output Array receiving the output of the network.
+     * @param scratch Scratch buffers that are not used by any other thread at the same time.
+     * @return The output array.
+     */
+    public double[] predict(double[] input, double[] output, Scratch scratch) {
+        checkSize("input", input.length, getInputSize());
+        checkSize("output", output.length, getOutputSize());
+
+        Parameters parameters = parameters();
+        double[] activation = input;
+        for (int l = 1; l < layerSizes.length; l++) {
+            DoubleMatrix weight = parameters.weights[l];
+            DoubleMatrix weightedOutput = scratch.weightedOutputs[l];
+            double[] z = weightedOutput.data;
+            double[] w = weight.data;
+
+            // z = w * a + b, walking the column-major weights one column at a time
+            System.arraycopy(parameters.biases[l].data, 0, z, 0, weight.rows);
+            for (int j = 0; j < weight.columns; j++) {
+                double a = activation[j];
+                if (a == 0.0) {
+                    continue;
+                }
+                int offset = j * weight.rows;
+                for (int i = 0; i < weight.rows; i++) {
+                    z[i] += w[offset + i] * a;
+                }
+            }
+
+            activation = activations[l].fnInto(weightedOutput, scratch.outputs[l]).data;
+        }
+
+        System.arraycopy(activation, 0, output, 0, output.length);
+        return output;
+    }
+
+    /**
+     * Scores a batch of inputs with a single matrix product per layer.
+     * @param inputs Inputs of the network, one per row.
+     * @return Outputs of the network, one per row.
+     */
+    public double[][] predictBatch(double[][] inputs) {
+        int inputSize = getInputSize();
+        DoubleMatrix batch = new DoubleMatrix(inputSize, inputs.length);
+        for (int k = 0; k < inputs.length; k++) {
+            checkSize("input", inputs[k].length, inputSize);
+            System.arraycopy(inputs[k], 0, batch.data, k * inputSize, inputSize);
+        }
+
+        DoubleMatrix activation = predictBatch(batch);
+
+        int outputSize = getOutputSize();
+        double[][] outputs = new double[inputs.length][outputSize];
+        for (int k = 0; k < inputs.length; k++) {
+            System.arraycopy(activation.data, k * outputSize, outputs[k], 0, outputSize);
+        }
+        return outputs;
+    }
+
+    /**
+     * Scores a batch of inputs with a single matrix product per layer.
+     * @param inputs Inputs of the network, one per column.
+     * @return Outputs of the network, one per column.
+     */
+    public DoubleMatrix predictBatch(DoubleMatrix inputs) {
+        checkSize("input", inputs.rows, getInputSize());
+        Parameters parameters = parameters();
+        DoubleMatrix activation = inputs;
+        for (int l = 1; l < layerSizes.length; l++) {
+            activation = activations[l].fn(parameters.weights[l].mmul(activation).addiColumnVector(parameters.biases[l]));
+        }
+        return activation;
+    }
+
+    private static void checkSize(String name, int actual, int expected) {
+        if (actual != expected) {
+            throw new IllegalArgumentException("Expected " + name + " of size " + expected + ", got " + actual);
+        }
+    }
+}
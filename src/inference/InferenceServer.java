@@ -0,0 +1,390 @@
+package inference;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import mnist.Preprocessing;
+import neural.NeuronNetwork;
+import neural.ParameterStore;
+import org.jblas.DoubleMatrix;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Micro-batching front end of an inference model. Single-image requests are queued and a batching thread merges the
+ * requests that arrive within a latency window of the first waiting request into one batch, which is scored with a
+ * single matrix product per layer. A longer window and a larger batch size trade latency for throughput under load.
+ *
+ * The server can be used in-process through submit and predict, or over a local HTTP endpoint:
+ * POST /predict with the 0 to 255 gray scale pixels of an image, either as raw bytes or as numbers separated by
+ * commas or whitespace, answers with the predicted label and the class probabilities as JSON, and GET /metrics
+ * answers with the queue depth, the batch size histogram and the p50/p99 latency. A body longer than
+ * maxBodyBytesPerInput bytes per input is answered with 413 without being read to the end.
+ *
+ * Usage: InferenceServer [checkpoint] [port] [max batch size] [latency window in microseconds] [shared]
+ *
+ * With shared set to true the checkpoint is mapped instead of loaded, so servers on the same host follow the weights a
+ * trainer publishes into the file without reloading it. Every server still scores a heap snapshot of the weights,
+ * since BLAS only multiplies Java arrays.
+ */
+public class InferenceServer implements AutoCloseable {
+
+    // defaults point at the files used by Main
+    static final String checkpointFile = "data/network.ckpt";
+    // longest time an HTTP request waits for its batch before it is answered with 503
+    static final long requestTimeoutMillis = 10_000;
+    // largest body accepted per input, enough for a pixel written as "255, " or "0.5, "
+    static final int maxBodyBytesPerInput = 8;
+
+    /**
+     * Queued request of a single image.
+     */
+    private static final class Request {
+        final double[] input;
+        final long arrival;
+        final CompletableFuture<Prediction> result = new CompletableFuture<>();
+
+        Request(double[] input) {
+            this.input = input;
+            this.arrival = System.nanoTime();
+        }
+    }
+
+    private final InferenceModel model;
+    private final Preprocessing preprocessing;
+    private final int maxBatchSize;
+    private final long windowNanos;
+    private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    private final ServingMetrics metrics;
+    private final Thread batcher;
+    private volatile boolean running = true;
+    private HttpServer httpServer;
+    private ExecutorService httpExecutor;
+
+    /**
+     * Creates the server and starts its batching thread.
+     * @param model Model that scores the batches.
+     * @param preprocessing Preprocessing applied to the raw pixels of every request, the one the model was trained with.
+     * @param maxBatchSize Largest number of requests scored together.
+     * @param windowMicros How long the first waiting request may wait for more requests to join its batch.
+     */
+    public InferenceServer(InferenceModel model, Preprocessing preprocessing, int maxBatchSize, long windowMicros) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1, got " + maxBatchSize);
+        }
+        if (windowMicros < 0) {
+            throw new IllegalArgumentException("Latency window must not be negative, got " + windowMicros);
+        }
+        this.model = model;
+        this.preprocessing = preprocessing;
+        this.maxBatchSize = maxBatchSize;
+        this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+        this.metrics = new ServingMetrics(maxBatchSize);
+        this.batcher = new Thread(this::batchLoop, "inference-batcher");
+        this.batcher.setDaemon(true);
+        this.batcher.start();
+    }
+
+    public static void main(String[] args) throws IOException {
+        String checkpoint = args.length > 0 ? args[0] : checkpointFile;
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 8080;
+        int maxBatchSize = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+        long windowMicros = args.length > 3 ? Long.parseLong(args[3]) : 2000;
+        boolean shared = args.length > 4 && Boolean.parseBoolean(args[4]);
+
+        InferenceModel model = shared
+                ? new InferenceModel(ParameterStore.map(Paths.get(checkpoint)))
+                : new InferenceModel(NeuronNetwork.load(Paths.get(checkpoint)));
+        InferenceServer server = new InferenceServer(model, Preprocessing.OTSU, maxBatchSize, windowMicros);
+        server.startHttp(port);
+        System.out.println("Serving " + checkpoint + " on http://localhost:" + port + "/predict with batches of up to "
+                + maxBatchSize + " and a latency window of " + windowMicros + " us");
+    }
+
+    /**
+     * Queues a single image for scoring.
+     * @param pixels Gray scale pixels between 0 and 255, not modified.
+     * @return Future completed with the prediction once the batch of the request was scored.
+     */
+    public CompletableFuture<Prediction> submit(double[] pixels) {
+        if (pixels.length != model.getInputSize()) {
+            throw new IllegalArgumentException("Expected " + model.getInputSize() + " pixels, got " + pixels.length);
+        }
+        Request request = new Request(preprocessing.apply(pixels.clone()));
+        if (!running) {
+            request.result.completeExceptionally(new IllegalStateException("Server is closed"));
+            return request.result;
+        }
+        queue.add(request);
+        // close may have drained the queue between the check and the add, then nobody else completes the request
+        if (!running && queue.remove(request)) {
+            request.result.completeExceptionally(new IllegalStateException("Server is closed"));
+        }
+        return request.result;
+    }
+
+    /**
+     * Scores a single image, waiting until its batch was scored.
+     * @param pixels Gray scale pixels between 0 and 255, not modified.
+     * @return Prediction of the image.
+     * @throws InterruptedException If the thread was interrupted while waiting.
+     */
+    public Prediction predict(double[] pixels) throws InterruptedException {
+        try {
+            return submit(pixels).get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Scoring failed", e.getCause());
+        }
+    }
+
+    /**
+     * Scores a single image, waiting at most the given time for its batch to be scored.
+     * @param pixels Gray scale pixels between 0 and 255, not modified.
+     * @param timeout Longest time to wait.
+     * @param unit Unit of the timeout.
+     * @return Prediction of the image.
+     * @throws InterruptedException If the thread was interrupted while waiting.
+     * @throws TimeoutException If the batch of the image was not scored in time.
+     */
+    public Prediction predict(double[] pixels, long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+        try {
+            return submit(pixels).get(timeout, unit);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Scoring failed", e.getCause());
+        }
+    }
+
+    /**
+     * Returns the number of requests waiting for a batch.
+     * @return Queue depth.
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * Returns the counters of the server.
+     * @return Metrics, updated while the server runs.
+     */
+    public ServingMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Starts the HTTP endpoint on the loopback interface.
+     * @param port Port to listen on, 0 picks a free one.
+     * @return The port the endpoint listens on.
+     * @throws IOException If the port cannot be bound.
+     */
+    public synchronized int startHttp(int port) throws IOException {
+        if (httpServer != null) {
+            throw new IllegalStateException("HTTP endpoint is already running");
+        }
+        httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        httpServer.createContext("/predict", this::handlePredict);
+        httpServer.createContext("/metrics", this::handleMetrics);
+        // handler threads block until their batch was scored, so every open connection gets its own thread
+        httpExecutor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "inference-http");
+            thread.setDaemon(true);
+            return thread;
+        });
+        httpServer.setExecutor(httpExecutor);
+        httpServer.start();
+        return httpServer.getAddress().getPort();
+    }
+
+    /**
+     * Stops the HTTP endpoint and the batching thread. Requests that are still waiting fail.
+     */
+    @Override
+    public synchronized void close() {
+        running = false;
+        if (httpServer != null) {
+            httpServer.stop(0);
+            httpExecutor.shutdownNow();
+            httpServer = null;
+        }
+        batcher.interrupt();
+        try {
+            batcher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Request request;
+        while ((request = queue.poll()) != null) {
+            request.result.completeExceptionally(new IllegalStateException("Server is closed"));
+        }
+    }
+
+    /**
+     * Collects batches until the server is closed.
+     */
+    private void batchLoop() {
+        List<Request> batch = new ArrayList<>(maxBatchSize);
+        while (running) {
+            try {
+                Request first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                // wait for more requests until the window of the first one closes or the batch is full
+                long deadline = first.arrival + windowNanos;
+                while (batch.size() < maxBatchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    Request next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                // closing, the collected requests are still scored
+            }
+            if (!batch.isEmpty()) {
+                score(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Scores a batch with one forward pass and completes its requests.
+     */
+    private void score(List<Request> batch) {
+        try {
+            int inputSize = model.getInputSize();
+            DoubleMatrix inputs = new DoubleMatrix(inputSize, batch.size());
+            for (int k = 0; k < batch.size(); k++) {
+                System.arraycopy(batch.get(k).input, 0, inputs.data, k * inputSize, inputSize);
+            }
+            DoubleMatrix outputs = model.predictBatch(inputs);
+
+            metrics.recordBatch(batch.size());
+            double[] output = new double[outputs.rows];
+            for (int k = 0; k < batch.size(); k++) {
+                Request request = batch.get(k);
+                System.arraycopy(outputs.data, k * outputs.rows, output, 0, outputs.rows);
+                request.result.complete(new Prediction(output, model.getOutputActivation()));
+                metrics.recordLatency(System.nanoTime() - request.arrival);
+            }
+        } catch (RuntimeException e) {
+            for (Request request : batch) {
+                request.result.completeExceptionally(e);
+            }
+        }
+    }
+
+    private void handlePredict(HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                respond(exchange, 405, "{\"error\":\"use POST\"}");
+                return;
+            }
+            byte[] body = readBody(exchange.getRequestBody(), maxBodyBytesPerInput * model.getInputSize());
+            if (body == null) {
+                respond(exchange, 413, "{\"error\":\"request body too large\"}");
+                return;
+            }
+            double[] pixels;
+            try {
+                pixels = parsePixels(body);
+            } catch (IllegalArgumentException e) {
+                respond(exchange, 400, "{\"error\":\"" + e.getMessage().replace("\"", "'") + "\"}");
+                return;
+            }
+            try {
+                respond(exchange, 200, predict(pixels, requestTimeoutMillis, TimeUnit.MILLISECONDS).toJson());
+            } catch (IllegalStateException e) {
+                respond(exchange, 503, "{\"error\":\"" + e.getMessage().replace("\"", "'") + "\"}");
+            } catch (TimeoutException e) {
+                respond(exchange, 503, "{\"error\":\"timed out\"}");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            respond(exchange, 503, "{\"error\":\"interrupted\"}");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handleMetrics(HttpExchange exchange) throws IOException {
+        try {
+            respond(exchange, 200, metrics.toJson(getQueueDepth()));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Reads the pixels of a request body, raw bytes if the body has exactly one byte per input, numbers otherwise.
+     */
+    private double[] parsePixels(byte[] body) {
+        int inputSize = model.getInputSize();
+        double[] pixels = new double[inputSize];
+        if (body.length == inputSize) {
+            for (int i = 0; i < inputSize; i++) {
+                pixels[i] = body[i] & 0xFF;
+            }
+            return pixels;
+        }
+
+        String[] tokens = new String(body, StandardCharsets.US_ASCII).trim().split("[\\s,\\[\\]]+");
+        int count = 0;
+        for (String token : tokens) {
+            if (token.isEmpty()) {
+                continue;
+            }
+            if (count == inputSize) {
+                throw new IllegalArgumentException("Expected " + inputSize + " pixels, got more");
+            }
+            pixels[count++] = Double.parseDouble(token); // NumberFormatException is an IllegalArgumentException
+        }
+        if (count != inputSize) {
+            throw new IllegalArgumentException("Expected " + inputSize + " pixels, got " + count);
+        }
+        return pixels;
+    }
+
+    /**
+     * Reads a request body of at most limit bytes, returns null as soon as the body is longer.
+     */
+    private static byte[] readBody(InputStream in, int limit) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            if (read > limit - body.size()) {
+                return null;
+            }
+            body.write(buffer, 0, read);
+        }
+        return body.toByteArray();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
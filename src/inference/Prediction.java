@@ -0,0 +1,97 @@
+package inference;
+
+import activation.ActivationFunction;
+import activation.FastSigmoidActivationFunction;
+import activation.SigmoidActivationFunction;
+import activation.SoftmaxActivationFunction;
+
+/**
+ * Result of scoring a single image: the predicted digit and the probability of every class.
+ */
+public final class Prediction {
+
+    private final int label;
+    private final double[] probabilities;
+
+    /**
+     * Creates a prediction from the output of a network. How the outputs become probabilities depends on the activation
+     * of the output layer: softmax outputs already are a distribution and are taken unchanged, sigmoid outputs lie in
+     * (0, 1) and are normalized to sum up to 1, and the outputs of any other activation, such as tanh or ReLU, which
+     * can be negative or zero everywhere, are turned into a distribution with a softmax.
+     * @param output Output of the network, not modified.
+     * @param activation Activation function of the output layer.
+     */
+    public Prediction(double[] output, ActivationFunction activation) {
+        int best = 0;
+        for (int i = 1; i < output.length; i++) {
+            if (output[i] > output[best]) {
+                best = i;
+            }
+        }
+        this.label = best;
+        if (activation instanceof SoftmaxActivationFunction) {
+            this.probabilities = output.clone();
+        } else if (activation instanceof SigmoidActivationFunction || activation instanceof FastSigmoidActivationFunction) {
+            this.probabilities = normalize(output);
+        } else {
+            this.probabilities = softmax(output, output[best]);
+        }
+    }
+
+    /**
+     * Returns the predicted class, the index of the largest output.
+     * @return Predicted class.
+     */
+    public int getLabel() {
+        return label;
+    }
+
+    /**
+     * Returns the probability of every class.
+     * @return Class probabilities, summing up to 1.
+     */
+    public double[] getProbabilities() {
+        return probabilities.clone();
+    }
+
+    private static double[] normalize(double[] output) {
+        double sum = 0;
+        for (double value : output) {
+            sum += value;
+        }
+        double[] probabilities = new double[output.length];
+        for (int i = 0; i < output.length; i++) {
+            probabilities[i] = sum > 0 ? output[i] / sum : 1.0 / output.length;
+        }
+        return probabilities;
+    }
+
+    private static double[] softmax(double[] output, double max) {
+        // the largest output is subtracted so the exponentials cannot overflow
+        double sum = 0;
+        double[] probabilities = new double[output.length];
+        for (int i = 0; i < output.length; i++) {
+            probabilities[i] = Math.exp(output[i] - max);
+            sum += probabilities[i];
+        }
+        for (int i = 0; i < output.length; i++) {
+            probabilities[i] /= sum;
+        }
+        return probabilities;
+    }
+
+    /**
+     * Formats the prediction as a JSON object.
+     * @return JSON with the label and the probabilities.
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder("{\"label\":").append(label).append(",\"probabilities\":[");
+        for (int i = 0; i < probabilities.length; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append(probabilities[i]);
+        }
+        return json.append("]}").toString();
+    }
+}
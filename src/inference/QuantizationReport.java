@@ -0,0 +1,104 @@
+package inference;
+
+import mnist.MnistLoader;
+import mnist.SampleSource;
+import neural.NeuronLayer;
+import neural.NeuronNetwork;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Paths;
+import java.util.Locale;
+
+/**
+ * Compares the int8 quantized models of a trained network against the unquantized model on a test set. For every
+ * weight scaling it reports the accuracy, the accuracy difference, how often the predicted digit changed, the largest
+ * output difference and the size of the weights.
+ *
+ * Usage: QuantizationReport [checkpoint] [test labels] [test images]
+ */
+public class QuantizationReport {
+
+    // defaults point at the files used by Main
+    static final String checkpointFile = "data/network.ckpt";
+    static final String testLabelFile = "data/t10k-labels-idx1-ubyte.dat";
+    static final String testImageFile = "data/t10k-images-idx3-ubyte.dat";
+
+    public static void main(String[] args) throws IOException {
+        String checkpoint = args.length > 0 ? args[0] : checkpointFile;
+        String labels = args.length > 1 ? args[1] : testLabelFile;
+        String images = args.length > 2 ? args[2] : testImageFile;
+
+        NeuronNetwork network = NeuronNetwork.load(Paths.get(checkpoint));
+        SampleSource testData = new MnistLoader().createDataset(labels, images);
+        report(network, testData, System.out);
+    }
+
+    /**
+     * Scores the test set with the unquantized and the quantized models and prints the comparison.
+     * @param network Trained network.
+     * @param testData Samples to score.
+     * @param out Stream the report is printed to.
+     */
+    public static void report(NeuronNetwork network, SampleSource testData, PrintStream out) {
+        InferenceModel reference = new InferenceModel(network);
+        int size = testData.size();
+        double[] input = new double[testData.getInputSize()];
+        double[][] referenceOutputs = new double[size][];
+        int referenceCorrect = 0;
+        for (int k = 0; k < size; k++) {
+            testData.readInput(k, input, 0);
+            referenceOutputs[k] = reference.predict(input);
+            if (argmax(referenceOutputs[k]) == testData.getLabel(k)) {
+                referenceCorrect++;
+            }
+        }
+
+        long referenceBytes = 0;
+        for (int l = 1; l < network.getLayers().size(); l++) {
+            NeuronLayer layer = network.getLayers().get(l);
+            referenceBytes += (long) layer.getNeuronCount() * layer.getPreviousLayer().getNeuronCount() * Double.BYTES;
+        }
+
+        out.println(String.format(Locale.ROOT, "%-10s %10s %10s %10s %12s %12s",
+                "Model", "Accuracy", "Diff", "Changed", "Max output", "Weights"));
+        out.println(String.format(Locale.ROOT, "%-10s %10.4f %10s %10s %12s %12d",
+                "double", (double) referenceCorrect / size, "", "", "", referenceBytes));
+
+        for (QuantizedModel.Scaling scaling : QuantizedModel.Scaling.values()) {
+            QuantizedModel model = new QuantizedModel(network, scaling);
+            double[] output = new double[model.getOutputSize()];
+            QuantizedModel.Scratch scratch = model.newScratch();
+            int correct = 0;
+            int changed = 0;
+            double maxDifference = 0;
+            for (int k = 0; k < size; k++) {
+                testData.readInput(k, input, 0);
+                model.predict(input, output, scratch);
+                int predicted = argmax(output);
+                if (predicted == testData.getLabel(k)) {
+                    correct++;
+                }
+                if (predicted != argmax(referenceOutputs[k])) {
+                    changed++;
+                }
+                for (int i = 0; i < output.length; i++) {
+                    maxDifference = Math.max(maxDifference, Math.abs(output[i] - referenceOutputs[k][i]));
+                }
+            }
+            out.println(String.format(Locale.ROOT, "%-10s %10.4f %+10.4f %10d %12.6f %12d",
+                    scaling.name().toLowerCase(Locale.ROOT), (double) correct / size,
+                    (double) (correct - referenceCorrect) / size, changed, maxDifference, model.getWeightBytes()));
+        }
+    }
+
+    private static int argmax(double[] values) {
+        int best = 0;
+        for (int i = 1; i < values.length; i++) {
+            if (values[i] > values[best]) {
+                best = i;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,245 @@
+package inference;
+
+import activation.ActivationFunction;
+import neural.NeuronLayer;
+import neural.NeuronNetwork;
+import org.jblas.DoubleMatrix;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Post-training quantized copy of a trained network. The weights are stored as signed 8-bit integers with a scale per
+ * layer or per neuron, which is 8 times smaller than the double weights of the network. The activations fed to every
+ * layer are quantized to 8 bits on the fly with a scale per input vector, so the matrix-vector products run entirely on
+ * integers and accumulate in 32 bits. The biases, the rescaled weighted outputs and the activation functions stay in
+ * double precision.
+ *
+ * Like InferenceModel, all intermediate results live in caller-owned or thread-local scratch buffers, so any number of
+ * threads can score at the same time.
+ */
+public final class QuantizedModel {
+
+    /**
+     * Granularity of the weight scales.
+     */
+    public enum Scaling {
+        /**
+         * A single scale for all weights of a layer.
+         */
+        PER_LAYER,
+        /**
+         * A scale per neuron, which keeps neurons with small weights from losing their precision to neurons with large
+         * weights.
+         */
+        PER_ROW
+    }
+
+    // largest magnitude of a quantized value, -128 is not used so the range is symmetric
+    private static final int LEVELS = 127;
+
+    /**
+     * Scratch buffers holding the intermediate results of a single prediction. A scratch object may only be used by
+     * one thread at a time.
+     */
+    public static final class Scratch {
+        private final byte[][] quantizedInputs;
+        private final DoubleMatrix[] weightedOutputs;
+        private final DoubleMatrix[] outputs;
+
+        private Scratch(int[] layerSizes) {
+            this.quantizedInputs = new byte[layerSizes.length][];
+            this.weightedOutputs = new DoubleMatrix[layerSizes.length];
+            this.outputs = new DoubleMatrix[layerSizes.length];
+            for (int l = 1; l < layerSizes.length; l++) {
+                this.quantizedInputs[l] = new byte[layerSizes[l - 1]];
+                this.weightedOutputs[l] = new DoubleMatrix(layerSizes[l]);
+                this.outputs[l] = new DoubleMatrix(layerSizes[l]);
+            }
+        }
+    }
+
+    private final Scaling scaling;
+    private final int[] layerSizes; // neuron count per layer, starting with the input layer
+    private final byte[][] weights; // quantized weights per layer in row-major order, the input layer has none
+    private final double[][] scales; // weight scale per neuron of every layer
+    private final double[][] biases; // biases per layer
+    private final ActivationFunction[] activations; // activation function per layer
+    private final ThreadLocal<Scratch> threadScratch;
+
+    /**
+     * Quantizes the current weights of the network. Later training of the network does not affect the model.
+     * @param network Trained network.
+     * @param scaling Granularity of the weight scales.
+     */
+    public QuantizedModel(NeuronNetwork network, Scaling scaling) {
+        List<NeuronLayer> layers = network.getLayers();
+        if (layers.size() < 2) {
+            throw new IllegalArgumentException("Network needs at least an input and an output layer");
+        }
+
+        this.scaling = scaling;
+        this.layerSizes = new int[layers.size()];
+        this.weights = new byte[layers.size()][];
+        this.scales = new double[layers.size()][];
+        this.biases = new double[layers.size()][];
+        this.activations = new ActivationFunction[layers.size()];
+        if (!network.isFinalized()) {
+            throw new IllegalStateException("Network has not been finalized");
+        }
+
+        for (int l = 0; l < layers.size(); l++) {
+            NeuronLayer layer = layers.get(l);
+            this.layerSizes[l] = layer.getNeuronCount();
+            if (l > 0) {
+                quantize(l, layer.exportWeights());
+                this.biases[l] = layer.exportBias().toArray();
+                this.activations[l] = layer.getActivationFunction();
+            }
+        }
+
+        this.threadScratch = ThreadLocal.withInitial(this::newScratch);
+    }
+
+    /**
+     * Quantizes the column-major weights of a layer into row-major bytes, so every neuron reads a contiguous row.
+     */
+    private void quantize(int l, DoubleMatrix weight) {
+        int rows = weight.rows;
+        int columns = weight.columns;
+        double[] maxima = new double[rows];
+        for (int j = 0; j < columns; j++) {
+            for (int i = 0; i < rows; i++) {
+                maxima[i] = Math.max(maxima[i], Math.abs(weight.data[j * rows + i]));
+            }
+        }
+        if (scaling == Scaling.PER_LAYER) {
+            double maximum = 0;
+            for (double rowMaximum : maxima) {
+                maximum = Math.max(maximum, rowMaximum);
+            }
+            Arrays.fill(maxima, maximum);
+        }
+
+        double[] scale = new double[rows];
+        byte[] quantized = new byte[rows * columns];
+        for (int i = 0; i < rows; i++) {
+            // an all-zero row keeps a scale of 0 and quantizes to zeros
+            scale[i] = maxima[i] / LEVELS;
+            double inverse = maxima[i] == 0.0 ? 0.0 : LEVELS / maxima[i];
+            for (int j = 0; j < columns; j++) {
+                quantized[i * columns + j] = (byte) Math.round(weight.data[j * rows + i] * inverse);
+            }
+        }
+        this.weights[l] = quantized;
+        this.scales[l] = scale;
+    }
+
+    /**
+     * Returns the granularity of the weight scales.
+     * @return Weight scaling of the model.
+     */
+    public Scaling getScaling() {
+        return scaling;
+    }
+
+    /**
+     * Returns the size of the input expected by the model.
+     * @return Input size.
+     */
+    public int getInputSize() {
+        return layerSizes[0];
+    }
+
+    /**
+     * Returns the size of the output produced by the model.
+     * @return Output size.
+     */
+    public int getOutputSize() {
+        return layerSizes[layerSizes.length - 1];
+    }
+
+    /**
+     * Returns the memory taken by the quantized weights and their scales.
+     * @return Size of the weights in bytes.
+     */
+    public long getWeightBytes() {
+        long bytes = 0;
+        for (int l = 1; l < layerSizes.length; l++) {
+            bytes += weights[l].length + (long) scales[l].length * Double.BYTES;
+        }
+        return bytes;
+    }
+
+    /**
+     * Creates scratch buffers for use with predict(double[], double[], Scratch).
+     * @return New scratch buffers.
+     */
+    public Scratch newScratch() {
+        return new Scratch(layerSizes);
+    }
+
+    /**
+     * Scores a single input using the scratch buffers of the calling thread.
+     * @param input Input of the network.
+     * @return Output of the network.
+     */
+    public double[] predict(double[] input) {
+        double[] output = new double[getOutputSize()];
+        predict(input, output, threadScratch.get());
+        return output;
+    }
+
+    /**
+     * Scores a single input using caller-owned buffers, which creates no objects at all.
+     * @param input Input of the network.
+     * @param output Array receiving the output of the network.
+     * @param scratch Scratch buffers that are not used by any other thread at the same time.
+     * @return The output array.
+     */
+    public double[] predict(double[] input, double[] output, Scratch scratch) {
+        checkSize("input", input.length, getInputSize());
+        checkSize("output", output.length, getOutputSize());
+
+        double[] activation = input;
+        for (int l = 1; l < layerSizes.length; l++) {
+            int rows = layerSizes[l];
+            int columns = layerSizes[l - 1];
+            byte[] w = weights[l];
+            byte[] a = scratch.quantizedInputs[l];
+            double[] z = scratch.weightedOutputs[l].data;
+
+            // quantize the activation with a scale of its own
+            double maximum = 0;
+            for (int j = 0; j < columns; j++) {
+                maximum = Math.max(maximum, Math.abs(activation[j]));
+            }
+            double inverse = maximum == 0.0 ? 0.0 : LEVELS / maximum;
+            for (int j = 0; j < columns; j++) {
+                a[j] = (byte) Math.round(activation[j] * inverse);
+            }
+            double inputScale = maximum / LEVELS;
+
+            // z = w * a + b, with the dot products accumulated in 32-bit integers
+            for (int i = 0; i < rows; i++) {
+                int offset = i * columns;
+                int sum = 0;
+                for (int j = 0; j < columns; j++) {
+                    sum += w[offset + j] * a[j];
+                }
+                z[i] = sum * scales[l][i] * inputScale + biases[l][i];
+            }
+
+            activation = activations[l].fnInto(scratch.weightedOutputs[l], scratch.outputs[l]).data;
+        }
+
+        System.arraycopy(activation, 0, output, 0, output.length);
+        return output;
+    }
+
+    private static void checkSize(String name, int actual, int expected) {
+        if (actual != expected) {
+            throw new IllegalArgumentException("Expected " + name + " of size " + expected + ", got " + actual);
+        }
+    }
+}
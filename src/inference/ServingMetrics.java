@@ -0,0 +1,121 @@
+package inference;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters of a micro-batching server: how many requests and batches were scored, how large the batches were and how
+ * long the requests took from arriving until their result was ready. The latency percentiles are taken over a window
+ * of the most recent requests.
+ */
+public final class ServingMetrics {
+
+    // number of recent latencies the percentiles are computed over
+    private static final int LATENCY_WINDOW = 8192;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLongArray batchSizes; // number of batches per size, index 0 is unused
+    private final long[] latencies = new long[LATENCY_WINDOW]; // ring buffer of nanoseconds, guarded by this
+    private long latencyCount;
+
+    /**
+     * Creates empty metrics.
+     * @param maxBatchSize Largest batch size that will be recorded.
+     */
+    ServingMetrics(int maxBatchSize) {
+        this.batchSizes = new AtomicLongArray(maxBatchSize + 1);
+    }
+
+    /**
+     * Records a scored batch.
+     * @param size Number of requests in the batch.
+     */
+    void recordBatch(int size) {
+        batches.incrementAndGet();
+        requests.addAndGet(size);
+        batchSizes.incrementAndGet(size);
+    }
+
+    /**
+     * Records the latency of a request.
+     * @param nanos Time from arriving until the result was ready.
+     */
+    synchronized void recordLatency(long nanos) {
+        latencies[(int) (latencyCount % LATENCY_WINDOW)] = nanos;
+        latencyCount++;
+    }
+
+    /**
+     * Returns the number of scored requests.
+     * @return Request count.
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * Returns the number of scored batches.
+     * @return Batch count.
+     */
+    public long getBatches() {
+        return batches.get();
+    }
+
+    /**
+     * Returns how many batches of every size were scored.
+     * @return Batch count per size, index 0 is always 0.
+     */
+    public long[] getBatchSizeHistogram() {
+        long[] histogram = new long[batchSizes.length()];
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] = batchSizes.get(i);
+        }
+        return histogram;
+    }
+
+    /**
+     * Returns a latency percentile over the most recent requests.
+     * @param percentile Percentile between 0 and 100.
+     * @return Latency in nanoseconds, 0 if no request was scored yet.
+     */
+    public long getLatencyPercentile(double percentile) {
+        long[] window;
+        synchronized (this) {
+            window = Arrays.copyOf(latencies, (int) Math.min(latencyCount, LATENCY_WINDOW));
+        }
+        if (window.length == 0) {
+            return 0;
+        }
+        Arrays.sort(window);
+        int index = (int) Math.ceil(percentile / 100.0 * window.length) - 1;
+        return window[Math.max(0, Math.min(window.length - 1, index))];
+    }
+
+    /**
+     * Formats the metrics as a JSON object.
+     * @param queueDepth Number of requests currently waiting.
+     * @return JSON with the counters, the batch size histogram and the latency percentiles in milliseconds.
+     */
+    public String toJson(int queueDepth) {
+        StringBuilder json = new StringBuilder("{");
+        json.append("\"queueDepth\":").append(queueDepth);
+        json.append(",\"requests\":").append(getRequests());
+        json.append(",\"batches\":").append(getBatches());
+        json.append(",\"batchSizes\":{");
+        long[] histogram = getBatchSizeHistogram();
+        boolean first = true;
+        for (int size = 1; size < histogram.length; size++) {
+            if (histogram[size] > 0) {
+                json.append(first ? "" : ",").append('"').append(size).append("\":").append(histogram[size]);
+                first = false;
+            }
+        }
+        json.append('}');
+        json.append(String.format(Locale.ROOT, ",\"p50Millis\":%.3f,\"p99Millis\":%.3f",
+                getLatencyPercentile(50) / 1e6, getLatencyPercentile(99) / 1e6));
+        return json.append('}').toString();
+    }
+}
@@ -0,0 +1,226 @@
+package mnist;
+
+import org.jblas.DoubleMatrix;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Input pipeline that assembles shuffled mini-batches on background threads while the trainer consumes earlier ones.
+ *
+ * A coordinator thread shuffles the sample order at the start of every epoch and hands the batches to a pool of
+ * worker threads, which read and preprocess the samples from the source and stack them into matrices. The batches are
+ * delivered in order through a bounded queue, so at most the given number of batches is prefetched. Consumers can
+ * hand used batches back with recycle, which lets the workers reuse their matrices.
+ */
+public class BatchPipeline implements AutoCloseable {
+
+    /**
+     * Mini-batch with one sample per column.
+     */
+    public static final class Batch {
+        private final DoubleMatrix inputs;
+        private final DoubleMatrix outputs;
+        private int epoch;
+
+        private Batch(int inputSize, int classCount, int size) {
+            this.inputs = new DoubleMatrix(inputSize, size);
+            this.outputs = new DoubleMatrix(classCount, size);
+        }
+
+        /**
+         * Returns the inputs of the batch.
+         * @return Input matrix with one sample per column.
+         */
+        public DoubleMatrix getInputs() {
+            return inputs;
+        }
+
+        /**
+         * Returns the expected outputs of the batch.
+         * @return One-hot output matrix with one sample per column.
+         */
+        public DoubleMatrix getOutputs() {
+            return outputs;
+        }
+
+        /**
+         * Returns the epoch the batch belongs to, starting at 0.
+         * @return Epoch of the batch.
+         */
+        public int getEpoch() {
+            return epoch;
+        }
+    }
+
+    // marks the end of the last epoch in the queue
+    private static final Future<Batch> END = CompletableFuture.completedFuture(null);
+
+    private final SampleSource source;
+    private final int batchSize;
+    private final int epochs;
+    private final BlockingQueue<Future<Batch>> queue; // batches in the order they are consumed
+    private final BlockingQueue<Batch> free; // recycled full-size batches
+    private final ExecutorService workers;
+    private final Thread coordinator;
+
+    /**
+     * Starts the pipeline.
+     * @param source Source of the samples, read concurrently by the workers.
+     * @param batchSize Number of samples per batch, the last batch of an epoch may be smaller.
+     * @param epochs Number of passes over the source.
+     * @param prefetch Maximum number of batches that are assembled ahead of the consumer.
+     * @param workerCount Number of worker threads assembling batches.
+     * @param seed Seed of the per-epoch shuffling.
+     */
+    public BatchPipeline(SampleSource source, int batchSize, int epochs, int prefetch, int workerCount, long seed) {
+        if (batchSize < 1 || epochs < 1 || prefetch < 1 || workerCount < 1) {
+            throw new IllegalArgumentException("Batch size, epochs, prefetch and worker count must be at least 1");
+        }
+        this.source = source;
+        this.batchSize = batchSize;
+        this.epochs = epochs;
+        this.queue = new ArrayBlockingQueue<>(prefetch);
+        this.free = new ArrayBlockingQueue<>(prefetch + workerCount + 1);
+
+        AtomicInteger workerNumber = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(workerCount, runnable -> {
+            Thread thread = new Thread(runnable, "batch-pipeline-worker-" + workerNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        this.coordinator = new Thread(() -> produce(seed), "batch-pipeline");
+        this.coordinator.setDaemon(true);
+        this.coordinator.start();
+    }
+
+    /**
+     * Returns the number of batches in every epoch.
+     * @return Batches per epoch.
+     */
+    public int getBatchesPerEpoch() {
+        return (source.size() + batchSize - 1) / batchSize;
+    }
+
+    /**
+     * Returns the number of epochs the pipeline produces.
+     * @return Number of epochs.
+     */
+    public int getEpochs() {
+        return epochs;
+    }
+
+    /**
+     * Shuffles every epoch and queues its batches, blocking while the queue is full.
+     */
+    private void produce(long seed) {
+        Random random = new Random(seed);
+        int[] order = new int[source.size()];
+        try {
+            for (int epoch = 0; epoch < epochs; epoch++) {
+                // the workers of the previous epoch may still read the old order, so shuffle a copy
+                order = order.clone();
+                if (epoch == 0) {
+                    for (int i = 0; i < order.length; i++) {
+                        order[i] = i;
+                    }
+                }
+                for (int i = order.length - 1; i > 0; i--) {
+                    int j = random.nextInt(i + 1);
+                    int swap = order[i];
+                    order[i] = order[j];
+                    order[j] = swap;
+                }
+
+                for (int from = 0; from < order.length; from += batchSize) {
+                    int[] epochOrder = order;
+                    int batchFrom = from;
+                    int batchTo = Math.min(from + batchSize, order.length);
+                    int batchEpoch = epoch;
+                    queue.put(workers.submit(() -> assemble(epochOrder, batchFrom, batchTo, batchEpoch)));
+                }
+            }
+            queue.put(END);
+        } catch (InterruptedException e) {
+            // the pipeline was closed
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Reads the samples order[from, to) into a batch.
+     */
+    private Batch assemble(int[] order, int from, int to, int epoch) {
+        int size = to - from;
+        Batch batch = size == batchSize ? free.poll() : null;
+        if (batch == null) {
+            batch = new Batch(source.getInputSize(), source.getClassCount(), size);
+        }
+
+        int inputSize = source.getInputSize();
+        int classCount = source.getClassCount();
+        double[] outputs = batch.outputs.data;
+        Arrays.fill(outputs, 0.0);
+        for (int k = 0; k < size; k++) {
+            int sample = order[from + k];
+            source.readInput(sample, batch.inputs.data, k * inputSize);
+            int label = source.getLabel(sample);
+            // an out of range label would set the output of a neighbouring sample
+            if (label < 0 || label >= classCount) {
+                throw new IllegalStateException("Label " + label + " of sample " + sample + " is outside of the " + classCount + " classes");
+            }
+            outputs[k * classCount + label] = 1.0;
+        }
+        batch.epoch = epoch;
+        return batch;
+    }
+
+    /**
+     * Returns the next batch, waiting for it to be assembled if needed.
+     * @return Next batch, or null after the last batch of the last epoch.
+     * @throws InterruptedException If the thread was interrupted while waiting.
+     */
+    public Batch next() throws InterruptedException {
+        Future<Batch> next = queue.take();
+        if (next == END) {
+            // keep returning null on further calls
+            queue.put(END);
+            return null;
+        }
+        try {
+            return next.get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Batch could not be assembled", e.getCause());
+        }
+    }
+
+    /**
+     * Hands a batch that is no longer used back to the pipeline, so its matrices can be reused for a later batch.
+     * @param batch Batch returned by next.
+     */
+    public void recycle(Batch batch) {
+        if (batch.inputs.columns == batchSize) {
+            free.offer(batch);
+        }
+    }
+
+    /**
+     * Stops the background threads. Batches that were not consumed yet are discarded and next must not be called
+     * afterwards.
+     */
+    @Override
+    public void close() {
+        coordinator.interrupt();
+        workers.shutdownNow();
+        queue.clear();
+    }
+}
@@ -0,0 +1,500 @@
+package mnist;
+
+import neural.SparseInput;
+import org.jblas.DoubleMatrix;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compact store for binarized samples. Every input is packed into bits of a single contiguous long array and every
+ * label into a byte, so 60000 MNIST samples take a few megabytes instead of a DoubleMatrix pair each. Inputs are only
+ * expanded into matrices when a sample or a batch is requested.
+ *
+ * Samples that are not binary are stored as one byte per input instead, which is multiplied with a fixed scale when
+ * the sample is expanded.
+ *
+ * Slicing and shuffling return views that share the packed storage and only differ in the order of the samples.
+ * A dataset is never modified after it has been loaded, so it can be shared between threads.
+ */
+public class Dataset implements SampleSource {
+
+    private static final int MAGIC = 0x4E4E4453; // "NNDS"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+
+    private final int inputSize; // number of inputs per sample
+    private final int classCount; // number of classes of the one-hot output
+    private final int wordsPerSample; // longs used by the inputs of a single sample
+
+    private final long[] inputs; // packed inputs of all samples, null for byte inputs
+    private final byte[] bytes; // byte inputs of all samples, null for packed inputs
+    private final double scale; // factor applied to byte inputs
+    private final byte[] labels; // labels of all samples
+    private final int[] indices; // samples of this view, in order
+
+    /**
+     * Creates an empty dataset that is filled by the loader using put.
+     * @param size Number of samples.
+     * @param inputSize Number of inputs per sample.
+     * @param classCount Number of classes.
+     */
+    Dataset(int size, int inputSize, int classCount) {
+        this(inputSize, classCount, new long[size * ((inputSize + 63) / 64)], null, 1.0, new byte[size]);
+    }
+
+    /**
+     * Creates an empty dataset storing a byte per input that is filled by the loader using putBytes.
+     * @param size Number of samples.
+     * @param inputSize Number of inputs per sample.
+     * @param classCount Number of classes.
+     * @param scale Factor the bytes are multiplied with when they are expanded.
+     */
+    Dataset(int size, int inputSize, int classCount, double scale) {
+        this(inputSize, classCount, null, new byte[size * inputSize], scale, new byte[size]);
+    }
+
+    private Dataset(int inputSize, int classCount, long[] inputs, byte[] bytes, double scale, byte[] labels) {
+        if (classCount > 256) {
+            throw new IllegalArgumentException("Labels are stored in a byte, got " + classCount + " classes");
+        }
+        this.inputSize = inputSize;
+        this.classCount = classCount;
+        this.wordsPerSample = (inputSize + 63) / 64;
+        this.inputs = inputs;
+        this.bytes = bytes;
+        this.scale = scale;
+        this.labels = labels;
+        this.indices = new int[labels.length];
+        for (int i = 0; i < labels.length; i++) {
+            this.indices[i] = i;
+        }
+    }
+
+    private Dataset(Dataset source, int[] indices) {
+        this.inputSize = source.inputSize;
+        this.classCount = source.classCount;
+        this.wordsPerSample = source.wordsPerSample;
+        this.inputs = source.inputs;
+        this.bytes = source.bytes;
+        this.scale = source.scale;
+        this.labels = source.labels;
+        this.indices = indices;
+    }
+
+    /**
+     * Packs the given sets into a dataset. Inputs above 0.5 are stored as 1, all others as 0, and the label is the
+     * index of the largest expected output.
+     * @param sets Sets to pack.
+     * @return Dataset containing the sets.
+     */
+    public static Dataset fromSets(List<MnistSet> sets) {
+        if (sets.isEmpty()) {
+            throw new IllegalArgumentException("Cannot create a dataset without samples");
+        }
+        Dataset dataset = new Dataset(sets.size(), sets.get(0).getInput().length, sets.get(0).getOutput().length);
+        for (int i = 0; i < sets.size(); i++) {
+            MnistSet set = sets.get(i);
+            dataset.put(i, set.getInput().data, set.getOutput().argmax());
+        }
+        return dataset;
+    }
+
+    /**
+     * Stores a sample of the underlying storage. Only used while loading.
+     * @param sample Index of the sample in the storage.
+     * @param input Input values, above 0.5 is stored as 1.
+     * @param label Label of the sample.
+     */
+    void put(int sample, double[] input, int label) {
+        int offset = sample * wordsPerSample;
+        Arrays.fill(inputs, offset, offset + wordsPerSample, 0L);
+        for (int i = 0; i < inputSize; i++) {
+            if (input[i] > 0.5) {
+                inputs[offset + (i >>> 6)] |= 1L << i;
+            }
+        }
+        labels[sample] = (byte) label;
+    }
+
+    /**
+     * Stores a sample of the underlying byte storage. Only used while loading.
+     * @param sample Index of the sample in the storage.
+     * @param pixels Byte inputs of the sample.
+     * @param label Label of the sample.
+     */
+    void putBytes(int sample, byte[] pixels, int label) {
+        System.arraycopy(pixels, 0, bytes, sample * inputSize, inputSize);
+        labels[sample] = (byte) label;
+    }
+
+    /**
+     * Returns whether the inputs are packed as bits, which means every input is 0 or 1.
+     * @return True for packed inputs, false for byte inputs.
+     */
+    public boolean isBinary() {
+        return inputs != null;
+    }
+
+    /**
+     * Returns the number of samples.
+     * @return Number of samples.
+     */
+    @Override
+    public int size() {
+        return indices.length;
+    }
+
+    /**
+     * Returns the number of inputs per sample.
+     * @return Input size.
+     */
+    @Override
+    public int getInputSize() {
+        return inputSize;
+    }
+
+    /**
+     * Returns the number of classes.
+     * @return Class count.
+     */
+    @Override
+    public int getClassCount() {
+        return classCount;
+    }
+
+    /**
+     * Returns the label of a sample.
+     * @param index Index of the sample in this view.
+     * @return Label of the sample.
+     */
+    @Override
+    public int getLabel(int index) {
+        return labels[indices[index]] & 0xFF;
+    }
+
+    @Override
+    public void readInput(int index, double[] target, int offset) {
+        if (bytes != null) {
+            int start = indices[index] * inputSize;
+            for (int i = 0; i < inputSize; i++) {
+                target[offset + i] = (bytes[start + i] & 0xFF) * scale;
+            }
+            return;
+        }
+        Arrays.fill(target, offset, offset + inputSize, 0.0);
+        int words = indices[index] * wordsPerSample;
+        for (int w = 0; w < wordsPerSample; w++) {
+            long word = inputs[words + w];
+            // only visit the bits that are set
+            while (word != 0) {
+                target[offset + (w << 6) + Long.numberOfTrailingZeros(word)] = 1.0;
+                word &= word - 1;
+            }
+        }
+    }
+
+    /**
+     * Returns whether an input of a sample is set.
+     * @param index Index of the sample in this view.
+     * @param input Index of the input.
+     * @return True if the input is not 0, false if it is 0.
+     */
+    public boolean isSet(int index, int input) {
+        if (bytes != null) {
+            return bytes[indices[index] * inputSize + input] != 0;
+        }
+        return (inputs[indices[index] * wordsPerSample + (input >>> 6)] & (1L << input)) != 0;
+    }
+
+    /**
+     * Expands a sample into a newly created set.
+     * @param index Index of the sample in this view.
+     * @return Set containing the input and expected output.
+     */
+    public MnistSet get(int index) {
+        return new MnistSet(batchInputs(index, index + 1), batchOutputs(index, index + 1));
+    }
+
+    /**
+     * Returns a list view that expands the samples when they are accessed.
+     * @return List of sets.
+     */
+    public List<MnistSet> asList() {
+        return new AbstractList<MnistSet>() {
+            @Override
+            public MnistSet get(int index) {
+                return Dataset.this.get(index);
+            }
+
+            @Override
+            public int size() {
+                return Dataset.this.size();
+            }
+        };
+    }
+
+    /**
+     * Returns a view of the samples [from, to).
+     * @param from First sample, inclusive.
+     * @param to Last sample, exclusive.
+     * @return View of the samples.
+     */
+    public Dataset slice(int from, int to) {
+        return new Dataset(this, Arrays.copyOfRange(indices, from, to));
+    }
+
+    /**
+     * Returns a view with the samples in random order.
+     * @param random Source of randomness.
+     * @return Shuffled view.
+     */
+    public Dataset shuffle(Random random) {
+        int[] shuffled = indices.clone();
+        for (int i = shuffled.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = shuffled[i];
+            shuffled[i] = shuffled[j];
+            shuffled[j] = swap;
+        }
+        return new Dataset(this, shuffled);
+    }
+
+    /**
+     * Expands the inputs of the samples [from, to) into a matrix with one sample per column.
+     * @param from First sample, inclusive.
+     * @param to Last sample, exclusive.
+     * @return Input matrix.
+     */
+    public DoubleMatrix batchInputs(int from, int to) {
+        return batchInputs(from, to, new DoubleMatrix(inputSize, to - from));
+    }
+
+    /**
+     * Expands the inputs of the samples [from, to) into an existing matrix with one sample per column.
+     * @param from First sample, inclusive.
+     * @param to Last sample, exclusive.
+     * @param result Matrix with inputSize rows and to - from columns.
+     * @return The result matrix.
+     */
+    public DoubleMatrix batchInputs(int from, int to, DoubleMatrix result) {
+        for (int k = from; k < to; k++) {
+            readInput(k, result.data, (k - from) * inputSize);
+        }
+        return result;
+    }
+
+    /**
+     * Collects the non-zero inputs of the samples [from, to) into a sparse batch, reading only the bits that are set
+     * for binary samples.
+     * @param from First sample, inclusive.
+     * @param to Last sample, exclusive.
+     * @param result Batch with inputSize rows that is cleared and refilled.
+     * @return The result batch.
+     */
+    public SparseInput batchSparseInputs(int from, int to, SparseInput result) {
+        result.clear();
+        for (int k = from; k < to; k++) {
+            result.startColumn();
+            if (bytes != null) {
+                int start = indices[k] * inputSize;
+                for (int i = 0; i < inputSize; i++) {
+                    if (bytes[start + i] != 0) {
+                        result.add(i, (bytes[start + i] & 0xFF) * scale);
+                    }
+                }
+                continue;
+            }
+            int words = indices[k] * wordsPerSample;
+            for (int w = 0; w < wordsPerSample; w++) {
+                long word = inputs[words + w];
+                while (word != 0) {
+                    result.add((w << 6) + Long.numberOfTrailingZeros(word), 1.0);
+                    word &= word - 1;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Expands the labels of the samples [from, to) into a one-hot matrix with one sample per column.
+     * @param from First sample, inclusive.
+     * @param to Last sample, exclusive.
+     * @return Expected output matrix.
+     */
+    public DoubleMatrix batchOutputs(int from, int to) {
+        return batchOutputs(from, to, new DoubleMatrix(classCount, to - from));
+    }
+
+    /**
+     * Expands the labels of the samples [from, to) into an existing one-hot matrix with one sample per column.
+     * @param from First sample, inclusive.
+     * @param to Last sample, exclusive.
+     * @param result Matrix with classCount rows and to - from columns.
+     * @return The result matrix.
+     */
+    public DoubleMatrix batchOutputs(int from, int to, DoubleMatrix result) {
+        double[] data = result.data;
+        Arrays.fill(data, 0, (to - from) * classCount, 0.0);
+        for (int k = from; k < to; k++) {
+            data[(k - from) * classCount + getLabel(k)] = 1.0;
+        }
+        return result;
+    }
+
+    /**
+     * Saves the samples of this view, in order, to a binary file. All values are little-endian.
+     *
+     *  int     magic "NNDS"
+     *  int     format version
+     *  int     number of samples
+     *  int     inputs per sample
+     *  int     number of classes
+     *  int     1 for packed inputs, 0 for byte inputs
+     *  double  scale of byte inputs
+     *  bytes   labels, padded to a multiple of 8 bytes
+     *  longs   packed inputs, or bytes of byte inputs
+     *
+     * The file is written to a temporary file first and then moved into place.
+     * @param path File the dataset is written to, an existing file is replaced.
+     * @throws IOException If the file cannot be written.
+     */
+    public void save(Path path) throws IOException {
+        int size = size();
+        int labelBytes = (size + 7) & ~7;
+        long inputBytes = isBinary() ? (long) size * wordsPerSample * Long.BYTES : (long) size * inputSize;
+
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + labelBytes).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(size).putInt(inputSize).putInt(classCount)
+                    .putInt(isBinary() ? 1 : 0).putDouble(scale);
+            for (int k = 0; k < size; k++) {
+                header.put(labels[indices[k]]);
+            }
+            header.position(HEADER_SIZE + labelBytes);
+            header.flip();
+            writeFully(channel, header);
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+            int sampleBytes = isBinary() ? wordsPerSample * Long.BYTES : inputSize;
+            for (int k = 0; k < size; k++) {
+                if (buffer.remaining() < sampleBytes) {
+                    buffer.flip();
+                    writeFully(channel, buffer);
+                    buffer.clear();
+                }
+                if (isBinary()) {
+                    int offset = indices[k] * wordsPerSample;
+                    for (int w = 0; w < wordsPerSample; w++) {
+                        buffer.putLong(inputs[offset + w]);
+                    }
+                } else {
+                    buffer.put(bytes, indices[k] * inputSize, inputSize);
+                }
+            }
+            buffer.flip();
+            writeFully(channel, buffer);
+
+            if (channel.size() != HEADER_SIZE + labelBytes + inputBytes) {
+                throw new IOException("Dataset " + temp + " was not written completely");
+            }
+        }
+        try {
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Loads a dataset written by save. The file is memory mapped and bulk copied into the storage arrays.
+     * @param path File the dataset is read from.
+     * @return Loaded dataset.
+     * @throws IOException If the file cannot be read or is invalid.
+     */
+    public static Dataset load(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            // the arrays are filled from a single mapping, which also bounds their sizes
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Dataset " + path + " is too large to be loaded");
+            }
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            ByteBuffer buffer = mapped.order(ByteOrder.LITTLE_ENDIAN);
+            try {
+                if (buffer.getInt() != MAGIC) {
+                    throw new IOException("Bad magic number in dataset " + path);
+                }
+                int version = buffer.getInt();
+                if (version != VERSION) {
+                    throw new IOException("Unsupported dataset version " + version + " in " + path);
+                }
+                int size = buffer.getInt();
+                int inputSize = buffer.getInt();
+                int classCount = buffer.getInt();
+                boolean binary = buffer.getInt() != 0;
+                double scale = buffer.getDouble();
+
+                // check the sizes against the file before allocating anything from them
+                if (size < 0 || inputSize <= 0 || classCount <= 0 || classCount > 256) {
+                    throw new IOException("Bad sizes in dataset " + path + ": " + size + " samples of " + inputSize
+                            + " inputs and " + classCount + " classes");
+                }
+                long labelBytes = ((long) size + 7) & ~7L;
+                long sampleBytes = binary ? (long) ((inputSize + 63) / 64) * Long.BYTES : inputSize;
+                long expectedSize = HEADER_SIZE + labelBytes + size * sampleBytes;
+                if (expectedSize != channel.size()) {
+                    throw new IOException("Dataset " + path + " has " + channel.size() + " bytes, its header describes "
+                            + expectedSize);
+                }
+
+                byte[] labels = new byte[size];
+                buffer.get(labels);
+                for (int k = 0; k < size; k++) {
+                    if ((labels[k] & 0xFF) >= classCount) {
+                        throw new IOException("Label " + (labels[k] & 0xFF) + " of sample " + k + " in dataset " + path
+                                + " is outside of the " + classCount + " classes");
+                    }
+                }
+                buffer.position((int) (HEADER_SIZE + labelBytes));
+
+                long[] inputs = null;
+                byte[] bytes = null;
+                if (binary) {
+                    inputs = new long[size * ((inputSize + 63) / 64)];
+                    buffer.asLongBuffer().get(inputs);
+                    buffer.position(buffer.position() + inputs.length * Long.BYTES);
+                } else {
+                    bytes = new byte[size * inputSize];
+                    buffer.get(bytes);
+                }
+                if (buffer.hasRemaining()) {
+                    throw new IOException("Unexpected data at the end of dataset " + path);
+                }
+                return new Dataset(inputSize, classCount, inputs, bytes, scale, labels);
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Dataset " + path + " is truncated", e);
+            }
+        }
+    }
+}
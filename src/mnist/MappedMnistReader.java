@@ -0,0 +1,234 @@
+package mnist;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a pair of IDX label and image files through memory mapped buffers. The headers are validated once when the
+ * reader is created, after which every sample is decoded straight from the mapped files into caller-supplied arrays.
+ * Nothing is copied onto the heap up front, so the files can be larger than the heap.
+ *
+ * The image file is mapped in chunks of whole images, since a single mapping is limited to 2 GB. Reading is thread
+ * safe because only absolute reads are used on the mapped buffers.
+ */
+public class MappedMnistReader implements Closeable {
+
+    /** the following constants are defined as per the values described at http://yann.lecun.com/exdb/mnist/ **/
+
+    private static final int LABEL_MAGIC = 2049;
+    private static final int IMAGE_MAGIC = 2051;
+
+    private static final int LABEL_OFFSET = 8;
+    private static final int IMAGE_OFFSET = 16;
+
+    private final String labelFileName;
+    private final FileChannel labelChannel;
+    private final FileChannel imageChannel;
+
+    private final int count; // number of samples
+    private final int rows; // rows per image
+    private final int columns; // columns per image
+    private final int imageSize; // bytes per image
+
+    private final MappedByteBuffer labels; // mapped labels, without the header
+    private final MappedByteBuffer[] imageChunks; // mapped images, without the header
+    private final int imagesPerChunk; // number of whole images in every chunk
+
+    /**
+     * Opens and validates the given label and image files.
+     * @param labelFileName IDX file containing the labels.
+     * @param imageFileName IDX file containing the images.
+     * @throws IOException If the files cannot be read or are not matching IDX files.
+     */
+    public MappedMnistReader(String labelFileName, String imageFileName) throws IOException {
+        this.labelFileName = labelFileName;
+        this.labelChannel = FileChannel.open(Paths.get(labelFileName), StandardOpenOption.READ);
+        try {
+            this.imageChannel = FileChannel.open(Paths.get(imageFileName), StandardOpenOption.READ);
+        } catch (IOException e) {
+            labelChannel.close();
+            throw e;
+        }
+
+        try {
+            ByteBuffer labelHeader = readHeader(labelChannel, LABEL_OFFSET);
+            ByteBuffer imageHeader = readHeader(imageChannel, IMAGE_OFFSET);
+
+            if (labelHeader.getInt(0) != LABEL_MAGIC) {
+                throw new IOException("Bad magic number in label file " + labelFileName + "!");
+            }
+            if (imageHeader.getInt(0) != IMAGE_MAGIC) {
+                throw new IOException("Bad magic number in image file " + imageFileName + "!");
+            }
+
+            int numberOfLabels = labelHeader.getInt(4);
+            int numberOfImages = imageHeader.getInt(4);
+            if (numberOfLabels < 0) {
+                throw new IOException("Bad label count " + numberOfLabels + " in " + labelFileName);
+            }
+            if (numberOfImages != numberOfLabels) {
+                throw new IOException("The number of labels and images do not match in " + labelFileName + " and " + imageFileName + "!");
+            }
+
+            this.count = numberOfLabels;
+            this.rows = imageHeader.getInt(8);
+            this.columns = imageHeader.getInt(12);
+            if (rows <= 0 || columns <= 0) {
+                throw new IOException("Bad image size " + rows + "x" + columns + " in " + imageFileName);
+            }
+            try {
+                this.imageSize = Math.multiplyExact(rows, columns);
+            } catch (ArithmeticException e) {
+                throw new IOException("Image size " + rows + "x" + columns + " in " + imageFileName + " is too large", e);
+            }
+
+            if (labelChannel.size() < LABEL_OFFSET + (long) count) {
+                throw new IOException("Label file " + labelFileName + " is truncated!");
+            }
+            // both factors are below 2^31, so the product cannot overflow a long
+            if (imageChannel.size() < IMAGE_OFFSET + (long) count * imageSize) {
+                throw new IOException("Image file " + imageFileName + " is truncated!");
+            }
+
+            this.labels = labelChannel.map(FileChannel.MapMode.READ_ONLY, LABEL_OFFSET, count);
+
+            this.imagesPerChunk = Integer.MAX_VALUE / imageSize;
+            int chunks = count == 0 ? 0 : (count - 1) / imagesPerChunk + 1;
+            this.imageChunks = new MappedByteBuffer[chunks];
+            for (int c = 0; c < chunks; c++) {
+                int images = Math.min(imagesPerChunk, count - c * imagesPerChunk);
+                long position = IMAGE_OFFSET + (long) c * imagesPerChunk * imageSize;
+                this.imageChunks[c] = imageChannel.map(FileChannel.MapMode.READ_ONLY, position, (long) images * imageSize);
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private static ByteBuffer readHeader(FileChannel channel, int size) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(size);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0) {
+                throw new IOException("File is too short for an IDX header!");
+            }
+        }
+        return header;
+    }
+
+    /**
+     * Returns the number of samples.
+     * @return Number of samples.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Returns the number of rows of every image.
+     * @return Rows per image.
+     */
+    public int getRows() {
+        return rows;
+    }
+
+    /**
+     * Returns the number of columns of every image.
+     * @return Columns per image.
+     */
+    public int getColumns() {
+        return columns;
+    }
+
+    /**
+     * Returns the number of pixels of every image.
+     * @return Pixels per image.
+     */
+    public int getImageSize() {
+        return imageSize;
+    }
+
+    /**
+     * Returns the label of a sample.
+     * @param index Index of the sample.
+     * @return Label of the sample.
+     */
+    public int getLabel(int index) {
+        checkIndex(index);
+        return labels.get(index) & 0xFF;
+    }
+
+    /**
+     * Checks that every label names one of the given number of classes. MNIST has 10 classes, but EMNIST splits use
+     * the same format with more.
+     * @param classCount Number of classes.
+     * @throws IOException If a label is not smaller than the class count.
+     */
+    public void checkLabels(int classCount) throws IOException {
+        for (int i = 0; i < count; i++) {
+            int label = labels.get(i) & 0xFF;
+            if (label >= classCount) {
+                throw new IOException("Label " + label + " of sample " + i + " in " + labelFileName
+                        + " is outside of the " + classCount + " classes");
+            }
+        }
+    }
+
+    /**
+     * Copies the raw pixels of a sample into the given array.
+     * @param index Index of the sample.
+     * @param pixels Array of at least getImageSize() bytes.
+     * @return The pixel array.
+     */
+    public byte[] getImage(int index, byte[] pixels) {
+        checkIndex(index);
+        MappedByteBuffer chunk = imageChunks[index / imagesPerChunk];
+        int offset = (index % imagesPerChunk) * imageSize;
+        for (int i = 0; i < imageSize; i++) {
+            pixels[i] = chunk.get(offset + i);
+        }
+        return pixels;
+    }
+
+    /**
+     * Decodes the pixels of a sample as unsigned values between 0 and 255 into the given array.
+     * @param index Index of the sample.
+     * @param pixels Array of at least getImageSize() doubles.
+     * @return The pixel array.
+     */
+    public double[] getPixels(int index, double[] pixels) {
+        checkIndex(index);
+        MappedByteBuffer chunk = imageChunks[index / imagesPerChunk];
+        int offset = (index % imagesPerChunk) * imageSize;
+        for (int i = 0; i < imageSize; i++) {
+            pixels[i] = chunk.get(offset + i) & 0xFF; //convert to unsigned
+        }
+        return pixels;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("Sample " + index + " is outside of 0.." + (count - 1));
+        }
+    }
+
+    /**
+     * Closes the files. Samples must not be read after the reader was closed.
+     * @throws IOException If closing fails.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            labelChannel.close();
+        } finally {
+            if (imageChannel != null) {
+                imageChannel.close();
+            }
+        }
+    }
+}
@@ -2,38 +2,31 @@ package mnist;
 
 import org.jblas.DoubleMatrix;
 
-import java.io.ByteArrayOutputStream;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
+import java.util.stream.IntStream;
 
 public class MnistLoader {
 
     /** the following constants are defined as per the values described at http://yann.lecun.com/exdb/mnist/ **/
 
-    private static final int OFFSET_SIZE = 4; //in bytes
-
-    private static final int LABEL_MAGIC = 2049;
-    private static final int IMAGE_MAGIC = 2051;
-
-    private static final int NUMBER_ITEMS_OFFSET = 4;
-    private static final int ITEMS_SIZE = 4;
-
-    private static final int NUMBER_OF_ROWS_OFFSET = 8;
-    private static final int ROWS_SIZE = 4;
     public static final int ROWS = 28;
-
-    private static final int NUMBER_OF_COLUMNS_OFFSET = 12;
-    private static final int COLUMNS_SIZE = 4;
     public static final int COLUMNS = 28;
+    public static final int CLASS_COUNT = 10;
 
-    private static final int IMAGE_OFFSET = 16;
     private static final int IMAGE_SIZE = ROWS * COLUMNS;
 
+    private static final long HASH_CHUNK_SIZE = 1 << 30; // bytes mapped at once when hashing a file
+
     /**
      * Gets the expected neural network output for the specified digit.
      *
@@ -46,26 +39,11 @@ public class MnistLoader {
         return output;
     }
 
-    /**
-     * Converts the bytes from the file to a usable array of image data.
-     *
-     * @param bytes Byte array that was loaded from the file.
-     * @return Array of doubles representing the processed image.
-     */
-    private double[] getInputFor(byte[] bytes) {
-        double[] imageData = new double[bytes.length];
-        for(int i = 0; i < imageData.length; i++) {
-            imageData[i] = bytes[i] & 0xFF; //convert to unsigned
-        }
-        imageData = otsu(imageData);
-        return imageData;
-    }
-
     /**
      * Run the Otsu Threshold algorithm to convert gray scale image to black and white.
      * NOTE: This can be changes to eliminate noise in other ways.
      */
-    private static double[] otsu(double[] input) {
+    static double[] otsu(double[] input) {
         int[] histogram = new int[256];
 
         for(double datum : input) {
@@ -125,6 +103,7 @@ public class MnistLoader {
 
     /**
      * Loads the MNIST data from the specified file and returns the data in a List form.
+     * The files are read through a MappedMnistReader, so only the decoded images are held on the heap.
      *
      * @return List of Image Data objects that were loaded from the specified MNIST files.
      * @throws IOException
@@ -132,78 +111,127 @@ public class MnistLoader {
     public List<MnistSet> create(String labelFileName, String imageFileName) throws IOException {
         List<MnistSet> pairs = new ArrayList<>();
 
-        ByteArrayOutputStream labelBuffer = new ByteArrayOutputStream();
-        ByteArrayOutputStream imageBuffer = new ByteArrayOutputStream();
-
-        InputStream labelInputStream = new FileInputStream(labelFileName);
-        InputStream imageInputStream = new FileInputStream(imageFileName);
-
-        int read;
-        byte[] buffer = new byte[16384];
-
-        while((read = labelInputStream.read(buffer, 0, buffer.length)) != -1) {
-            labelBuffer.write(buffer, 0, read);
-        }
-
-        labelBuffer.flush();
+        try (MappedMnistReader reader = new MappedMnistReader(labelFileName, imageFileName)) {
+            if (reader.getRows() != ROWS || reader.getColumns() != COLUMNS) {
+                throw new IOException("Bad image. Rows and columns do not equal " + ROWS + "x" + COLUMNS);
+            }
+            reader.checkLabels(CLASS_COUNT);
 
-        while((read = imageInputStream.read(buffer, 0, buffer.length)) != -1) {
-            imageBuffer.write(buffer, 0, read);
+            for (int i = 0; i < reader.size(); i++) {
+                // add the pair to the array input/output arrays
+                DoubleMatrix input = new DoubleMatrix(otsu(reader.getPixels(i, new double[IMAGE_SIZE])));
+                DoubleMatrix expected = new DoubleMatrix(getOutputFor(reader.getLabel(i)));
+                pairs.add(new MnistSet(input, expected));
+            }
         }
 
-        imageBuffer.flush();
+        //System.out.println("Loaded " + pairs.size() + " images.");
 
-        byte[] labelBytes = labelBuffer.toByteArray();
-        byte[] imageBytes = imageBuffer.toByteArray();
+        return pairs;
+    }
 
-        byte[] labelMagic = Arrays.copyOfRange(labelBytes, 0, OFFSET_SIZE);
-        byte[] imageMagic = Arrays.copyOfRange(imageBytes, 0, OFFSET_SIZE);
+    /**
+     * Loads the MNIST data from the specified files into a compact Dataset holding the thresholded images as bits.
+     *
+     * @return Dataset containing the images loaded from the specified MNIST files.
+     * @throws IOException
+     */
+    public Dataset createDataset(String labelFileName, String imageFileName) throws IOException {
+        return createDataset(labelFileName, imageFileName, Preprocessing.OTSU, null);
+    }
 
-        if(ByteBuffer.wrap(labelMagic).getInt() != LABEL_MAGIC)  {
-            labelInputStream.close();
-            imageInputStream.close();
-            throw new IOException("Bad magic number in label file!");
+    /**
+     * Loads the MNIST data from the specified files into a compact Dataset using the given preprocessing. The images
+     * are decoded and preprocessed in parallel on all cores.
+     *
+     * If a cache directory is given, the preprocessed dataset is stored in it under a key made of the SHA-256 hashes
+     * of both files and the preprocessing, and later calls with the same files and preprocessing load it from there
+     * without decoding the images again.
+     *
+     * @param preprocessing Preprocessing applied to every image.
+     * @param cacheDirectory Directory of the preprocessing cache, or null to disable caching.
+     * @return Dataset containing the images loaded from the specified MNIST files.
+     * @throws IOException
+     */
+    public Dataset createDataset(String labelFileName, String imageFileName, Preprocessing preprocessing, Path cacheDirectory) throws IOException {
+        Path cacheFile = null;
+        if (cacheDirectory != null) {
+            cacheFile = cacheDirectory.resolve(cacheKey(labelFileName, imageFileName, preprocessing) + ".dataset");
+            if (Files.exists(cacheFile)) {
+                try {
+                    return Dataset.load(cacheFile);
+                } catch (IOException e) {
+                    // a damaged cache entry is simply rebuilt
+                    System.err.println("Ignoring unreadable cache entry " + cacheFile + ": " + e.getMessage());
+                }
+            }
         }
 
-        if(ByteBuffer.wrap(imageMagic).getInt() != IMAGE_MAGIC) {
-            labelInputStream.close();
-            imageInputStream.close();
-            throw new IOException("Bad magic number in image file!");
+        Dataset dataset;
+        try (MappedMnistReader reader = new MappedMnistReader(labelFileName, imageFileName)) {
+            if (reader.getRows() != ROWS || reader.getColumns() != COLUMNS) {
+                throw new IOException("Bad image. Rows and columns do not equal " + ROWS + "x" + COLUMNS);
+            }
+            reader.checkLabels(CLASS_COUNT);
+
+            if (preprocessing.isBinary()) {
+                Dataset binary = new Dataset(reader.size(), IMAGE_SIZE, CLASS_COUNT);
+                ThreadLocal<double[]> pixels = ThreadLocal.withInitial(() -> new double[IMAGE_SIZE]);
+                // every sample is stored in its own words, so the samples can be written concurrently
+                IntStream.range(0, reader.size()).parallel().forEach(i ->
+                        binary.put(i, preprocessing.apply(reader.getPixels(i, pixels.get())), reader.getLabel(i)));
+                dataset = binary;
+            } else {
+                Dataset scaled = new Dataset(reader.size(), IMAGE_SIZE, CLASS_COUNT, preprocessing.getScale());
+                ThreadLocal<byte[]> pixels = ThreadLocal.withInitial(() -> new byte[IMAGE_SIZE]);
+                IntStream.range(0, reader.size()).parallel().forEach(i ->
+                        scaled.putBytes(i, reader.getImage(i, pixels.get()), reader.getLabel(i)));
+                dataset = scaled;
+            }
         }
 
-        int numberOfLabels = ByteBuffer.wrap(Arrays.copyOfRange(labelBytes, NUMBER_ITEMS_OFFSET, NUMBER_ITEMS_OFFSET + ITEMS_SIZE)).getInt();
-        int numberOfImages = ByteBuffer.wrap(Arrays.copyOfRange(imageBytes, NUMBER_ITEMS_OFFSET, NUMBER_ITEMS_OFFSET + ITEMS_SIZE)).getInt();
-
-        if(numberOfImages != numberOfLabels) {
-            labelInputStream.close();
-            imageInputStream.close();
-            throw new IOException("The number of labels and images do not match!");
+        if (cacheFile != null) {
+            Files.createDirectories(cacheDirectory);
+            dataset.save(cacheFile);
         }
+        return dataset;
+    }
 
-        int numRows = ByteBuffer.wrap(Arrays.copyOfRange(imageBytes, NUMBER_OF_ROWS_OFFSET, NUMBER_OF_ROWS_OFFSET + ROWS_SIZE)).getInt();
-        int numCols = ByteBuffer.wrap(Arrays.copyOfRange(imageBytes, NUMBER_OF_COLUMNS_OFFSET, NUMBER_OF_COLUMNS_OFFSET + COLUMNS_SIZE)).getInt();
-
-        if(numRows != ROWS && numCols != COLUMNS) {
-            labelInputStream.close();
-            imageInputStream.close();
-            throw new IOException("Bad image. Rows and columns do not equal " + ROWS + "x" + COLUMNS);
+    /**
+     * Computes the cache key of a pair of MNIST files and a preprocessing.
+     */
+    private static String cacheKey(String labelFileName, String imageFileName, Preprocessing preprocessing) throws IOException {
+        MessageDigest digest = sha256();
+        digest.update(hash(labelFileName));
+        digest.update(hash(imageFileName));
+        digest.update(preprocessing.name().getBytes(StandardCharsets.UTF_8));
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest()) {
+            key.append(String.format("%02x", b & 0xFF));
         }
+        return key.toString();
+    }
 
-        for(int i = 0; i < numberOfLabels; i++) {
-            int label = labelBytes[OFFSET_SIZE + ITEMS_SIZE + i];
-            byte[] byteData = Arrays.copyOfRange(imageBytes, (i * IMAGE_SIZE) + IMAGE_OFFSET, (i * IMAGE_SIZE) + IMAGE_OFFSET + IMAGE_SIZE);
-
-            // add the pair to the array input/output arrays
-            DoubleMatrix input = new DoubleMatrix(getInputFor(byteData));
-            DoubleMatrix expected = new DoubleMatrix(getOutputFor(label));
-            pairs.add(new MnistSet(input, expected));
+    /**
+     * Computes the SHA-256 hash of a file, reading it through memory mapped chunks.
+     */
+    private static byte[] hash(String fileName) throws IOException {
+        MessageDigest digest = sha256();
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            long size = channel.size();
+            for (long position = 0; position < size; position += HASH_CHUNK_SIZE) {
+                digest.update(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(HASH_CHUNK_SIZE, size - position)));
+            }
         }
+        return digest.digest();
+    }
 
-        labelInputStream.close();
-        imageInputStream.close();
-
-        //System.out.println("Loaded " + pairs.size() + " images.");
-
-        return pairs;
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
     }
 }
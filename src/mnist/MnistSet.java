@@ -2,6 +2,8 @@ package mnist;
 
 import org.jblas.DoubleMatrix;
 
+import java.util.List;
+
 public class MnistSet {
     private final DoubleMatrix input; // input of the training set
     private final DoubleMatrix output; // expected output given the input
@@ -18,4 +20,48 @@ public class MnistSet {
     public DoubleMatrix getOutput() {
         return this.output;
     }
+
+    /**
+     * Stacks the inputs of the given sets into a matrix with one set per column.
+     * @param sets Sets to stack.
+     * @return Matrix containing all inputs.
+     */
+    public static DoubleMatrix stackInputs(List<MnistSet> sets) {
+        return stackInputs(sets, new DoubleMatrix(sets.get(0).getInput().rows, sets.size()));
+    }
+
+    /**
+     * Stacks the inputs of the given sets into an existing matrix with one set per column.
+     * @param sets Sets to stack.
+     * @param stacked Matrix with one column per set that receives the inputs.
+     * @return The stacked matrix.
+     */
+    public static DoubleMatrix stackInputs(List<MnistSet> sets, DoubleMatrix stacked) {
+        for (int i = 0; i < sets.size(); i++) {
+            stacked.putColumn(i, sets.get(i).getInput());
+        }
+        return stacked;
+    }
+
+    /**
+     * Stacks the expected outputs of the given sets into a matrix with one set per column.
+     * @param sets Sets to stack.
+     * @return Matrix containing all expected outputs.
+     */
+    public static DoubleMatrix stackOutputs(List<MnistSet> sets) {
+        return stackOutputs(sets, new DoubleMatrix(sets.get(0).getOutput().rows, sets.size()));
+    }
+
+    /**
+     * Stacks the expected outputs of the given sets into an existing matrix with one set per column.
+     * @param sets Sets to stack.
+     * @param stacked Matrix with one column per set that receives the expected outputs.
+     * @return The stacked matrix.
+     */
+    public static DoubleMatrix stackOutputs(List<MnistSet> sets, DoubleMatrix stacked) {
+        for (int i = 0; i < sets.size(); i++) {
+            stacked.putColumn(i, sets.get(i).getOutput());
+        }
+        return stacked;
+    }
 }
@@ -0,0 +1,47 @@
+package mnist;
+
+/**
+ * Preprocessing applied to the gray scale pixels (0 to 255) of an image when it is loaded.
+ */
+public enum Preprocessing {
+    /** Binarize every image with its Otsu threshold, pixels become 0 or 1. */
+    OTSU,
+    /** Scale the pixels to values between 0 and 1. */
+    NORMALIZE,
+    /** Keep the pixels as values between 0 and 255. */
+    NONE;
+
+    /**
+     * Returns whether the preprocessed pixels are always 0 or 1.
+     * @return True if the pixels are binary, false otherwise.
+     */
+    public boolean isBinary() {
+        return this == OTSU;
+    }
+
+    /**
+     * Returns the factor the raw pixels are multiplied with, for preprocessing that is not binary.
+     * @return Scale of the raw pixels.
+     */
+    public double getScale() {
+        return this == NORMALIZE ? 1.0 / 255.0 : 1.0;
+    }
+
+    /**
+     * Preprocesses the raw pixels of an image in place.
+     * @param pixels Pixels between 0 and 255.
+     * @return The pixel array.
+     */
+    public double[] apply(double[] pixels) {
+        if (isBinary()) {
+            return MnistLoader.otsu(pixels);
+        }
+        double scale = getScale();
+        if (scale != 1.0) {
+            for (int i = 0; i < pixels.length; i++) {
+                pixels[i] *= scale;
+            }
+        }
+        return pixels;
+    }
+}
@@ -0,0 +1,41 @@
+package mnist;
+
+/**
+ * Source of labelled samples that can be read by index. Implementations must allow concurrent reads from multiple
+ * threads, since the batch pipeline assembles batches on several worker threads at once.
+ */
+public interface SampleSource {
+
+    /**
+     * Returns the number of samples.
+     * @return Number of samples.
+     */
+    int size();
+
+    /**
+     * Returns the number of inputs per sample.
+     * @return Input size.
+     */
+    int getInputSize();
+
+    /**
+     * Returns the number of classes.
+     * @return Class count.
+     */
+    int getClassCount();
+
+    /**
+     * Returns the label of a sample.
+     * @param index Index of the sample.
+     * @return Label of the sample.
+     */
+    int getLabel(int index);
+
+    /**
+     * Writes the preprocessed input of a sample into the given array.
+     * @param index Index of the sample.
+     * @param target Array receiving the input.
+     * @param offset Position in the array where the input starts.
+     */
+    void readInput(int index, double[] target, int offset);
+}
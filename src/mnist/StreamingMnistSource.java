@@ -0,0 +1,75 @@
+package mnist;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Sample source that decodes and thresholds every image from the memory mapped MNIST files when it is read, so the
+ * data set never has to be held in memory.
+ */
+public class StreamingMnistSource implements SampleSource, Closeable {
+
+    private final MappedMnistReader reader;
+    private final int classCount; // number of classes, every label is smaller
+    private final ThreadLocal<double[]> pixels; // decoding buffer of every reading thread
+
+    /**
+     * Opens the given MNIST files with the 10 classes of MNIST.
+     * @param labelFileName IDX file containing the labels.
+     * @param imageFileName IDX file containing the images.
+     * @throws IOException If the files cannot be read, are not matching IDX files or hold a label above 9.
+     */
+    public StreamingMnistSource(String labelFileName, String imageFileName) throws IOException {
+        this(labelFileName, imageFileName, MnistLoader.CLASS_COUNT);
+    }
+
+    /**
+     * Opens the given files in the MNIST format, such as an EMNIST split.
+     * @param labelFileName IDX file containing the labels.
+     * @param imageFileName IDX file containing the images.
+     * @param classCount Number of classes, every label has to be smaller.
+     * @throws IOException If the files cannot be read, are not matching IDX files or hold a label outside the classes.
+     */
+    public StreamingMnistSource(String labelFileName, String imageFileName, int classCount) throws IOException {
+        this.reader = new MappedMnistReader(labelFileName, imageFileName);
+        try {
+            reader.checkLabels(classCount);
+        } catch (IOException e) {
+            reader.close();
+            throw e;
+        }
+        this.classCount = classCount;
+        this.pixels = ThreadLocal.withInitial(() -> new double[reader.getImageSize()]);
+    }
+
+    @Override
+    public int size() {
+        return reader.size();
+    }
+
+    @Override
+    public int getInputSize() {
+        return reader.getImageSize();
+    }
+
+    @Override
+    public int getClassCount() {
+        return classCount;
+    }
+
+    @Override
+    public int getLabel(int index) {
+        return reader.getLabel(index);
+    }
+
+    @Override
+    public void readInput(int index, double[] target, int offset) {
+        double[] image = MnistLoader.otsu(reader.getPixels(index, pixels.get()));
+        System.arraycopy(image, 0, target, offset, image.length);
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
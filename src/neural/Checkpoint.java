@@ -0,0 +1,256 @@
+package neural;
+
+import activation.ActivationFunction;
+import org.jblas.DoubleMatrix;
+import org.jblas.FloatMatrix;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Binary checkpoint format of a network. All values are little-endian.
+ *
+ *  int     magic "NNCP"
+ *  int     format version
+ *  long    generation, even while the weights are consistent and odd while a ParameterStore writes them (version 2)
+ *  int     number of layers
+ *  per layer:
+ *      int     neuron count
+ *      byte    1 if the layer has a bias, 0 otherwise
+ *      short   length of the activation class name, 0 for the input layer
+ *      bytes   activation class name in UTF-8
+ *  padding up to a multiple of 8 bytes
+ *  per layer except the input layer:
+ *      doubles weights in column-major order
+ *      doubles biases
+ *
+ * The activation functions are recreated through their no-argument constructor. Version 1 checkpoints, which have no
+ * generation, are still read.
+ */
+final class Checkpoint {
+
+    private static final int MAGIC = 0x4E4E4350;
+    private static final int VERSION = 2;
+    static final int GENERATION_OFFSET = 8; // position of the generation in version 2 checkpoints
+
+    private Checkpoint() {}
+
+    /**
+     * Writes the network to the given file. The checkpoint is written to a temporary file first and then moved into
+     * place, so an existing checkpoint is never left half written.
+     */
+    static void save(List<NeuronLayer> layers, Path path) throws IOException {
+        byte[] header = header(layers);
+        long weightCount = parameterCount(layers);
+
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(header));
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+            for (NeuronLayer layer : layers) {
+                if (layer.isInputLayer()) {
+                    continue;
+                }
+                // single precision layers are widened while writing
+                if (layer.isSinglePrecision()) {
+                    write(channel, buffer, layer.singleWeights);
+                    write(channel, buffer, layer.singleBias);
+                } else {
+                    write(channel, buffer, layer.weights);
+                    write(channel, buffer, layer.bias);
+                }
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            if (channel.size() != header.length + weightCount * Double.BYTES) {
+                throw new IOException("Checkpoint " + temp + " was not written completely");
+            }
+            channel.force(true);
+        }
+        try {
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Encodes the layer description that precedes the weights, padded to a multiple of 8 bytes.
+     */
+    static byte[] header(List<NeuronLayer> layers) throws IOException {
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(headerBytes);
+        writeInt(header, MAGIC);
+        writeInt(header, VERSION);
+        header.writeLong(0L); // generation, the same in both byte orders
+        writeInt(header, layers.size());
+        for (NeuronLayer layer : layers) {
+            if (!layer.isInitialized()) {
+                throw new IllegalStateException("Network has not been finalized");
+            }
+            writeInt(header, layer.neuronCount);
+            header.writeByte(layer.hasBias ? 1 : 0);
+            byte[] name = layer.activation == null ? new byte[0] : layer.activation.getClass().getName().getBytes(StandardCharsets.UTF_8);
+            header.writeByte(name.length & 0xFF);
+            header.writeByte((name.length >>> 8) & 0xFF);
+            header.write(name);
+        }
+        while (header.size() % 8 != 0) {
+            header.writeByte(0);
+        }
+        return headerBytes.toByteArray();
+    }
+
+    /**
+     * Returns the number of weights and biases of all layers except the input layer.
+     */
+    static long parameterCount(List<NeuronLayer> layers) {
+        long count = 0;
+        for (NeuronLayer layer : layers) {
+            if (!layer.isInputLayer()) {
+                count += (long) layer.neuronCount * layer.previousLayer.neuronCount + layer.neuronCount;
+            }
+        }
+        return count;
+    }
+
+    private static void writeInt(DataOutputStream out, int value) throws IOException {
+        out.writeInt(Integer.reverseBytes(value));
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer, DoubleMatrix matrix) throws IOException {
+        for (int i = 0; i < matrix.length; i++) {
+            if (buffer.remaining() < Double.BYTES) {
+                flush(channel, buffer);
+            }
+            buffer.putDouble(matrix.data[i]);
+        }
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer, FloatMatrix matrix) throws IOException {
+        for (int i = 0; i < matrix.length; i++) {
+            if (buffer.remaining() < Double.BYTES) {
+                flush(channel, buffer);
+            }
+            buffer.putDouble(matrix.data[i]);
+        }
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Reads a network from the given file. The file is memory mapped and the weights are bulk copied from the mapping
+     * into the matrices without going through intermediate arrays. A checkpoint that a ParameterStore updates in place
+     * is copied between two of its updates.
+     */
+    static NeuronNetwork load(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            // validates the sizes of the layers against the size of the file
+            ParameterStore store = new ParameterStore(mapped, false, path);
+            NeuronNetwork network = readHeader(mapped.duplicate().order(ByteOrder.LITTLE_ENDIAN), path);
+            for (NeuronLayer layer : network.getLayers()) {
+                if (layer.isInputLayer()) {
+                    layer.bias = DoubleMatrix.zeros(layer.neuronCount);
+                    layer.weights = null;
+                } else {
+                    layer.weights = new DoubleMatrix(layer.neuronCount, layer.previousLayer.neuronCount);
+                    layer.bias = new DoubleMatrix(layer.neuronCount);
+                }
+            }
+            store.load(network);
+            return network;
+        }
+    }
+
+    /**
+     * Reads the layer description and leaves the buffer at the first weight. The layers of the returned network are
+     * linked but have no weights or biases yet.
+     */
+    static NeuronNetwork readHeader(ByteBuffer buffer, Path path) throws IOException {
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException("Bad magic number in checkpoint " + path);
+        }
+        int version = buffer.getInt();
+        if (version == VERSION) {
+            buffer.getLong();
+        } else if (version != 1) {
+            throw new IOException("Unsupported checkpoint version " + version + " in " + path);
+        }
+
+        NeuronNetwork network = new NeuronNetwork();
+        int layerCount = buffer.getInt();
+        // every layer takes at least 7 bytes of the header
+        if (layerCount < 1 || layerCount > buffer.remaining() / 7) {
+            throw new IOException("Invalid layer count " + layerCount + " in checkpoint " + path);
+        }
+        long parameterBytes = 0;
+        int previousCount = 0;
+        for (int l = 0; l < layerCount; l++) {
+            int neuronCount = buffer.getInt();
+            if (neuronCount <= 0) {
+                throw new IOException("Invalid neuron count " + neuronCount + " of layer " + l + " in checkpoint " + path);
+            }
+            boolean hasBias = buffer.get() != 0;
+            int nameLength = buffer.getShort() & 0xFFFF;
+            if (nameLength > buffer.remaining()) {
+                throw new IOException("Checkpoint " + path + " is truncated");
+            }
+            byte[] name = new byte[nameLength];
+            buffer.get(name);
+            if (l > 0) {
+                try {
+                    long count = Math.addExact(Math.multiplyExact((long) neuronCount, previousCount), neuronCount);
+                    parameterBytes = Math.addExact(parameterBytes, Math.multiplyExact(count, (long) Double.BYTES));
+                } catch (ArithmeticException e) {
+                    throw new IOException("Layer sizes of checkpoint " + path + " overflow", e);
+                }
+            }
+            previousCount = neuronCount;
+            ActivationFunction activation = name.length == 0 ? null : createActivation(new String(name, StandardCharsets.UTF_8));
+            network.addLayer(new NeuronLayer(activation, neuronCount, hasBias));
+        }
+        int weightsStart = (buffer.position() + 7) & ~7;
+        if (weightsStart > buffer.limit() || parameterBytes > buffer.limit() - weightsStart) {
+            throw new IOException("Checkpoint " + path + " is truncated, its layers need " + parameterBytes + " bytes of weights");
+        }
+        buffer.position(weightsStart);
+        return network;
+    }
+
+    /**
+     * Creates the activation function of the given class. The class is checked before it is initialized or
+     * instantiated, so a checkpoint can only run the constructor of an activation function.
+     */
+    private static ActivationFunction createActivation(String className) throws IOException {
+        try {
+            Class<?> type = Class.forName(className, false, Checkpoint.class.getClassLoader());
+            if (!ActivationFunction.class.isAssignableFrom(type)) {
+                throw new IOException("Class " + className + " in checkpoint is not an activation function");
+            }
+            return type.asSubclass(ActivationFunction.class).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IOException("Cannot create activation function " + className, e);
+        }
+    }
+}
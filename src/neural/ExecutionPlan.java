@@ -0,0 +1,167 @@
+package neural;
+
+import activation.ActivationFunction;
+import org.jblas.DoubleMatrix;
+import org.jblas.FloatMatrix;
+
+import java.util.List;
+
+/**
+ * Flat feedforward schedule of a network, compiled from its linked layers. Every hidden and output layer becomes one
+ * step that is evaluated exactly once per feedforward, in order, with the output of a step passed on as the input of
+ * the next one. The steps hold the activation function and the workspace buffers of their layer, so running the plan
+ * is a single loop without any lookups.
+ *
+ * The steps still store the input, z and a of every batch in their layer, where Back Propagation reads them. A plan
+ * is only valid for the workspace and precision it was compiled for, the network compiles a new one when they change.
+ */
+final class ExecutionPlan {
+
+    /**
+     * Evaluation of a single layer.
+     */
+    private static final class Step {
+        final NeuronLayer layer;
+        final ActivationFunction activation;
+        final int neuronCount;
+        final int workspaceColumns; // batch size the buffers below are allocated for, 0 without a workspace
+        final DoubleMatrix weightedOutputBuffer;
+        final DoubleMatrix outputBuffer;
+        final FloatMatrix singleWeightedOutputBuffer;
+        final FloatMatrix singleOutputBuffer;
+
+        Step(NeuronLayer layer) {
+            this.layer = layer;
+            this.activation = layer.activation;
+            this.neuronCount = layer.neuronCount;
+            this.workspaceColumns = layer.workspaceColumns;
+            this.weightedOutputBuffer = layer.weightedOutputBuffer;
+            this.outputBuffer = layer.outputBuffer;
+            this.singleWeightedOutputBuffer = layer.singleWeightedOutputBuffer;
+            this.singleOutputBuffer = layer.singleOutputBuffer;
+        }
+
+        /**
+         * Activates the layer, a = f(w * input + b). The bias is added to every column of a batch.
+         */
+        DoubleMatrix run(DoubleMatrix input) {
+            DoubleMatrix weightedOutput;
+            DoubleMatrix output;
+            if (input.columns == workspaceColumns && weightedOutputBuffer != null) {
+                // write into the preallocated buffers
+                weightedOutput = layer.weights.mmuli(input, weightedOutputBuffer).addiColumnVector(layer.bias);
+                output = activation.fnInto(weightedOutput, outputBuffer);
+            } else {
+                weightedOutput = layer.weights.mmul(input).addiColumnVector(layer.bias); // n(l) = w(l) * a(l-1) + b(l)
+                output = activation.fn(weightedOutput); // a(l) = f(n(l))
+            }
+            layer.input = input;
+            layer.sparseInput = null;
+            layer.weightedOutput = weightedOutput;
+            layer.output = output;
+            return output;
+        }
+
+        /**
+         * Activates the layer on a sparse batch, only the weight columns of the non-zero inputs contribute.
+         */
+        DoubleMatrix run(SparseInput input) {
+            int columns = input.getColumns();
+            boolean workspace = columns == workspaceColumns && weightedOutputBuffer != null;
+            DoubleMatrix product = workspace ? weightedOutputBuffer : new DoubleMatrix(neuronCount, columns);
+            DoubleMatrix weightedOutput = MatrixKernels.mmuli(layer.weights, input, product).addiColumnVector(layer.bias);
+            DoubleMatrix output = workspace ? activation.fnInto(weightedOutput, outputBuffer) : activation.fn(weightedOutput);
+            layer.input = null;
+            layer.sparseInput = input;
+            layer.weightedOutput = weightedOutput;
+            layer.output = output;
+            return output;
+        }
+
+        /**
+         * Single precision version of run on the float weights of the layer.
+         */
+        FloatMatrix run(FloatMatrix input) {
+            FloatMatrix weightedOutput;
+            FloatMatrix output;
+            if (input.columns == workspaceColumns && singleWeightedOutputBuffer != null) {
+                weightedOutput = layer.singleWeights.mmuli(input, singleWeightedOutputBuffer).addiColumnVector(layer.singleBias);
+                output = activation.fnInto(weightedOutput, singleOutputBuffer);
+            } else {
+                weightedOutput = layer.singleWeights.mmul(input).addiColumnVector(layer.singleBias);
+                output = activation.fnInto(weightedOutput, new FloatMatrix(neuronCount, input.columns));
+            }
+            layer.singleInput = input;
+            layer.singleWeightedOutput = weightedOutput;
+            layer.singleOutput = output;
+            return output;
+        }
+    }
+
+    private final NeuronLayer inputLayer;
+    private final Step[] steps;
+
+    /**
+     * Compiles the plan of a network.
+     * @param layers Layers of the network, starting with the input layer.
+     */
+    ExecutionPlan(List<NeuronLayer> layers) {
+        if (layers.size() < 2) {
+            throw new IllegalStateException("Network needs at least an input and an output layer");
+        }
+        this.inputLayer = layers.get(0);
+        this.steps = new Step[layers.size() - 1];
+        for (int s = 0; s < steps.length; s++) {
+            steps[s] = new Step(layers.get(s + 1));
+        }
+    }
+
+    /**
+     * Feeds a batch through all layers.
+     * @param input Input with one sample per column.
+     * @return Output of the output layer.
+     */
+    DoubleMatrix run(DoubleMatrix input) {
+        // the input layer only passes its input on
+        inputLayer.input = input;
+        inputLayer.output = input;
+        inputLayer.weightedOutput = null;
+        DoubleMatrix activation = input;
+        for (Step step : steps) {
+            activation = step.run(activation);
+        }
+        return activation;
+    }
+
+    /**
+     * Feeds a sparse batch through all layers, the first hidden layer holds the sparse batch instead of a dense input.
+     * @param input Sparse inputs with one sample per column.
+     * @return Output of the output layer.
+     */
+    DoubleMatrix run(SparseInput input) {
+        inputLayer.input = null;
+        inputLayer.output = null;
+        inputLayer.weightedOutput = null;
+        DoubleMatrix activation = steps[0].run(input);
+        for (int s = 1; s < steps.length; s++) {
+            activation = steps[s].run(activation);
+        }
+        return activation;
+    }
+
+    /**
+     * Single precision version of run.
+     * @param input Input with one sample per column.
+     * @return Output of the output layer.
+     */
+    FloatMatrix run(FloatMatrix input) {
+        inputLayer.singleInput = input;
+        inputLayer.singleOutput = input;
+        inputLayer.singleWeightedOutput = null;
+        FloatMatrix activation = input;
+        for (Step step : steps) {
+            activation = step.run(activation);
+        }
+        return activation;
+    }
+}
@@ -0,0 +1,189 @@
+package neural;
+
+import org.jblas.DoubleMatrix;
+import org.jblas.FloatMatrix;
+import org.jblas.NativeBlas;
+
+import java.util.Arrays;
+
+/**
+ * In-place matrix kernels that write into preallocated result matrices, used to avoid temporary matrices such as
+ * explicit transposes in the training loop.
+ */
+public final class MatrixKernels {
+
+    private MatrixKernels() {}
+
+    /**
+     * Computes c = alpha * a * b' + beta * c without creating the transpose of b.
+     * @param alpha Scale of the product.
+     * @param a Left matrix of size m x k.
+     * @param b Right matrix of size n x k.
+     * @param beta Scale of the existing values of c.
+     * @param c Result matrix of size m x n.
+     * @return The result matrix.
+     */
+    public static DoubleMatrix gemmNT(double alpha, DoubleMatrix a, DoubleMatrix b, double beta, DoubleMatrix c) {
+        NativeBlas.dgemm('N', 'T', a.rows, b.rows, a.columns, alpha,
+                a.data, 0, a.rows, b.data, 0, b.rows, beta, c.data, 0, c.rows);
+        return c;
+    }
+
+    /**
+     * Computes c = alpha * a' * b + beta * c without creating the transpose of a.
+     * @param alpha Scale of the product.
+     * @param a Left matrix of size k x m.
+     * @param b Right matrix of size k x n.
+     * @param beta Scale of the existing values of c.
+     * @param c Result matrix of size m x n.
+     * @return The result matrix.
+     */
+    public static DoubleMatrix gemmTN(double alpha, DoubleMatrix a, DoubleMatrix b, double beta, DoubleMatrix c) {
+        NativeBlas.dgemm('T', 'N', a.columns, b.columns, a.rows, alpha,
+                a.data, 0, a.rows, b.data, 0, b.rows, beta, c.data, 0, c.rows);
+        return c;
+    }
+
+    /**
+     * Computes result = a * b for a sparse b, adding one column of a per non-zero of b. The work is proportional to
+     * the number of non-zeros instead of the size of b.
+     * @param a Left matrix of size m x k.
+     * @param b Sparse right matrix of size k x n.
+     * @param result Result matrix of size m x n.
+     * @return The result matrix.
+     */
+    public static DoubleMatrix mmuli(DoubleMatrix a, SparseInput b, DoubleMatrix result) {
+        int m = a.rows;
+        Arrays.fill(result.data, 0, result.length, 0.0);
+        for (int j = 0; j < b.columns; j++) {
+            int resultOffset = j * m;
+            for (int p = b.columnStarts[j]; p < b.columnStarts[j + 1]; p++) {
+                int offset = b.indices[p] * m;
+                double value = b.values[p];
+                for (int i = 0; i < m; i++) {
+                    result.data[resultOffset + i] += a.data[offset + i] * value;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Computes the active columns of c = alpha * a * b' for a sparse b, the columns of the inputs that are non-zero in
+     * some sample. The other columns of c are not written: their product is 0, and an update that only visits the
+     * active columns of b does not read them.
+     * @param alpha Scale of the product.
+     * @param a Left matrix of size m x n.
+     * @param b Sparse matrix of size k x n.
+     * @param c Result matrix of size m x k.
+     * @return The result matrix.
+     */
+    public static DoubleMatrix gemmNTActive(double alpha, DoubleMatrix a, SparseInput b, DoubleMatrix c) {
+        int m = a.rows;
+        int[] activeRows = b.getActiveRows();
+        for (int k = 0; k < b.getActiveRowCount(); k++) {
+            Arrays.fill(c.data, activeRows[k] * m, activeRows[k] * m + m, 0.0);
+        }
+        for (int j = 0; j < b.columns; j++) {
+            int offset = j * m;
+            for (int p = b.columnStarts[j]; p < b.columnStarts[j + 1]; p++) {
+                int resultOffset = b.indices[p] * m;
+                double value = alpha * b.values[p];
+                for (int i = 0; i < m; i++) {
+                    c.data[resultOffset + i] += a.data[offset + i] * value;
+                }
+            }
+        }
+        return c;
+    }
+
+    /**
+     * Sums the columns of a matrix into a column vector.
+     * @param a Matrix to sum.
+     * @param result Column vector with as many rows as a.
+     * @return The result vector.
+     */
+    public static DoubleMatrix rowSumsInto(DoubleMatrix a, DoubleMatrix result) {
+        Arrays.fill(result.data, 0, result.length, 0.0);
+        for (int j = 0; j < a.columns; j++) {
+            int offset = j * a.rows;
+            for (int i = 0; i < a.rows; i++) {
+                result.data[i] += a.data[offset + i];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Single precision version of gemmNT, computes c = alpha * a * b' + beta * c.
+     * @param alpha Scale of the product.
+     * @param a Left matrix of size m x k.
+     * @param b Right matrix of size n x k.
+     * @param beta Scale of the existing values of c.
+     * @param c Result matrix of size m x n.
+     * @return The result matrix.
+     */
+    public static FloatMatrix gemmNT(float alpha, FloatMatrix a, FloatMatrix b, float beta, FloatMatrix c) {
+        NativeBlas.sgemm('N', 'T', a.rows, b.rows, a.columns, alpha,
+                a.data, 0, a.rows, b.data, 0, b.rows, beta, c.data, 0, c.rows);
+        return c;
+    }
+
+    /**
+     * Single precision version of gemmTN, computes c = alpha * a' * b + beta * c.
+     * @param alpha Scale of the product.
+     * @param a Left matrix of size k x m.
+     * @param b Right matrix of size k x n.
+     * @param beta Scale of the existing values of c.
+     * @param c Result matrix of size m x n.
+     * @return The result matrix.
+     */
+    public static FloatMatrix gemmTN(float alpha, FloatMatrix a, FloatMatrix b, float beta, FloatMatrix c) {
+        NativeBlas.sgemm('T', 'N', a.columns, b.columns, a.rows, alpha,
+                a.data, 0, a.rows, b.data, 0, b.rows, beta, c.data, 0, c.rows);
+        return c;
+    }
+
+    /**
+     * Single precision version of rowSumsInto.
+     * @param a Matrix to sum.
+     * @param result Column vector with as many rows as a.
+     * @return The result vector.
+     */
+    public static FloatMatrix rowSumsInto(FloatMatrix a, FloatMatrix result) {
+        Arrays.fill(result.data, 0, result.length, 0.0f);
+        for (int j = 0; j < a.columns; j++) {
+            int offset = j * a.rows;
+            for (int i = 0; i < a.rows; i++) {
+                result.data[i] += a.data[offset + i];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Copies a matrix into a single precision matrix of the same size, rounding every value to the nearest float.
+     * @param a Matrix to copy.
+     * @param result Matrix that receives the values.
+     * @return The result matrix.
+     */
+    public static FloatMatrix copyInto(DoubleMatrix a, FloatMatrix result) {
+        for (int i = 0; i < a.length; i++) {
+            result.data[i] = (float) a.data[i];
+        }
+        return result;
+    }
+
+    /**
+     * Copies a single precision matrix into a matrix of the same size.
+     * @param a Matrix to copy.
+     * @param result Matrix that receives the values.
+     * @return The result matrix.
+     */
+    public static DoubleMatrix copyInto(FloatMatrix a, DoubleMatrix result) {
+        for (int i = 0; i < a.length; i++) {
+            result.data[i] = a.data[i];
+        }
+        return result;
+    }
+}
@@ -2,6 +2,7 @@ package neural;
 
 import activation.ActivationFunction;
 import org.jblas.DoubleMatrix;
+import org.jblas.FloatMatrix;
 
 public class NeuronLayer {
 
@@ -9,16 +10,41 @@ public class NeuronLayer {
     NeuronLayer nextLayer; // next layers in the network
 
     DoubleMatrix input; // input of the layer
+    SparseInput sparseInput; // sparse input of the first hidden layer, replaces the input when present
     DoubleMatrix weightedOutput; // weighted output of the layer
     DoubleMatrix output; // output of the layer
 
-    DoubleMatrix weights; // current layers weights
-    DoubleMatrix bias; // current layers biases
+    DoubleMatrix weights; // current layers weights, null in single precision
+    DoubleMatrix bias; // current layers biases, null in single precision
 
     ActivationFunction activation; // activation function used by all neurons in the layer
     int neuronCount; // amount of neurons in the layer
     boolean hasBias;
 
+    // preallocated buffers that are only present in workspace mode
+    int workspaceColumns; // batch size the buffers are allocated for, 0 if there is no workspace
+    DoubleMatrix weightedOutputBuffer; // z of the layer
+    DoubleMatrix outputBuffer; // a of the layer
+    DoubleMatrix delta; // error of the layer
+    DoubleMatrix derivative; // derivative of the activation function
+    DoubleMatrix weightGradient; // weight gradient of the current step
+    DoubleMatrix biasGradient; // bias gradient of the current step
+
+    // single precision state that is only present when the network runs in single precision
+    FloatMatrix singleWeights; // weights of the layer, replaces the double weights
+    FloatMatrix singleBias; // biases of the layer
+    FloatMatrix singleInput; // input of the layer
+    FloatMatrix singleWeightedOutput; // weighted output of the layer
+    FloatMatrix singleOutput; // output of the layer
+    FloatMatrix singleWeightGradient; // weight gradient of the current step
+    FloatMatrix singleBiasGradient; // bias gradient of the current step
+    // single precision buffers that are only present in workspace mode
+    FloatMatrix singleInputBuffer; // converted input of the input layer
+    FloatMatrix singleWeightedOutputBuffer; // z of the layer
+    FloatMatrix singleOutputBuffer; // a of the layer
+    FloatMatrix singleDelta; // error of the layer
+    FloatMatrix singleDerivative; // derivative of the activation function
+
     /**
      * Create a Neural Network Layer containing the specified number of neurons and using the provided activation function.
      * @param activation Activation function that all neurons in the layer will be using.
@@ -51,6 +77,231 @@ public class NeuronLayer {
         }
     }
 
+    /**
+     * Allocate the buffers used in workspace mode for batches of the given size. While the workspace is present, a
+     * feedforward of a batch of that size writes into the buffers instead of creating new matrices.
+     * @param batchSize Number of columns of the batches that will be fed to the layer.
+     */
+    void allocateWorkspace(int batchSize) {
+        this.workspaceColumns = batchSize;
+        if (isSinglePrecision()) {
+            allocateSingleWorkspace(batchSize);
+            return;
+        }
+        if (isInputLayer()) {
+            // the input layer only passes on its input
+            return;
+        }
+        this.weightedOutputBuffer = new DoubleMatrix(neuronCount, batchSize);
+        this.outputBuffer = new DoubleMatrix(neuronCount, batchSize);
+        this.delta = new DoubleMatrix(neuronCount, batchSize);
+        this.derivative = new DoubleMatrix(neuronCount, batchSize);
+        this.weightGradient = new DoubleMatrix(neuronCount, previousLayer.neuronCount);
+        this.biasGradient = new DoubleMatrix(neuronCount);
+    }
+
+    /**
+     * Allocate the single precision workspace buffers, the weight gradients do not depend on the batch size and are
+     * allocated when switching the precision.
+     */
+    private void allocateSingleWorkspace(int batchSize) {
+        if (isInputLayer()) {
+            // the input layer only converts its input
+            this.singleInputBuffer = new FloatMatrix(neuronCount, batchSize);
+            return;
+        }
+        this.singleWeightedOutputBuffer = new FloatMatrix(neuronCount, batchSize);
+        this.singleOutputBuffer = new FloatMatrix(neuronCount, batchSize);
+        this.singleDelta = new FloatMatrix(neuronCount, batchSize);
+        this.singleDerivative = new FloatMatrix(neuronCount, batchSize);
+    }
+
+    /**
+     * Release the workspace buffers, after which every feedforward creates new matrices again.
+     */
+    void releaseWorkspace() {
+        this.workspaceColumns = 0;
+        this.weightedOutputBuffer = null;
+        this.outputBuffer = null;
+        this.delta = null;
+        this.derivative = null;
+        this.weightGradient = null;
+        this.biasGradient = null;
+        this.singleInputBuffer = null;
+        this.singleWeightedOutputBuffer = null;
+        this.singleOutputBuffer = null;
+        this.singleDelta = null;
+        this.singleDerivative = null;
+    }
+
+    /**
+     * Switch the layer to the given precision. Switching to single precision rounds the weights and biases to floats
+     * and drops the double matrices, switching back widens the trained float values into new double matrices and
+     * drops the single precision state. The workspace has to be released before and allocated again afterwards.
+     * @param precision New precision of the layer.
+     */
+    void setPrecision(Precision precision) {
+        if (precision == Precision.SINGLE && !isSinglePrecision()) {
+            this.singleBias = MatrixKernels.copyInto(bias, new FloatMatrix(bias.rows, bias.columns));
+            if (!isInputLayer()) {
+                this.singleWeights = MatrixKernels.copyInto(weights, new FloatMatrix(weights.rows, weights.columns));
+                this.singleWeightGradient = new FloatMatrix(weights.rows, weights.columns);
+                this.singleBiasGradient = new FloatMatrix(neuronCount);
+            }
+            this.weights = null;
+            this.bias = null;
+        } else if (precision == Precision.DOUBLE && isSinglePrecision()) {
+            this.bias = MatrixKernels.copyInto(singleBias, new DoubleMatrix(singleBias.rows, singleBias.columns));
+            if (!isInputLayer()) {
+                this.weights = MatrixKernels.copyInto(singleWeights, new DoubleMatrix(singleWeights.rows, singleWeights.columns));
+            }
+            this.singleWeights = null;
+            this.singleBias = null;
+            this.singleInput = null;
+            this.singleWeightedOutput = null;
+            this.singleOutput = null;
+            this.singleWeightGradient = null;
+            this.singleBiasGradient = null;
+        }
+    }
+
+    /**
+     * Does the layer run in single precision.
+     * @return True if the layer holds single precision weights, false otherwise.
+     */
+    public boolean isSinglePrecision() {
+        return singleBias != null;
+    }
+
+    /**
+     * Does the layer hold weights and biases, which it does once the network was finalized or loaded.
+     * @return True if the layer is initialized, false otherwise.
+     */
+    boolean isInitialized() {
+        return bias != null || singleBias != null;
+    }
+
+    /**
+     * Return the number of neurons in the layer.
+     * @return Neuron count.
+     */
+    public int getNeuronCount() {
+        return this.neuronCount;
+    }
+
+    /**
+     * Does the layer have workspace buffers for batches of the given size.
+     * @param batchSize Number of columns of the batch.
+     * @return True if the buffers are allocated for the batch size, false otherwise.
+     */
+    public boolean hasWorkspace(int batchSize) {
+        return workspaceColumns == batchSize;
+    }
+
+    /**
+     * Return the error buffer of the layer.
+     * @return Error buffer, or null without a workspace.
+     */
+    public DoubleMatrix getDelta() {
+        return this.delta;
+    }
+
+    /**
+     * Return the activation derivative buffer of the layer.
+     * @return Activation derivative buffer, or null without a workspace.
+     */
+    public DoubleMatrix getDerivative() {
+        return this.derivative;
+    }
+
+    /**
+     * Return the weight gradient buffer of the layer.
+     * @return Weight gradient buffer, or null without a workspace.
+     */
+    public DoubleMatrix getWeightGradient() {
+        return this.weightGradient;
+    }
+
+    /**
+     * Return the bias gradient buffer of the layer.
+     * @return Bias gradient buffer, or null without a workspace.
+     */
+    public DoubleMatrix getBiasGradient() {
+        return this.biasGradient;
+    }
+
+    /**
+     * Return the single precision weights of the layer.
+     * @return Weights of the layer, or null in double precision.
+     */
+    public FloatMatrix getSingleWeights() {
+        return this.singleWeights;
+    }
+
+    /**
+     * Return the single precision biases of the layer.
+     * @return Bias of the layer, or null in double precision.
+     */
+    public FloatMatrix getSingleBias() {
+        return this.singleBias;
+    }
+
+    /**
+     * Return the single precision input of the layer.
+     * @return Input of the layer, or null in double precision.
+     */
+    public FloatMatrix getSingleInput() {
+        return this.singleInput;
+    }
+
+    /**
+     * Return the single precision weighted output of the layer.
+     * @return Weighted output of the layer, or null in double precision.
+     */
+    public FloatMatrix getSingleWeightedOutput() {
+        return this.singleWeightedOutput;
+    }
+
+    /**
+     * Return the single precision output of the layer.
+     * @return Output of the layer, or null in double precision.
+     */
+    public FloatMatrix getSingleOutput() {
+        return this.singleOutput;
+    }
+
+    /**
+     * Return the single precision error buffer of the layer.
+     * @return Error buffer, or null without a single precision workspace.
+     */
+    public FloatMatrix getSingleDelta() {
+        return this.singleDelta;
+    }
+
+    /**
+     * Return the single precision activation derivative buffer of the layer.
+     * @return Activation derivative buffer, or null without a single precision workspace.
+     */
+    public FloatMatrix getSingleDerivative() {
+        return this.singleDerivative;
+    }
+
+    /**
+     * Return the single precision weight gradient buffer of the layer.
+     * @return Weight gradient buffer, or null in double precision.
+     */
+    public FloatMatrix getSingleWeightGradient() {
+        return this.singleWeightGradient;
+    }
+
+    /**
+     * Return the single precision bias gradient buffer of the layer.
+     * @return Bias gradient buffer, or null in double precision.
+     */
+    public FloatMatrix getSingleBiasGradient() {
+        return this.singleBiasGradient;
+    }
+
     /**
      * Set the input for the layer.
      * @param input Input for the layer.
@@ -67,6 +318,15 @@ public class NeuronLayer {
         return this.input;
     }
 
+    /**
+     * Return the sparse input of the layer, which the first hidden layer holds instead of its input when the network
+     * was fed sparse inputs.
+     * @return Sparse input of the layer, or null if the input is dense.
+     */
+    public SparseInput getSparseInput() {
+        return this.sparseInput;
+    }
+
     /**
      * Return the output of the layer.
      * @return Output of the layer.
@@ -85,34 +345,110 @@ public class NeuronLayer {
 
     /**
      * Return the weights of the layer.
-     * @return Weights of the layer.
+     * @return Weights of the layer, or null in single precision, see exportWeights.
      */
     public DoubleMatrix getWeights() {
         return this.weights;
     }
 
     /**
-     * Sets the weights to the specified matrix.
+     * Sets the weights to the specified matrix. In single precision the values are rounded into the float weights
+     * instead and the matrix is not kept.
      * @param weights New weight matrix.
      */
     public void setWeights(DoubleMatrix weights) {
-        this.weights = weights;
+        if (this.singleWeights != null) {
+            MatrixKernels.copyInto(weights, this.singleWeights);
+        } else {
+            this.weights = weights;
+        }
     }
 
     /**
      * Return the biases of the layer.
-     * @return Bias of the layer.
+     * @return Bias of the layer, or null in single precision, see exportBias.
      */
     public DoubleMatrix getBias() {
         return this.bias;
     }
 
     /**
-     * Sets the biases to the specified matrix.
+     * Sets the biases to the specified matrix. In single precision the values are rounded into the float biases
+     * instead and the matrix is not kept.
      * @param bias New bias matrix.
      */
     public void setBias(DoubleMatrix bias) {
-        this.bias = bias;
+        if (this.singleBias != null) {
+            MatrixKernels.copyInto(bias, this.singleBias);
+        } else {
+            this.bias = bias;
+        }
+    }
+
+    /**
+     * Copies the weights of the layer into a double matrix, widening them in single precision.
+     * @param result Matrix of the size of the weights that receives the copy.
+     * @return The result matrix.
+     */
+    public DoubleMatrix exportWeights(DoubleMatrix result) {
+        if (this.singleWeights != null) {
+            return MatrixKernels.copyInto(this.singleWeights, result);
+        }
+        System.arraycopy(this.weights.data, 0, result.data, 0, this.weights.length);
+        return result;
+    }
+
+    /**
+     * Copies the weights of the layer into a new double matrix, widening them in single precision.
+     * @return Copy of the weights.
+     */
+    public DoubleMatrix exportWeights() {
+        return exportWeights(new DoubleMatrix(neuronCount, previousLayer.neuronCount));
+    }
+
+    /**
+     * Copies the biases of the layer into a double matrix, widening them in single precision.
+     * @param result Matrix of the size of the biases that receives the copy.
+     * @return The result matrix.
+     */
+    public DoubleMatrix exportBias(DoubleMatrix result) {
+        if (this.singleBias != null) {
+            return MatrixKernels.copyInto(this.singleBias, result);
+        }
+        System.arraycopy(this.bias.data, 0, result.data, 0, this.bias.length);
+        return result;
+    }
+
+    /**
+     * Copies the biases of the layer into a new double matrix, widening them in single precision.
+     * @return Copy of the biases.
+     */
+    public DoubleMatrix exportBias() {
+        return exportBias(new DoubleMatrix(neuronCount));
+    }
+
+    /**
+     * Copies the given values into the existing weights of the layer, rounding them in single precision.
+     * @param weights Matrix of the size of the weights.
+     */
+    public void importWeights(DoubleMatrix weights) {
+        if (this.singleWeights != null) {
+            MatrixKernels.copyInto(weights, this.singleWeights);
+        } else {
+            System.arraycopy(weights.data, 0, this.weights.data, 0, this.weights.length);
+        }
+    }
+
+    /**
+     * Copies the given values into the existing biases of the layer, rounding them in single precision.
+     * @param bias Matrix of the size of the biases.
+     */
+    public void importBias(DoubleMatrix bias) {
+        if (this.singleBias != null) {
+            MatrixKernels.copyInto(bias, this.singleBias);
+        } else {
+            System.arraycopy(bias.data, 0, this.bias.data, 0, this.bias.length);
+        }
     }
 
     /**
@@ -146,23 +482,4 @@ public class NeuronLayer {
     public NeuronLayer getPreviousLayer() {
         return previousLayer;
     }
-
-    /**
-     * Activate the neurons based on the input, set and feed the output of the layer to the next layers input (if any).
-     */
-    void feedForward() {
-        if (isInputLayer()) {
-            // input layer will only pass the input to the next layer
-            this.output = input;
-            this.weightedOutput = null;
-        } else {
-            this.weightedOutput = weights.mmul(input).add(bias); // n(l) = w(l) * a(l-1) + b(l)
-            this.output = activation.fn(this.weightedOutput); // a(l) = f(n(l))
-        }
-        // check if we need to feed the result to the next layer
-        if (!isOutputLayer()) {
-            this.nextLayer.input = this.output;
-            this.nextLayer.feedForward();
-        }
-    }
 }
@@ -1,8 +1,14 @@
 package neural;
 
 import org.jblas.DoubleMatrix;
+import org.jblas.FloatMatrix;
+import org.jblas.MatrixFunctions;
+
+import java.io.IOException;
+import java.nio.file.Path;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -14,6 +20,10 @@ public class NeuronNetwork {
     private NeuronLayer outputLayer; // output layer of the network
 
     private List<NeuronLayer> layers = new ArrayList<>(); // List of layers in the network
+    private List<NeuronLayer> layerView = Collections.unmodifiableList(layers); // read-only view handed out to callers
+    private Precision precision = Precision.DOUBLE; // precision the network runs in
+    private boolean finalized; // whether the weights have been initialized
+    private ExecutionPlan plan; // compiled feedforward, null until the next feedforward compiles it
 
     /**
      * Creates the Neural Network object.
@@ -41,6 +51,7 @@ public class NeuronNetwork {
 
         // update the output layer
         outputLayer = layers.get(layers.size() - 1);
+        plan = null;
     }
 
     /**
@@ -48,6 +59,89 @@ public class NeuronNetwork {
      */
     public void finalizeNetwork() {
         this.layers.forEach(NeuronLayer::initialize);
+        this.layers.forEach(layer -> layer.setPrecision(precision));
+        this.finalized = true;
+        this.plan = new ExecutionPlan(layers);
+    }
+
+    /**
+     * Sets the precision the feedforward and training run in. In single precision the weights are held as floats only
+     * and trained in place, callers that need them in double precision export them from the layers.
+     * Checkpoints are always written in double precision. The workspace, if any, is reallocated in the new precision.
+     * @param precision New precision of the network.
+     */
+    public void setPrecision(Precision precision) {
+        if (precision == this.precision) {
+            return;
+        }
+        this.precision = precision;
+        if (this.finalized) {
+            int workspaceColumns = inputLayer.workspaceColumns;
+            releaseWorkspace();
+            this.layers.forEach(layer -> layer.setPrecision(precision));
+            if (workspaceColumns > 0) {
+                allocateWorkspace(workspaceColumns);
+            }
+        }
+    }
+
+    /**
+     * Returns whether the weights and biases of the network have been initialized, by finalizeNetwork or load.
+     * @return True if the network is finalized, false otherwise.
+     */
+    public boolean isFinalized() {
+        return finalized;
+    }
+
+    /**
+     * Returns the precision the network runs in.
+     * @return Precision of the network.
+     */
+    public Precision getPrecision() {
+        return precision;
+    }
+
+    /**
+     * Allocates workspace buffers on every layer for batches of the given size, so that feeding a batch of that size
+     * forward and training on it reuses the same matrices instead of creating new ones.
+     * Note that in workspace mode the output returned by feedForward is overwritten by the next call.
+     * @param batchSize Number of columns of the batches that will be fed to the network.
+     */
+    public void allocateWorkspace(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1, got " + batchSize);
+        }
+        this.layers.forEach(layer -> layer.allocateWorkspace(batchSize));
+        this.plan = null;
+    }
+
+    /**
+     * Releases the workspace buffers of every layer.
+     */
+    public void releaseWorkspace() {
+        this.layers.forEach(NeuronLayer::releaseWorkspace);
+        this.plan = null;
+    }
+
+    /**
+     * Saves the layer sizes, activation functions, weights and biases of the network to a binary checkpoint.
+     * @param path File the checkpoint is written to, an existing file is replaced.
+     * @throws IOException If the checkpoint cannot be written.
+     */
+    public void save(Path path) throws IOException {
+        Checkpoint.save(layers, path);
+    }
+
+    /**
+     * Loads a network from a binary checkpoint written by save. The returned network is already finalized.
+     * @param path File the checkpoint is read from.
+     * @return Network stored in the checkpoint.
+     * @throws IOException If the checkpoint cannot be read or is invalid.
+     */
+    public static NeuronNetwork load(Path path) throws IOException {
+        NeuronNetwork network = Checkpoint.load(path);
+        network.finalized = true;
+        return network;
     }
 
     /**
@@ -58,17 +152,62 @@ public class NeuronNetwork {
         return outputLayer;
     }
 
+    /**
+     * Returns the layers of the network, starting with the input layer.
+     * @return Unmodifiable list of layers.
+     */
+    public List<NeuronLayer> getLayers() {
+        return layerView;
+    }
+
     /**
      * Given the input, it is fed to the network and the output is returned.
      * @param input Input that will be fed to the network.
      * @return Output of the neural network.
      */
     public DoubleMatrix feedForward(DoubleMatrix input) {
-        // set the input on the input layer
-        inputLayer.setInput(input);
-        // evaluate the network
-        layers.forEach(NeuronLayer::feedForward);
-        return outputLayer.getOutput();
+        if (precision == Precision.SINGLE) {
+            // convert the input, and the output back for callers working in double precision
+            FloatMatrix singleInput = inputLayer.hasWorkspace(input.columns) ? inputLayer.singleInputBuffer : new FloatMatrix(input.rows, input.columns);
+            return MatrixFunctions.floatToDouble(feedForward(MatrixKernels.copyInto(input, singleInput)));
+        }
+        // evaluate every layer once, in order
+        return plan().run(input);
     }
 
+    /**
+     * Feeds a batch of sparse inputs to the network. The first hidden layer only reads the weight columns of the
+     * non-zero inputs and holds the sparse batch instead of a dense input afterwards.
+     * @param input Sparse inputs with one sample per column.
+     * @return Output of the neural network.
+     */
+    public DoubleMatrix feedForward(SparseInput input) {
+        if (precision != Precision.DOUBLE) {
+            return feedForward(input.toDense());
+        }
+        return plan().run(input);
+    }
+
+    /**
+     * Single precision version of feedForward, only available when the network runs in single precision.
+     * @param input Input that will be fed to the network.
+     * @return Output of the neural network.
+     */
+    public FloatMatrix feedForward(FloatMatrix input) {
+        if (precision != Precision.SINGLE) {
+            throw new IllegalStateException("Network does not run in single precision");
+        }
+        return plan().run(input);
+    }
+
+    /**
+     * Returns the compiled feedforward of the network, compiling it if the layers, workspace or precision changed
+     * since the last compilation.
+     */
+    private ExecutionPlan plan() {
+        if (plan == null) {
+            plan = new ExecutionPlan(layers);
+        }
+        return plan;
+    }
 }
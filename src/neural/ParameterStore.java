@@ -0,0 +1,370 @@
+package neural;
+
+import activation.ActivationFunction;
+import org.jblas.DoubleMatrix;
+import org.jblas.FloatMatrix;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Weights and biases of a network held outside the Java heap, in a direct buffer or a memory-mapped file in the
+ * checkpoint format. A checkpoint mapped read-only by several scoring processes is a single copy in the page cache of
+ * the host. The mapping is shared, a writable store updates the file in place and the new weights are seen by every
+ * process that has it mapped.
+ *
+ * Updates are published with a sequence lock on the generation in the checkpoint header: store makes the generation
+ * odd, writes the weights and makes it even again. Readers copy the weights with snapshot or load, which retry until
+ * they copied all layers between two reads of the same even generation, so they never see a half-written update or
+ * layers of two different updates. The generation and the weights are ordered with full fences, which compile to the
+ * barrier instruction of the processor and so also order the accesses of other processes to the same mapping. Only if
+ * the JDK has neither VarHandle.fullFence nor Unsafe.fullFence the store falls back to a volatile write, which orders
+ * accesses across processes on x86, whose stores are already seen in order, but not on weaker memory models like ARM.
+ *
+ * The layers compute on heap matrices, since BLAS only multiplies Java arrays. Training publishes its weights to the
+ * store with store, InferenceModel scores a heap snapshot that it refreshes once per published generation.
+ */
+public final class ParameterStore {
+
+    // full fence of the JDK, VarHandle.fullFence from Java 9 on and Unsafe.fullFence before, null if neither exists
+    private static final MethodHandle FULL_FENCE = findFullFence();
+    private static volatile int fence; // fallback without a full fence
+
+    private final ByteBuffer buffer;
+    private final boolean writable;
+    private final int generationOffset; // position of the generation, -1 for version 1 checkpoints without one
+    private final int[] layerSizes; // neuron count per layer, starting with the input layer
+    private final ActivationFunction[] activations; // activation function per layer, null for the input layer
+    private final boolean[] hasBias;
+    private final DoubleBuffer[] weights; // column-major weights per layer, null for the input layer
+    private final DoubleBuffer[] biases; // biases per layer, null for the input layer
+
+    ParameterStore(ByteBuffer buffer, boolean writable, Path path) throws IOException {
+        this.buffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        ByteBuffer view = this.buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        List<NeuronLayer> layers;
+        try {
+            layers = Checkpoint.readHeader(view, path).getLayers();
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Checkpoint " + path + " is truncated", e);
+        }
+        this.generationOffset = this.buffer.getInt(4) == 1 ? -1 : Checkpoint.GENERATION_OFFSET;
+        if (writable && generationOffset < 0) {
+            throw new IOException("Checkpoint " + path + " has no generation and cannot be updated in place");
+        }
+        this.writable = writable;
+
+        this.layerSizes = new int[layers.size()];
+        this.activations = new ActivationFunction[layers.size()];
+        this.hasBias = new boolean[layers.size()];
+        this.weights = new DoubleBuffer[layers.size()];
+        this.biases = new DoubleBuffer[layers.size()];
+        long position = view.position();
+        for (int l = 0; l < layers.size(); l++) {
+            NeuronLayer layer = layers.get(l);
+            this.layerSizes[l] = layer.neuronCount;
+            this.activations[l] = layer.activation;
+            this.hasBias[l] = layer.hasBias;
+            if (l > 0) {
+                long weightCount = (long) layer.neuronCount * layerSizes[l - 1];
+                this.weights[l] = slice(position, weightCount, path);
+                position += weightCount * Double.BYTES;
+                this.biases[l] = slice(position, layer.neuronCount, path);
+                position += (long) layer.neuronCount * Double.BYTES;
+            }
+        }
+        if (position != this.buffer.limit()) {
+            throw new IOException("Unexpected data at the end of checkpoint " + path);
+        }
+    }
+
+    /**
+     * Copies the network into a direct buffer owned by this process.
+     * @param network Finalized network.
+     * @return Writable store holding the weights and biases of the network.
+     */
+    public static ParameterStore allocate(NeuronNetwork network) {
+        List<NeuronLayer> layers = network.getLayers();
+        try {
+            byte[] header = Checkpoint.header(layers);
+            long size = header.length + Checkpoint.parameterCount(layers) * Double.BYTES;
+            if (size > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Network of " + size + " bytes is too large for a direct buffer");
+            }
+            ByteBuffer buffer = ByteBuffer.allocateDirect((int) size);
+            buffer.put(header).clear();
+            ParameterStore store = new ParameterStore(buffer, true, null);
+            store.store(network);
+            return store;
+        } catch (IOException e) {
+            // the header was just written from the network
+            throw new IllegalStateException("Failed to encode the layers of the network", e);
+        }
+    }
+
+    /**
+     * Saves the network as a checkpoint and maps it for writing, so later calls to store update the file in place.
+     * @param network Finalized network.
+     * @param path Checkpoint file, an existing file is replaced.
+     * @return Writable store backed by the file.
+     * @throws IOException If the checkpoint cannot be written or mapped.
+     */
+    public static ParameterStore create(NeuronNetwork network, Path path) throws IOException {
+        network.save(path);
+        return open(path, true);
+    }
+
+    /**
+     * Maps a checkpoint written by NeuronNetwork.save or create for reading.
+     * @param path Checkpoint file.
+     * @return Read-only store backed by the file.
+     * @throws IOException If the checkpoint cannot be mapped or is invalid.
+     */
+    public static ParameterStore map(Path path) throws IOException {
+        return open(path, false);
+    }
+
+    private static ParameterStore open(Path path, boolean writable) throws IOException {
+        StandardOpenOption[] options = writable
+                ? new StandardOpenOption[] {StandardOpenOption.READ, StandardOpenOption.WRITE}
+                : new StandardOpenOption[] {StandardOpenOption.READ};
+        // the mapping stays valid after the channel is closed
+        try (FileChannel channel = FileChannel.open(path, options)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Checkpoint " + path + " is too large to be mapped");
+            }
+            MappedByteBuffer mapped = channel.map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new ParameterStore(mapped, writable, path);
+        }
+    }
+
+    private DoubleBuffer slice(long position, long count, Path path) throws IOException {
+        if (position + count * Double.BYTES > buffer.limit()) {
+            throw new IOException("Checkpoint " + path + " is truncated");
+        }
+        ByteBuffer bytes = buffer.duplicate();
+        bytes.position((int) position).limit((int) (position + count * Double.BYTES));
+        // slice resets the byte order
+        return bytes.slice().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+    }
+
+    /**
+     * Returns the generation of the weights, which store increases by 2 with every update.
+     * @return Even generation while the weights are consistent, odd while an update is written.
+     */
+    public long getGeneration() {
+        if (generationOffset < 0) {
+            return 0;
+        }
+        long generation = buffer.getLong(generationOffset);
+        fullFence();
+        return generation;
+    }
+
+    /**
+     * Copies the weights and biases of the network into the store. Concurrent readers wait for the update to finish.
+     * @param network Network with the same layer sizes as the store.
+     */
+    public synchronized void store(NeuronNetwork network) {
+        if (!writable) {
+            throw new IllegalStateException("Parameter store is read-only");
+        }
+        List<NeuronLayer> layers = checkLayers(network);
+        long generation = buffer.getLong(generationOffset);
+        buffer.putLong(generationOffset, generation + 1);
+        fullFence();
+        for (int l = 1; l < layers.size(); l++) {
+            NeuronLayer layer = layers.get(l);
+            if (layer.isSinglePrecision()) {
+                put(layer.singleWeights, weights[l]);
+                put(layer.singleBias, biases[l]);
+            } else {
+                weights[l].duplicate().put(layer.weights.data, 0, layer.weights.length);
+                biases[l].duplicate().put(layer.bias.data, 0, layer.bias.length);
+            }
+        }
+        fullFence();
+        buffer.putLong(generationOffset, generation + 2);
+    }
+
+    /**
+     * Copies a consistent version of the weights and biases into the given matrices.
+     * @param weights Matrices of the size of the weights of every layer, the input layer is skipped.
+     * @param biases Matrices of the size of the biases of every layer, the input layer is skipped.
+     * @return Generation of the copied weights.
+     */
+    public long snapshot(DoubleMatrix[] weights, DoubleMatrix[] biases) {
+        while (true) {
+            long generation = beginRead();
+            for (int l = 1; l < layerSizes.length; l++) {
+                this.weights[l].duplicate().get(weights[l].data, 0, weights[l].length);
+                this.biases[l].duplicate().get(biases[l].data, 0, biases[l].length);
+            }
+            if (endRead(generation)) {
+                return generation;
+            }
+        }
+    }
+
+    /**
+     * Copies a consistent version of the weights and biases of the store into the existing matrices of the network.
+     * @param network Network with the same layer sizes as the store.
+     */
+    public void load(NeuronNetwork network) {
+        List<NeuronLayer> layers = checkLayers(network);
+        while (true) {
+            long generation = beginRead();
+            for (int l = 1; l < layers.size(); l++) {
+                NeuronLayer layer = layers.get(l);
+                if (layer.isSinglePrecision()) {
+                    get(weights[l], layer.singleWeights);
+                    get(biases[l], layer.singleBias);
+                } else {
+                    weights[l].duplicate().get(layer.weights.data, 0, layer.weights.length);
+                    biases[l].duplicate().get(layer.bias.data, 0, layer.bias.length);
+                }
+            }
+            if (endRead(generation)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Waits until no update is written and returns the generation the copy starts from.
+     */
+    private long beginRead() {
+        long generation = getGeneration();
+        while ((generation & 1) != 0) {
+            Thread.yield();
+            generation = getGeneration();
+        }
+        return generation;
+    }
+
+    /**
+     * Returns whether the weights were not updated since beginRead returned the given generation.
+     */
+    private boolean endRead(long generation) {
+        fullFence();
+        return getGeneration() == generation;
+    }
+
+    /**
+     * Keeps the accesses of the mapping on both sides of the call in order, for this and for other processes.
+     */
+    private static void fullFence() {
+        if (FULL_FENCE == null) {
+            fence = 0;
+            return;
+        }
+        try {
+            FULL_FENCE.invokeExact();
+        } catch (Throwable e) {
+            throw new IllegalStateException("Full fence failed", e);
+        }
+    }
+
+    private static MethodHandle findFullFence() {
+        MethodType type = MethodType.methodType(void.class);
+        try {
+            return MethodHandles.publicLookup().findStatic(Class.forName("java.lang.invoke.VarHandle"), "fullFence", type);
+        } catch (ReflectiveOperationException e) {
+            // Java 8, fall back to Unsafe
+        }
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return MethodHandles.lookup().findVirtual(unsafeClass, "fullFence", type).bindTo(theUnsafe.get(null));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static void put(FloatMatrix source, DoubleBuffer target) {
+        for (int i = 0; i < source.length; i++) {
+            target.put(i, source.data[i]);
+        }
+    }
+
+    private static void get(DoubleBuffer source, FloatMatrix target) {
+        for (int i = 0; i < target.length; i++) {
+            target.data[i] = (float) source.get(i);
+        }
+    }
+
+    /**
+     * Creates a finalized network with the layers, weights and biases of the store.
+     * @return New network.
+     */
+    public NeuronNetwork createNetwork() {
+        NeuronNetwork network = new NeuronNetwork();
+        for (int l = 0; l < layerSizes.length; l++) {
+            network.addLayer(new NeuronLayer(activations[l], layerSizes[l], hasBias[l]));
+        }
+        network.finalizeNetwork();
+        load(network);
+        return network;
+    }
+
+    /**
+     * Writes changes of a store backed by a file to the disk. Other processes mapping the file see the changes without
+     * this, it only makes them durable.
+     */
+    public void force() {
+        if (buffer instanceof MappedByteBuffer) {
+            ((MappedByteBuffer) buffer).force();
+        }
+    }
+
+    /**
+     * Returns whether store may be called.
+     * @return True for allocated and created stores, false for mapped ones.
+     */
+    public boolean isWritable() {
+        return writable;
+    }
+
+    /**
+     * Returns the neuron count of every layer.
+     * @return Neuron counts, starting with the input layer.
+     */
+    public int[] getLayerSizes() {
+        return layerSizes.clone();
+    }
+
+    /**
+     * Returns the activation function of a layer.
+     * @param layer Index of the layer, 0 for the input layer.
+     * @return Activation function, null for the input layer.
+     */
+    public ActivationFunction getActivationFunction(int layer) {
+        return activations[layer];
+    }
+
+    private List<NeuronLayer> checkLayers(NeuronNetwork network) {
+        List<NeuronLayer> layers = network.getLayers();
+        boolean matches = layers.size() == layerSizes.length;
+        for (int l = 0; matches && l < layers.size(); l++) {
+            matches = layers.get(l).neuronCount == layerSizes[l];
+        }
+        if (!matches) {
+            throw new IllegalArgumentException("Network does not have the layer sizes of the parameter store");
+        }
+        return layers;
+    }
+}
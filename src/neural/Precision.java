@@ -0,0 +1,16 @@
+package neural;
+
+/**
+ * Floating point precision the feedforward and training of a network run in.
+ */
+public enum Precision {
+    /**
+     * 64-bit doubles, the weights are held in DoubleMatrix.
+     */
+    DOUBLE,
+    /**
+     * 32-bit floats, the weights are held in FloatMatrix. This halves the memory traffic of the matrix products and
+     * the size of the weights, the 0/1 inputs and sigmoid outputs do not need more precision.
+     */
+    SINGLE
+}
@@ -0,0 +1,177 @@
+package neural;
+
+import org.jblas.DoubleMatrix;
+
+import java.util.Arrays;
+
+/**
+ * Batch of sparse input vectors in compressed sparse column form: every column holds the indices and values of the
+ * non-zero inputs of one sample. Binarized digits set only a small part of their pixels, so feeding them in this form
+ * lets the first layer skip the weight columns of all inputs that are 0.
+ *
+ * The batch is filled column by column with startColumn and add and can be cleared and refilled, which reuses its
+ * arrays.
+ */
+public final class SparseInput {
+
+    private final int rows; // size of every input vector
+    int columns; // number of samples
+    int[] columnStarts = new int[17]; // offset of the first non-zero of every column, followed by the total count
+    int[] indices = new int[256]; // row of every non-zero
+    double[] values = new double[256]; // value of every non-zero
+    private int[] activeRows; // rows that are non-zero in some column, in increasing order
+    private int activeRowCount = -1; // number of active rows, -1 until they are collected
+    private boolean[] activeMarks; // scratch marks used while collecting the active rows
+
+    /**
+     * Creates an empty batch.
+     * @param rows Size of every input vector.
+     */
+    public SparseInput(int rows) {
+        this.rows = rows;
+    }
+
+    /**
+     * Creates a batch from a dense matrix with one sample per column.
+     * @param dense Dense inputs.
+     * @return Sparse copy of the inputs.
+     */
+    public static SparseInput of(DoubleMatrix dense) {
+        return new SparseInput(dense.rows).fill(dense);
+    }
+
+    /**
+     * Clears the batch and refills it from a dense matrix with one sample per column.
+     * @param dense Dense inputs with as many rows as the batch.
+     * @return This batch.
+     */
+    public SparseInput fill(DoubleMatrix dense) {
+        if (dense.rows != rows) {
+            throw new IllegalArgumentException("Expected " + rows + " rows, got " + dense.rows);
+        }
+        clear();
+        for (int j = 0; j < dense.columns; j++) {
+            startColumn();
+            int offset = j * dense.rows;
+            for (int i = 0; i < dense.rows; i++) {
+                if (dense.data[offset + i] != 0.0) {
+                    add(i, dense.data[offset + i]);
+                }
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Removes all columns, keeping the allocated arrays.
+     */
+    public void clear() {
+        columns = 0;
+        columnStarts[0] = 0;
+        activeRowCount = -1;
+    }
+
+    /**
+     * Starts a new column, the following calls to add fill it.
+     */
+    public void startColumn() {
+        if (columns + 2 > columnStarts.length) {
+            columnStarts = Arrays.copyOf(columnStarts, columnStarts.length * 2);
+        }
+        columns++;
+        columnStarts[columns] = columnStarts[columns - 1];
+    }
+
+    /**
+     * Adds a non-zero input to the current column. The rows of a column are expected in increasing order.
+     * @param row Index of the input.
+     * @param value Value of the input.
+     */
+    public void add(int row, double value) {
+        if (columns == 0) {
+            throw new IllegalStateException("startColumn has to be called before add");
+        }
+        if (row < 0 || row >= rows) {
+            throw new IndexOutOfBoundsException("Row " + row + " outside of [0, " + rows + ")");
+        }
+        int position = columnStarts[columns];
+        if (position == indices.length) {
+            indices = Arrays.copyOf(indices, indices.length * 2);
+            values = Arrays.copyOf(values, values.length * 2);
+        }
+        indices[position] = row;
+        values[position] = value;
+        columnStarts[columns] = position + 1;
+        activeRowCount = -1;
+    }
+
+    /**
+     * Returns the size of every input vector.
+     * @return Number of rows.
+     */
+    public int getRows() {
+        return rows;
+    }
+
+    /**
+     * Returns the number of samples.
+     * @return Number of columns.
+     */
+    public int getColumns() {
+        return columns;
+    }
+
+    /**
+     * Returns the rows that are non-zero in at least one column of the batch. Only these columns of the first layer
+     * receive a weight gradient.
+     * @return Active rows in increasing order, valid up to getActiveRowCount. The array is reused by later calls.
+     */
+    public int[] getActiveRows() {
+        collectActiveRows();
+        return activeRows;
+    }
+
+    /**
+     * Returns the number of rows that are non-zero in at least one column of the batch.
+     * @return Number of active rows.
+     */
+    public int getActiveRowCount() {
+        collectActiveRows();
+        return activeRowCount;
+    }
+
+    private void collectActiveRows() {
+        if (activeRowCount >= 0) {
+            return;
+        }
+        if (activeMarks == null) {
+            activeMarks = new boolean[rows];
+            activeRows = new int[rows];
+        }
+        for (int p = 0; p < columnStarts[columns]; p++) {
+            activeMarks[indices[p]] = true;
+        }
+        // walking the marks keeps the rows sorted without sorting them
+        activeRowCount = 0;
+        for (int i = 0; i < rows; i++) {
+            if (activeMarks[i]) {
+                activeMarks[i] = false;
+                activeRows[activeRowCount++] = i;
+            }
+        }
+    }
+
+    /**
+     * Expands the batch into a dense matrix.
+     * @return Dense matrix with one sample per column.
+     */
+    public DoubleMatrix toDense() {
+        DoubleMatrix dense = new DoubleMatrix(rows, columns);
+        for (int j = 0; j < columns; j++) {
+            for (int p = columnStarts[j]; p < columnStarts[j + 1]; p++) {
+                dense.data[j * rows + indices[p]] = values[p];
+            }
+        }
+        return dense;
+    }
+}
@@ -0,0 +1,93 @@
+package training;
+
+import org.jblas.DoubleMatrix;
+import org.jblas.FloatMatrix;
+
+/**
+ * Adam, which keeps running averages of the gradients and of their squares and corrects both for their zero
+ * initialization, m = beta1 * m + (1 - beta1) * g, v = beta2 * v + (1 - beta2) * g^2 and
+ * w = w - learningRate * m' / (sqrt(v') + epsilon) with m' = m / (1 - beta1^t) and v' = v / (1 - beta2^t).
+ */
+public class AdamOptimizer implements Optimizer {
+
+    private final double beta1;
+    private final double beta2;
+    private final double epsilon;
+    private final OptimizerState state = new OptimizerState(2);
+    private int steps; // number of started steps, t in the bias correction
+
+    /**
+     * Creates the optimizer with beta1 0.9, beta2 0.999 and an epsilon of 1e-8.
+     */
+    public AdamOptimizer() {
+        this(0.9, 0.999, 1e-8);
+    }
+
+    /**
+     * Creates the optimizer.
+     * @param beta1 Decay of the average of the gradients.
+     * @param beta2 Decay of the average of the squared gradients.
+     * @param epsilon Small value that keeps the division defined.
+     */
+    public AdamOptimizer(double beta1, double beta2, double epsilon) {
+        if (beta1 < 0.0 || beta1 >= 1.0 || beta2 < 0.0 || beta2 >= 1.0) {
+            throw new IllegalArgumentException("Beta1 and beta2 must be in [0, 1), got " + beta1 + " and " + beta2);
+        }
+        this.beta1 = beta1;
+        this.beta2 = beta2;
+        this.epsilon = epsilon;
+    }
+
+    @Override
+    public void startStep() {
+        steps++;
+    }
+
+    @Override
+    public void update(int parameter, DoubleMatrix value, DoubleMatrix gradient, double learningRate) {
+        double[][] buffers = state.get(parameter, value.length);
+        double[] m = buffers[0];
+        double[] v = buffers[1];
+        double[] w = value.data;
+        double[] g = gradient.data;
+        // fold the bias corrections into the step size
+        double rate = correctedRate(learningRate);
+        double scaledEpsilon = epsilon * Math.sqrt(1.0 - Math.pow(beta2, Math.max(1, steps)));
+        for (int i = 0; i < value.length; i++) {
+            m[i] = beta1 * m[i] + (1.0 - beta1) * g[i];
+            v[i] = beta2 * v[i] + (1.0 - beta2) * g[i] * g[i];
+            w[i] -= rate * m[i] / (Math.sqrt(v[i]) + scaledEpsilon);
+        }
+    }
+
+    @Override
+    public void update(int parameter, FloatMatrix value, FloatMatrix gradient, double learningRate) {
+        float[][] buffers = state.getFloat(parameter, value.length);
+        float[] m = buffers[0];
+        float[] v = buffers[1];
+        float[] w = value.data;
+        float[] g = gradient.data;
+        double rate = correctedRate(learningRate);
+        double scaledEpsilon = epsilon * Math.sqrt(1.0 - Math.pow(beta2, Math.max(1, steps)));
+        for (int i = 0; i < value.length; i++) {
+            m[i] = (float) (beta1 * m[i] + (1.0 - beta1) * g[i]);
+            v[i] = (float) (beta2 * v[i] + (1.0 - beta2) * g[i] * g[i]);
+            w[i] -= (float) (rate * m[i] / (Math.sqrt(v[i]) + scaledEpsilon));
+        }
+    }
+
+    /**
+     * Returns the learning rate scaled by the bias corrections of the current step, an update before the first call
+     * to startStep counts as the first step.
+     */
+    private double correctedRate(double learningRate) {
+        int t = Math.max(1, steps);
+        return learningRate * Math.sqrt(1.0 - Math.pow(beta2, t)) / (1.0 - Math.pow(beta1, t));
+    }
+
+    @Override
+    public void reset() {
+        state.clear();
+        steps = 0;
+    }
+}
@@ -0,0 +1,294 @@
+package training;
+
+import activation.ActivationFunction;
+import cost.CostFunction;
+import mnist.SampleSource;
+import neural.NeuronLayer;
+import neural.NeuronNetwork;
+import neural.Precision;
+import org.jblas.DoubleMatrix;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Training class which performs asynchronous per-sample Back Propagation on several threads. Every thread takes
+ * samples from a shared shuffled order and applies its updates directly to the weights and biases of the network,
+ * which all threads share.
+ *
+ * In HOGWILD mode the updates are made without any locking, so threads may overwrite parts of each other's updates. The
+ * sparsity of the inputs only helps the first layer: binarized digits set a small part of the inputs, and a sample only
+ * changes the first-layer weight columns of the inputs that are set, so threads rarely collide there. The biases and
+ * the weights of every later layer are written by every sample, so concurrent threads do collide on them and lose part
+ * of each other's updates. Training converges nevertheless, since every lost update is a small per-sample step;
+ * AsynchronousTrainingComparison measures the cost against serial training. In STRIPED mode every weight column and
+ * bias vector is guarded by one of a fixed set of locks, which makes the updates of single columns atomic at the cost
+ * of the locking; the later layers and the biases are where its locks are contended.
+ */
+public class AsynchronousBackPropagation {
+
+    /**
+     * How the threads synchronize their updates.
+     */
+    public enum Mode {
+        /**
+         * No synchronization at all.
+         */
+        HOGWILD,
+        /**
+         * Lock striping over the weight columns and bias vectors.
+         */
+        STRIPED
+    }
+
+    // number of locks in STRIPED mode, a power of 2
+    private static final int STRIPES = 256;
+    // number of samples a thread takes from the shared order at a time
+    private static final int CHUNK_SIZE = 32;
+
+    /**
+     * Per-thread buffers for a single sample.
+     */
+    private static final class Scratch {
+        final DoubleMatrix[] weightedOutputs;
+        final DoubleMatrix[] outputs;
+        final DoubleMatrix[] deltas;
+        final DoubleMatrix[] derivatives;
+        final DoubleMatrix expected;
+
+        Scratch(List<NeuronLayer> layers) {
+            int layerCount = layers.size();
+            this.weightedOutputs = new DoubleMatrix[layerCount];
+            this.outputs = new DoubleMatrix[layerCount];
+            this.deltas = new DoubleMatrix[layerCount];
+            this.derivatives = new DoubleMatrix[layerCount];
+            for (int l = 0; l < layerCount; l++) {
+                int size = layers.get(l).getNeuronCount();
+                this.outputs[l] = new DoubleMatrix(size);
+                if (l > 0) {
+                    this.weightedOutputs[l] = new DoubleMatrix(size);
+                    this.deltas[l] = new DoubleMatrix(size);
+                    this.derivatives[l] = new DoubleMatrix(size);
+                }
+            }
+            this.expected = new DoubleMatrix(layers.get(layerCount - 1).getNeuronCount());
+        }
+    }
+
+    private final double learningRate;
+    private final NeuronNetwork network;
+    private final CostFunction costFunction;
+    private final int threadCount;
+    private final Mode mode;
+    private final Object[] locks;
+    private final Random random;
+
+    /**
+     * Creates the trainer.
+     * @param network Network that will be trained, in double precision.
+     * @param costFunction Cost function used for the output error.
+     * @param learningRate Learning rate of every per-sample update.
+     * @param threadCount Number of threads training at the same time.
+     * @param mode How the threads synchronize their updates.
+     * @param seed Seed of the per-epoch shuffling.
+     */
+    public AsynchronousBackPropagation(NeuronNetwork network, CostFunction costFunction, double learningRate, int threadCount, Mode mode, long seed) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("Thread count must be at least 1, got " + threadCount);
+        }
+        // set the class variables
+        this.network = network;
+        this.costFunction = costFunction;
+        this.learningRate = learningRate;
+        this.threadCount = threadCount;
+        this.mode = mode;
+        this.random = new Random(seed);
+        this.locks = new Object[mode == Mode.STRIPED ? STRIPES : 0];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+        // notify the function that is going to be used
+        System.out.println("Running AsynchronousBackPropagation (" + mode + ") on " + threadCount + " threads with the following cost function: " + costFunction.getName());
+    }
+
+    /**
+     * Trains one epoch over the samples in a random order.
+     * @param trainingData Training data that will be used, read concurrently by the threads.
+     * @return Average cost of the samples of the epoch.
+     * @throws InterruptedException If the thread was interrupted while waiting for the training threads.
+     */
+    public double train(SampleSource trainingData) throws InterruptedException {
+        if (network.getPrecision() != Precision.DOUBLE) {
+            // the threads update the double weights directly
+            throw new IllegalStateException("Asynchronous training needs a network in double precision");
+        }
+
+        int[] order = new int[trainingData.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        for (int i = order.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = order[i];
+            order[i] = order[j];
+            order[j] = swap;
+        }
+
+        AtomicInteger next = new AtomicInteger();
+        double[] costs = new double[threadCount];
+        Throwable[] failures = new Throwable[threadCount];
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            int worker = t;
+            threads[t] = new Thread(() -> {
+                try {
+                    costs[worker] = work(trainingData, order, next);
+                } catch (Throwable e) {
+                    failures[worker] = e;
+                }
+            }, "asynchronous-backpropagation-" + (t + 1));
+            threads[t].start();
+        }
+
+        double cost = 0;
+        for (int t = 0; t < threadCount; t++) {
+            threads[t].join();
+            if (failures[t] != null) {
+                throw new IllegalStateException("Training thread failed", failures[t]);
+            }
+            cost += costs[t];
+        }
+        return cost / Math.max(1, order.length);
+    }
+
+    /**
+     * Trains on chunks of the order until it is exhausted.
+     * @return Cost summed over the samples this thread trained on.
+     */
+    private double work(SampleSource trainingData, int[] order, AtomicInteger next) {
+        Scratch scratch = new Scratch(network.getLayers());
+        double cost = 0;
+        int from;
+        while ((from = next.getAndAdd(CHUNK_SIZE)) < order.length) {
+            int to = Math.min(from + CHUNK_SIZE, order.length);
+            for (int k = from; k < to; k++) {
+                cost += iteration(trainingData, order[k], scratch);
+            }
+        }
+        return cost;
+    }
+
+    /**
+     * Performs a single per-sample training step against the shared weights.
+     * @return Cost of the sample.
+     */
+    private double iteration(SampleSource trainingData, int sample, Scratch scratch) {
+        List<NeuronLayer> layers = network.getLayers();
+        int last = layers.size() - 1;
+
+        trainingData.readInput(sample, scratch.outputs[0].data, 0);
+        Arrays.fill(scratch.expected.data, 0.0);
+        scratch.expected.data[trainingData.getLabel(sample)] = 1.0;
+
+        // feedforward, z = w * a + b walking the column-major weights and skipping inputs that are 0
+        for (int l = 1; l <= last; l++) {
+            NeuronLayer layer = layers.get(l);
+            DoubleMatrix weights = layer.getWeights();
+            double[] w = weights.data;
+            double[] a = scratch.outputs[l - 1].data;
+            double[] z = scratch.weightedOutputs[l].data;
+            System.arraycopy(layer.getBias().data, 0, z, 0, weights.rows);
+            for (int j = 0; j < weights.columns; j++) {
+                double activation = a[j];
+                if (activation == 0.0) {
+                    continue;
+                }
+                int offset = j * weights.rows;
+                for (int i = 0; i < weights.rows; i++) {
+                    z[i] += w[offset + i] * activation;
+                }
+            }
+            layer.getActivationFunction().fnInto(scratch.weightedOutputs[l], scratch.outputs[l]);
+        }
+
+        // backpropagate the error with the weights as they were read, before any of them change
+        double cost = costFunction.deltaAndCostInto(scratch.weightedOutputs[last], scratch.outputs[last], scratch.expected, scratch.deltas[last]);
+        for (int l = last; l > 1; l--) {
+            DoubleMatrix weights = layers.get(l).getWeights();
+            double[] w = weights.data;
+            double[] delta = scratch.deltas[l].data;
+            double[] previousDelta = scratch.deltas[l - 1].data;
+            // w' * delta, one column of the weights per element
+            for (int j = 0; j < weights.columns; j++) {
+                int offset = j * weights.rows;
+                double sum = 0;
+                for (int i = 0; i < weights.rows; i++) {
+                    sum += w[offset + i] * delta[i];
+                }
+                previousDelta[j] = sum;
+            }
+            ActivationFunction activation = layers.get(l - 1).getActivationFunction();
+            scratch.deltas[l - 1].muli(activation.derivativeInto(scratch.weightedOutputs[l - 1], scratch.outputs[l - 1], scratch.derivatives[l - 1]));
+        }
+
+        // apply the updates to the shared weights, only the columns of non-zero inputs change
+        for (int l = 1; l <= last; l++) {
+            NeuronLayer layer = layers.get(l);
+            DoubleMatrix weights = layer.getWeights();
+            double[] a = scratch.outputs[l - 1].data;
+            double[] delta = scratch.deltas[l].data;
+            for (int j = 0; j < weights.columns; j++) {
+                if (a[j] != 0.0) {
+                    if (mode == Mode.STRIPED) {
+                        synchronized (locks[stripe(l, j)]) {
+                            updateColumn(weights, j, delta, a[j]);
+                        }
+                    } else {
+                        updateColumn(weights, j, delta, a[j]);
+                    }
+                }
+            }
+            if (mode == Mode.STRIPED) {
+                // the bias vector takes the stripe of the column after the last weight column
+                synchronized (locks[stripe(l, weights.columns)]) {
+                    updateBias(layer.getBias(), delta);
+                }
+            } else {
+                updateBias(layer.getBias(), delta);
+            }
+        }
+
+        return cost;
+    }
+
+    /**
+     * Returns the lock of a column of a layer.
+     */
+    private static int stripe(int layer, int column) {
+        return (column * 31 + layer) & (STRIPES - 1);
+    }
+
+    /**
+     * Updates column j of the weights, w(:, j) = w(:, j) - learningRate * a(j) * delta.
+     */
+    private void updateColumn(DoubleMatrix weights, int j, double[] delta, double activation) {
+        double[] w = weights.data;
+        int offset = j * weights.rows;
+        double scale = learningRate * activation;
+        for (int i = 0; i < weights.rows; i++) {
+            w[offset + i] -= scale * delta[i];
+        }
+    }
+
+    /**
+     * Updates the bias vector, b = b - learningRate * delta.
+     */
+    private void updateBias(DoubleMatrix bias, double[] delta) {
+        double[] b = bias.data;
+        for (int i = 0; i < bias.rows; i++) {
+            b[i] -= learningRate * delta[i];
+        }
+    }
+}
@@ -1,12 +1,23 @@
 package training;
 
 import cost.CostFunction;
+import mnist.BatchPipeline;
+import mnist.Dataset;
 import mnist.MnistSet;
 import neural.NeuronLayer;
+import neural.MatrixKernels;
 import neural.NeuronNetwork;
+import neural.ParameterStore;
+import neural.Precision;
+import neural.SparseInput;
 import org.jblas.DoubleMatrix;
+import org.jblas.FloatMatrix;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
 import java.util.List;
+import java.util.Random;
 
 /**
  * Training class which performs training on a Neural Network using Back Propagation.
@@ -14,68 +25,416 @@ import java.util.List;
 public class BackPropagation {
 
     /**
-     * Class which is going to store the weight deltas for momentum to work.
+     * Running average of the computed costs, skipping the steps that did not compute one.
      */
-    class WeightState {
-        /**
-         * Creates a state which holds the weight deltas.
-         * @param prevOutputWeightGradient Output weight deltas.
-         * @param prevHiddenWeightGradient Hidden weight deltas.
-         */
-        WeightState (DoubleMatrix prevOutputWeightGradient, DoubleMatrix prevHiddenWeightGradient) {
-            this.prevOutputWeightGradient = prevOutputWeightGradient;
-            this.prevHiddenWeightGradient = prevHiddenWeightGradient;
+    private static final class RunningAverage {
+        private double sum;
+        private int count;
+
+        double add(double cost) {
+            if (!Double.isNaN(cost)) {
+                sum += cost;
+                count++;
+            }
+            return get();
+        }
+
+        double get() {
+            return count > 0 ? sum / count : Double.NaN;
         }
-        // previous weights that will be used for momentum
-        DoubleMatrix prevOutputWeightGradient;
-        DoubleMatrix prevHiddenWeightGradient;
     }
 
-    private double learningRate;
-    private double momentum;
+    private double learningRate; // learning rate of the current epoch
+    private final double baseLearningRate; // learning rate the schedule starts from
+    private LearningRateSchedule schedule; // null for a constant learning rate
+    private int epoch; // number of finished epochs
+    private Optimizer optimizer;
     private NeuronNetwork network;
     private CostFunction costFunction;
-    private WeightState prevState;
-    private double[] avg;
 
+    // recorded metrics, see setMetrics
+    private TrainingMetrics metrics;
+
+    // lazy cost evaluation, see setCostInterval
+    private int costInterval = 1;
+    private int stepsSinceCost;
+
+    // workspace mode state, see useWorkspace
+    private DoubleMatrix inputBuffer;
+    private DoubleMatrix expectedBuffer;
+
+    // sparse first-layer mode, see useSparseInputs
+    private SparseInput sparseBuffer;
+    private DoubleMatrix sparseGradient; // first-layer weight gradient outside workspace mode, active columns only
+
+    // single precision batch matrices, see iterationSingle
+    private FloatMatrix singleInput;
+    private FloatMatrix singleExpected;
+
+    // periodic checkpoints, see enableCheckpoints
+    private Path checkpointPath;
+    private int checkpointInterval;
+    private int stepsSinceCheckpoint;
+
+    // periodic updates of a parameter store, see enableParameterStore
+    private ParameterStore parameterStore;
+    private int publishInterval;
+    private int stepsSincePublish;
+
+    /**
+     * Creates the trainer with plain gradient descent, or classical momentum if the momentum is not 0.
+     * @param network Network to train.
+     * @param costFunction Cost function that is minimized.
+     * @param learningRate Learning rate of every step.
+     * @param momentum Momentum of the weight and bias updates, 0 for none.
+     */
     public BackPropagation(NeuronNetwork network, CostFunction costFunction, double learningRate, double momentum) {
+        this(network, costFunction, learningRate, momentum == 0.0 ? new SgdOptimizer() : new MomentumOptimizer(momentum));
+    }
+
+    /**
+     * Creates the trainer with the given optimizer.
+     * @param network Network to train.
+     * @param costFunction Cost function that is minimized.
+     * @param learningRate Learning rate of every step.
+     * @param optimizer Update rule applied to the weights and biases.
+     */
+    public BackPropagation(NeuronNetwork network, CostFunction costFunction, double learningRate, Optimizer optimizer) {
         // set the class variables
         this.network = network;
         this.costFunction = costFunction;
         this.learningRate = learningRate;
-        this.momentum = momentum;
-        this.prevState = null;
+        this.baseLearningRate = learningRate;
+        this.optimizer = optimizer;
         // notify the function that is going to be used
         System.out.println("Running BackPropagation with the following cost function: " + costFunction.getName());
     }
 
+    /**
+     * Returns the optimizer that applies the updates.
+     * @return Optimizer of the trainer.
+     */
+    public Optimizer getOptimizer() {
+        return optimizer;
+    }
+
+
+    /**
+     * Sets the schedule of the learning rate. The rate of the next epoch is taken from the schedule right away, later
+     * epochs take theirs when the previous epoch ends.
+     * @param schedule Schedule of the learning rate, null for the constant base learning rate.
+     */
+    public void setSchedule(LearningRateSchedule schedule) {
+        this.schedule = schedule;
+        this.learningRate = schedule != null ? schedule.getLearningRate(this.baseLearningRate, this.epoch) : this.baseLearningRate;
+    }
+
+    /**
+     * Returns the learning rate of the current epoch.
+     * @return Current learning rate.
+     */
+    public double getLearningRate() {
+        return learningRate;
+    }
+
+    /**
+     * Returns the number of finished epochs, every call to train or trainBatch is one epoch.
+     * @return Epoch count.
+     */
+    public int getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Trains epochs on freshly shuffled training data until the early stopping criterion stops training or the
+     * maximum number of epochs is reached, after which the best weights seen by the criterion are restored.
+     * @param trainingData Training data that will be used.
+     * @param batchSize Number of samples in a single batch.
+     * @param maxEpochs Largest number of epochs.
+     * @param stopping Criterion scoring the network after every epoch, null to train all epochs.
+     * @param random Random source of the shuffling.
+     * @return Number of epochs trained.
+     */
+    public int train(Dataset trainingData, int batchSize, int maxEpochs, EarlyStopping stopping, Random random) {
+        for (int i = 0; i < maxEpochs; i++) {
+            trainBatch(trainingData.shuffle(random), batchSize);
+            if (stopping != null && stopping.update(this.network)) {
+                stopping.restoreBest(this.network);
+                return i + 1;
+            }
+        }
+        if (stopping != null) {
+            stopping.restoreBest(this.network);
+        }
+        return maxEpochs;
+    }
+
+    /**
+     * Makes the training steps compute the cost only every given number of steps. The cost is computed in the same
+     * pass over the output as the output error, other steps skip it and return NaN. The running averages returned by
+     * train and trainBatch average the computed costs only.
+     * @param interval Number of steps per computed cost, 1 to compute it every step.
+     */
+    public void setCostInterval(int interval) {
+        if (interval < 1) {
+            throw new IllegalArgumentException("Cost interval must be at least 1, got " + interval);
+        }
+        this.costInterval = interval;
+        this.stepsSinceCost = 0;
+    }
+
+    /**
+     * Makes the trainer record the phase timings, throughput, allocations, loss and accuracy of every training step
+     * into the given metrics. Every call to train or trainBatch ends an epoch of the metrics.
+     * @param metrics Metrics to record into, null to stop recording.
+     */
+    public void setMetrics(TrainingMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Returns the metrics the trainer records into.
+     * @return Metrics of the trainer, null if none are recorded.
+     */
+    public TrainingMetrics getMetrics() {
+        return metrics;
+    }
 
+    /**
+     * Switches the trainer to workspace mode, in which every layer of the network owns preallocated buffers for
+     * batches of the given size and the weights are updated in place. Training steps on batches of that size then
+     * create no temporary matrices.
+     * @param batchSize Batch size the buffers are allocated for, 1 for per-sample training.
+     */
+    public void useWorkspace(int batchSize) {
+        this.network.allocateWorkspace(batchSize);
+        NeuronLayer inputLayer = this.network.getLayers().get(0);
+        this.inputBuffer = new DoubleMatrix(inputLayer.getNeuronCount(), batchSize);
+        this.expectedBuffer = new DoubleMatrix(this.network.getOutputLayer().getNeuronCount(), batchSize);
+    }
+
+    /**
+     * Makes train and trainBatch(Dataset) feed the inputs as sparse batches, so the first hidden layer only touches
+     * the weight columns of non-zero inputs. This pays off for binarized inputs of which most are 0.
+     *
+     * The feedforward and the weight gradient of the first layer skip the columns of inputs that are 0 in the whole
+     * batch. With SgdOptimizer the update skips them as well. Other optimizers update every column, since their state
+     * such as velocities changes even where the gradient is 0, so their update stays dense.
+     * @param enabled Whether the inputs are fed as sparse batches.
+     */
+    public void useSparseInputs(boolean enabled) {
+        NeuronLayer inputLayer = this.network.getLayers().get(0);
+        this.sparseBuffer = enabled ? new SparseInput(inputLayer.getNeuronCount()) : null;
+    }
+
+    /**
+     * Makes the trainer save the network to a checkpoint every given number of training steps and at the end of every
+     * call to train or trainBatch. A crashed job can resume from the checkpoint using NeuronNetwork.load. The checkpoint
+     * holds the network only: the epoch count, and with it the learning rate schedule, and the state of the optimizer
+     * are not saved, so a resumed job starts them over.
+     * @param path File the checkpoint is written to.
+     * @param interval Number of training steps (samples or batches) between two checkpoints.
+     */
+    public void enableCheckpoints(Path path, int interval) {
+        if (interval < 1) {
+            throw new IllegalArgumentException("Checkpoint interval must be at least 1, got " + interval);
+        }
+        this.checkpointPath = path;
+        this.checkpointInterval = interval;
+        this.stepsSinceCheckpoint = 0;
+    }
+
+    /**
+     * Makes the trainer copy the network into a parameter store every given number of training steps and at the end
+     * of every call to train or trainBatch. Scoring processes that mapped the file of the store see the new weights
+     * without reloading the checkpoint.
+     * @param store Writable store with the layer sizes of the network.
+     * @param interval Number of training steps (samples or batches) between two updates.
+     */
+    public void enableParameterStore(ParameterStore store, int interval) {
+        if (interval < 1) {
+            throw new IllegalArgumentException("Parameter store interval must be at least 1, got " + interval);
+        }
+        if (!store.isWritable()) {
+            throw new IllegalArgumentException("Parameter store is read-only");
+        }
+        this.parameterStore = store;
+        this.publishInterval = interval;
+        this.stepsSincePublish = 0;
+    }
+
+    /**
+     * Counts a finished training step and writes a checkpoint and updates the parameter store when they are due.
+     * @param force Write the checkpoint and update the store regardless of the intervals.
+     */
+    private void checkpoint(boolean force) {
+        if (this.parameterStore != null) {
+            this.stepsSincePublish++;
+            if (force || this.stepsSincePublish >= this.publishInterval) {
+                this.parameterStore.store(this.network);
+                this.stepsSincePublish = 0;
+            }
+        }
+        if (this.checkpointPath == null) {
+            return;
+        }
+        this.stepsSinceCheckpoint++;
+        if (force || this.stepsSinceCheckpoint >= this.checkpointInterval) {
+            try {
+                this.network.save(this.checkpointPath);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to write checkpoint " + this.checkpointPath, e);
+            }
+            this.stepsSinceCheckpoint = 0;
+        }
+    }
+
+    /**
+     * Performs per-sample training, the weights are updated once per training set.
+     * @param trainingSets Training sets that will be used.
+     * @return Running average of the cost after every training set.
+     */
     public double[] train(List<MnistSet> trainingSets) {
-        boolean output = false;
-        int epoch = 1;
-        double sum = 0;
-        double average = 0.0;
-        avg = new double[50002];
+        RunningAverage cost = new RunningAverage();
+        double[] average = new double[trainingSets.size()];
 
-        for (MnistSet trainingSet : trainingSets) {
-            double error = iteration(trainingSet);
-            sum += error;
-            average = sum/epoch;
-            if (output) System.out.println("Epoch " + epoch + " | Error: " + error + " | Average: " + average);
-            epoch++;
-            avg[epoch] = average;
+        for (int i = 0; i < trainingSets.size(); i++) {
+            MnistSet trainingSet = trainingSets.get(i);
+            double error = this.sparseBuffer != null ?
+                    iteration(this.sparseBuffer.fill(trainingSet.getInput()), trainingSet.getOutput()) :
+                    iteration(trainingSet);
+            average[i] = cost.add(error);
+            checkpoint(i == trainingSets.size() - 1);
         }
 
-        return avg;
+        endEpoch();
+        return average;
+    }
+
+    /**
+     * Performs mini-batch training. The training sets are split into batches of the given size, each batch is stacked
+     * into a single input and output matrix and the weights are updated once per batch using the averaged gradient.
+     * @param trainingSets Training sets that will be used.
+     * @param batchSize Number of training sets in a single batch.
+     * @return Running average of the cost after every batch.
+     */
+    public double[] trainBatch(List<MnistSet> trainingSets, int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1, got " + batchSize);
+        }
+
+        int batches = (trainingSets.size() + batchSize - 1) / batchSize;
+        RunningAverage cost = new RunningAverage();
+        double[] average = new double[batches];
+
+        for (int batch = 0; batch < batches; batch++) {
+            int from = batch * batchSize;
+            int to = Math.min(from + batchSize, trainingSets.size());
+            List<MnistSet> batchSets = trainingSets.subList(from, to);
+
+            if (this.inputBuffer != null && this.inputBuffer.columns == batchSets.size()) {
+                // reuse the workspace batch matrices
+                cost.add(iteration(MnistSet.stackInputs(batchSets, this.inputBuffer), MnistSet.stackOutputs(batchSets, this.expectedBuffer)));
+            } else {
+                cost.add(iteration(MnistSet.stackInputs(batchSets), MnistSet.stackOutputs(batchSets)));
+            }
+            average[batch] = cost.get();
+            checkpoint(batch == batches - 1);
+        }
+
+        endEpoch();
+        return average;
+    }
+
+    /**
+     * Performs mini-batch training on a compact dataset, expanding every batch into matrices when it is used.
+     * @param trainingData Training data that will be used.
+     * @param batchSize Number of samples in a single batch.
+     * @return Running average of the cost after every batch.
+     */
+    public double[] trainBatch(Dataset trainingData, int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1, got " + batchSize);
+        }
+
+        int batches = (trainingData.size() + batchSize - 1) / batchSize;
+        RunningAverage cost = new RunningAverage();
+        double[] average = new double[batches];
+
+        for (int batch = 0; batch < batches; batch++) {
+            int from = batch * batchSize;
+            int to = Math.min(from + batchSize, trainingData.size());
+
+            if (this.sparseBuffer != null) {
+                DoubleMatrix expected = this.expectedBuffer != null && this.expectedBuffer.columns == to - from ?
+                        trainingData.batchOutputs(from, to, this.expectedBuffer) : trainingData.batchOutputs(from, to);
+                cost.add(iteration(trainingData.batchSparseInputs(from, to, this.sparseBuffer), expected));
+            } else if (this.inputBuffer != null && this.inputBuffer.columns == to - from) {
+                // reuse the workspace batch matrices
+                cost.add(iteration(trainingData.batchInputs(from, to, this.inputBuffer), trainingData.batchOutputs(from, to, this.expectedBuffer)));
+            } else {
+                cost.add(iteration(trainingData.batchInputs(from, to), trainingData.batchOutputs(from, to)));
+            }
+            average[batch] = cost.get();
+            checkpoint(batch == batches - 1);
+        }
+
+        endEpoch();
+        return average;
+    }
+
+    /**
+     * Performs mini-batch training on the batches delivered by a pipeline until it has delivered its last epoch. The
+     * pipeline assembles the next batches in the background while the current one is trained on.
+     * @param pipeline Pipeline delivering the batches.
+     * @return Running average of the cost after every batch.
+     * @throws InterruptedException If the thread was interrupted while waiting for a batch.
+     */
+    public double[] train(BatchPipeline pipeline) throws InterruptedException {
+        int batches = pipeline.getBatchesPerEpoch() * pipeline.getEpochs();
+        RunningAverage cost = new RunningAverage();
+        double[] average = new double[batches];
+
+        BatchPipeline.Batch current;
+        for (int batch = 0; (current = pipeline.next()) != null; batch++) {
+            cost.add(iteration(current.getInputs(), current.getOutputs()));
+            average[batch] = cost.get();
+            pipeline.recycle(current);
+            checkpoint(batch == batches - 1);
+            if ((batch + 1) % pipeline.getBatchesPerEpoch() == 0) {
+                endEpoch();
+            }
+        }
+
+        return average;
     }
 
     public double iteration(MnistSet trainingPair) {
-        DoubleMatrix delta;
+        return iteration(trainingPair.getInput(), trainingPair.getOutput());
+    }
+
+    /**
+     * Performs a single training step on a batch of training sets. Every column of the input and expected output
+     * matrices is a single training set, so a single training set is simply a batch of size one.
+     * @param input Input matrix with one training set per column.
+     * @param expected Expected output matrix with one training set per column.
+     * @return Average cost of the batch.
+     */
+    public double iteration(DoubleMatrix input, DoubleMatrix expected) {
+        int batchSize = input.columns;
+
+        startStep();
+        if (this.network.getPrecision() == Precision.SINGLE) {
+            return endStep(expected, iterationSingle(input, expected));
+        }
+        if (this.network.getOutputLayer().hasWorkspace(batchSize)) {
+            return endStep(expected, iterationInPlace(input, expected));
+        }
 
         /**
          * Step 1: Set the corresponding activation for the neural network.
          */
-        DoubleMatrix activation = trainingPair.getInput();
+        DoubleMatrix activation = input;
 
         /**
          * Step 2: Feedforward which will compute z and a for each layer in the network.
@@ -83,61 +442,366 @@ public class BackPropagation {
          *  a = output
          */
         DoubleMatrix result = this.network.feedForward(activation);
+        lap(TrainingMetrics.Phase.FEED_FORWARD);
+
+        return endStep(expected, backPropagate(result, expected));
+    }
+
+    /**
+     * Performs a single training step on a batch of sparse inputs, in which the first hidden layer only reads and
+     * updates the weight columns of the non-zero inputs. In single precision the inputs are expanded first.
+     * @param input Sparse inputs with one training set per column.
+     * @param expected Expected output matrix with one training set per column.
+     * @return Average cost of the batch.
+     */
+    public double iteration(SparseInput input, DoubleMatrix expected) {
+        startStep();
+        if (this.network.getPrecision() == Precision.SINGLE) {
+            return endStep(expected, iterationSingle(input.toDense(), expected));
+        }
+        DoubleMatrix result = this.network.feedForward(input);
+        lap(TrainingMetrics.Phase.FEED_FORWARD);
+        if (this.network.getOutputLayer().hasWorkspace(input.getColumns())) {
+            return endStep(expected, backPropagateInPlace(result, expected));
+        }
+        return endStep(expected, backPropagate(result, expected));
+    }
+
+    /**
+     * Steps 3 to 5 of a training step, following the feedforward of a batch.
+     * @param result Output of the network for the batch.
+     * @param expected Expected output matrix with one training set per column.
+     * @return Average cost of the batch.
+     */
+    private double backPropagate(DoubleMatrix result, DoubleMatrix expected) {
+        DoubleMatrix delta;
+        int batchSize = result.columns;
 
         /**
          * Step 3: Compute the output error vector.
-         * This also does Step 5 when calculating 'outputWeightGradient'.
+         * For a batch the gradients are summed over all columns and then averaged.
          */
-        NeuronLayer outputLayer = this.network.getOutputLayer();
-        delta = this.costFunction.delta(outputLayer.getWeightedOutput(), outputLayer.getOutput(), trainingPair.getOutput());
-        // set the gradients
-        DoubleMatrix outputWeightGradient = delta.mmul(outputLayer.getInput().transpose());
-        DoubleMatrix outputBiasGradient = delta;
+        List<NeuronLayer> layers = this.network.getLayers();
+        int last = layers.size() - 1;
+        NeuronLayer outputLayer = layers.get(last);
+        delta = new DoubleMatrix(result.rows, batchSize);
+        double cost = outputError(outputLayer.getWeightedOutput(), outputLayer.getOutput(), expected, delta);
+        lap(TrainingMetrics.Phase.DELTA);
+
+        /**
+         * Step 4 and 5: Walk back from the output layer, computing the gradients of every layer and backpropagating
+         * the error to the layer before it. All gradients are computed before any weight changes.
+         */
+        double scale = 1.0 / batchSize;
+        DoubleMatrix[] weightGradients = new DoubleMatrix[layers.size()];
+        DoubleMatrix[] biasGradients = new DoubleMatrix[layers.size()];
+        for (int l = last; l > 0; l--) {
+            NeuronLayer layer = layers.get(l);
+            // set the gradients
+            SparseInput sparseInput = layer.getSparseInput();
+            if (sparseInput != null) {
+                if (this.sparseGradient == null || this.sparseGradient.rows != delta.rows || this.sparseGradient.columns != sparseInput.getRows()) {
+                    this.sparseGradient = new DoubleMatrix(delta.rows, sparseInput.getRows());
+                }
+                weightGradients[l] = MatrixKernels.gemmNTActive(scale, delta, sparseInput, this.sparseGradient);
+            } else {
+                weightGradients[l] = delta.mmul(layer.getInput().transpose()).muli(scale);
+            }
+            biasGradients[l] = delta.rowSums().muli(scale);
+            lap(TrainingMetrics.Phase.GRADIENT);
+
+            if (l > 1) {
+                NeuronLayer previousLayer = layers.get(l - 1);
+                // separating the calculation into two separate lines
+                delta = layer.getWeights().transpose().mmul(delta);
+                DoubleMatrix weightedOutput = previousLayer.getWeightedOutput();
+                delta = delta.mul(previousLayer.getActivationFunction().derivativeInto(weightedOutput, previousLayer.getOutput(), new DoubleMatrix(weightedOutput.rows, weightedOutput.columns)));
+                lap(TrainingMetrics.Phase.DELTA);
+            }
+        }
 
         /**
-         * Step 4: Backpropagate the error to the hidden layer.
-         * This also does Step 5 when calculating 'hiddenWeightGradient'.
+         * Apply the changes to the weights and bias for every layer.
          */
-        NeuronLayer hiddenLayer = outputLayer.getPreviousLayer();
-        // separating the calculation into two separate lines
-        delta = outputLayer.getWeights().transpose().mmul(delta);
-        delta = delta.mul(hiddenLayer.getActivationFunction().delta(hiddenLayer.getWeightedOutput()));
-        // set the gradients
-        DoubleMatrix hiddenWeightGradient = delta.mmul(hiddenLayer.getInput().transpose());
-        DoubleMatrix hiddenBiasGradient = delta;
+        this.optimizer.startStep();
+        for (int l = last; l > 0; l--) {
+            NeuronLayer layer = layers.get(l);
+            updateWeights(l, layer, weightGradients[l]);
+            this.optimizer.update(biasParameter(l), layer.getBias(), biasGradients[l], this.learningRate);
+        }
+        lap(TrainingMetrics.Phase.UPDATE);
+
+        /**
+         * Return the error calculated using the cost function, averaged over the batch.
+         */
+        return cost / batchSize;
+    }
+
+    /**
+     * Same training step as iteration, but computed in the workspace buffers of the layers with the weights and biases
+     * updated in place.
+     * @param input Input matrix with one training set per column.
+     * @param expected Expected output matrix with one training set per column.
+     * @return Average cost of the batch.
+     */
+    private double iterationInPlace(DoubleMatrix input, DoubleMatrix expected) {
+        /**
+         * Feedforward into the z and a buffers of every layer.
+         */
+        DoubleMatrix result = this.network.feedForward(input);
+        lap(TrainingMetrics.Phase.FEED_FORWARD);
+
+        return backPropagateInPlace(result, expected);
+    }
+
+    /**
+     * Backward half of iterationInPlace, following the feedforward of a batch.
+     * @param result Output of the network for the batch.
+     * @param expected Expected output matrix with one training set per column.
+     * @return Average cost of the batch.
+     */
+    private double backPropagateInPlace(DoubleMatrix result, DoubleMatrix expected) {
+        int batchSize = result.columns;
+
+        /**
+         * Compute the output error.
+         */
+        List<NeuronLayer> layers = this.network.getLayers();
+        int last = layers.size() - 1;
+        NeuronLayer outputLayer = layers.get(last);
+        double cost = outputError(outputLayer.getWeightedOutput(), outputLayer.getOutput(), expected, outputLayer.getDelta());
+        lap(TrainingMetrics.Phase.DELTA);
+
+        /**
+         * Walk back from the output layer, computing the averaged gradients of every layer into its buffers and
+         * backpropagating the error into the delta buffer of the layer before it.
+         */
+        double scale = 1.0 / batchSize;
+        for (int l = last; l > 0; l--) {
+            NeuronLayer layer = layers.get(l);
+            DoubleMatrix delta = layer.getDelta();
+            if (layer.getSparseInput() != null) {
+                MatrixKernels.gemmNTActive(scale, delta, layer.getSparseInput(), layer.getWeightGradient());
+            } else {
+                MatrixKernels.gemmNT(scale, delta, layer.getInput(), 0.0, layer.getWeightGradient());
+            }
+            MatrixKernels.rowSumsInto(delta, layer.getBiasGradient()).muli(scale);
+            lap(TrainingMetrics.Phase.GRADIENT);
+
+            if (l > 1) {
+                NeuronLayer previousLayer = layers.get(l - 1);
+                MatrixKernels.gemmTN(1.0, layer.getWeights(), delta, 0.0, previousLayer.getDelta())
+                        .muli(previousLayer.getActivationFunction().derivativeInto(previousLayer.getWeightedOutput(), previousLayer.getOutput(), previousLayer.getDerivative()));
+                lap(TrainingMetrics.Phase.DELTA);
+            }
+        }
+
+        /**
+         * Apply the changes in place.
+         */
+        this.optimizer.startStep();
+        for (int l = last; l > 0; l--) {
+            NeuronLayer layer = layers.get(l);
+            updateWeights(l, layer, layer.getWeightGradient());
+            this.optimizer.update(biasParameter(l), layer.getBias(), layer.getBiasGradient(), this.learningRate);
+        }
+        lap(TrainingMetrics.Phase.UPDATE);
+
+        return cost / batchSize;
+    }
+
+    /**
+     * Same training step as iterationInPlace, run in single precision on the float weights of the layers. The batch is
+     * converted to floats first, the error buffers are taken from the workspace when it matches the batch size and
+     * created otherwise.
+     * @param input Input matrix with one training set per column.
+     * @param expected Expected output matrix with one training set per column.
+     * @return Average cost of the batch.
+     */
+    private double iterationSingle(DoubleMatrix input, DoubleMatrix expected) {
+        int batchSize = input.columns;
+        if (this.singleInput == null || this.singleInput.rows != input.rows || this.singleInput.columns != batchSize) {
+            this.singleInput = new FloatMatrix(input.rows, batchSize);
+            this.singleExpected = new FloatMatrix(expected.rows, batchSize);
+        }
+        MatrixKernels.copyInto(input, this.singleInput);
+        MatrixKernels.copyInto(expected, this.singleExpected);
 
         /**
-         * Apply the changes to the weights and bias for the output layer.
+         * Feedforward in single precision.
          */
-        outputLayer.setWeights(
-                (this.prevState == null || this.momentum == 0.0) ?
-                        outputLayer.getWeights().sub(outputWeightGradient.mul(this.learningRate)) :
-                        outputLayer.getWeights().sub(outputWeightGradient.mul(this.learningRate)).add(this.prevState.prevOutputWeightGradient.mul(this.momentum))
-        );
-        outputLayer.setBias(
-                outputLayer.getBias().sub(outputBiasGradient.mul(this.learningRate))
-        );
+        FloatMatrix result = this.network.feedForward(this.singleInput);
+        lap(TrainingMetrics.Phase.FEED_FORWARD);
 
         /**
-         * Apply the changes to the weights ans bias for the hidden layer.
+         * Compute the output error.
          */
-        hiddenLayer.setWeights(
-                (this.prevState == null || this.momentum == 0.0) ?
-                        hiddenLayer.getWeights().sub(hiddenWeightGradient.mul(this.learningRate)) :
-                        hiddenLayer.getWeights().sub(hiddenWeightGradient.mul(this.learningRate)).add(this.prevState.prevHiddenWeightGradient.mul(this.momentum))
-        );
-        hiddenLayer.setBias(
-                hiddenLayer.getBias().sub(hiddenBiasGradient.mul(this.learningRate))
-        );
+        List<NeuronLayer> layers = this.network.getLayers();
+        int last = layers.size() - 1;
+        NeuronLayer outputLayer = layers.get(last);
+        boolean workspace = outputLayer.hasWorkspace(batchSize);
+        FloatMatrix delta = workspace ? outputLayer.getSingleDelta() : new FloatMatrix(result.rows, batchSize);
+        double cost;
+        if (measureCost()) {
+            cost = this.costFunction.deltaAndCostInto(outputLayer.getSingleWeightedOutput(), result, this.singleExpected, delta);
+        } else {
+            this.costFunction.deltaInto(outputLayer.getSingleWeightedOutput(), result, this.singleExpected, delta);
+            cost = Double.NaN;
+        }
+        lap(TrainingMetrics.Phase.DELTA);
 
         /**
-         * Update the state with the current weights.
+         * Walk back from the output layer, computing the averaged gradients of every layer and backpropagating the
+         * error.
          */
-        this.prevState = new WeightState(outputWeightGradient, hiddenWeightGradient);
+        float scale = 1.0f / batchSize;
+        for (int l = last; l > 0; l--) {
+            NeuronLayer layer = layers.get(l);
+            MatrixKernels.gemmNT(scale, delta, layer.getSingleInput(), 0.0f, layer.getSingleWeightGradient());
+            MatrixKernels.rowSumsInto(delta, layer.getSingleBiasGradient()).muli(scale);
+            lap(TrainingMetrics.Phase.GRADIENT);
+
+            if (l > 1) {
+                NeuronLayer previousLayer = layers.get(l - 1);
+                FloatMatrix weightedOutput = previousLayer.getSingleWeightedOutput();
+                FloatMatrix previousDelta = workspace ? previousLayer.getSingleDelta() : new FloatMatrix(weightedOutput.rows, batchSize);
+                FloatMatrix derivative = workspace ? previousLayer.getSingleDerivative() : new FloatMatrix(weightedOutput.rows, batchSize);
+                delta = MatrixKernels.gemmTN(1.0f, layer.getSingleWeights(), delta, 0.0f, previousDelta)
+                        .muli(previousLayer.getActivationFunction().derivativeInto(weightedOutput, previousLayer.getSingleOutput(), derivative));
+                lap(TrainingMetrics.Phase.DELTA);
+            }
+        }
 
         /**
-         * Return the error calculated using the cost function.
+         * Apply the changes in place.
          */
-        return this.costFunction.fn(result, trainingPair.getOutput());
+        this.optimizer.startStep();
+        for (int l = last; l > 0; l--) {
+            NeuronLayer layer = layers.get(l);
+            this.optimizer.update(weightParameter(l), layer.getSingleWeights(), layer.getSingleWeightGradient(), this.learningRate);
+            this.optimizer.update(biasParameter(l), layer.getSingleBias(), layer.getSingleBiasGradient(), this.learningRate);
+        }
+        lap(TrainingMetrics.Phase.UPDATE);
+
+        return cost / batchSize;
+    }
+
+    /**
+     * Computes the output error into the given matrix, together with the cost on the steps that measure it.
+     * @return Cost summed over the batch, NaN if this step does not measure it.
+     */
+    private double outputError(DoubleMatrix z, DoubleMatrix a, DoubleMatrix y, DoubleMatrix delta) {
+        if (measureCost()) {
+            return this.costFunction.deltaAndCostInto(z, a, y, delta);
+        }
+        this.costFunction.deltaInto(z, a, y, delta);
+        return Double.NaN;
+    }
+
+    /**
+     * Counts a training step and returns whether it computes the cost, the first step after setCostInterval does.
+     */
+    private boolean measureCost() {
+        boolean measure = this.stepsSinceCost == 0;
+        this.stepsSinceCost = (this.stepsSinceCost + 1) % this.costInterval;
+        return measure;
+    }
+
+    /**
+     * Starts recording a training step if metrics are recorded.
+     */
+    private void startStep() {
+        if (this.metrics != null) {
+            this.metrics.startStep();
+        }
+    }
+
+    /**
+     * Ends a phase of the current training step if metrics are recorded.
+     */
+    private void lap(TrainingMetrics.Phase phase) {
+        if (this.metrics != null) {
+            this.metrics.lap(phase);
+        }
+    }
+
+    /**
+     * Ends recording a training step, counting the samples the output layer still holds the pre-update output of as
+     * correct if their largest output matches the expected class.
+     * @return The cost of the step.
+     */
+    private double endStep(DoubleMatrix expected, double cost) {
+        if (this.metrics == null) {
+            return cost;
+        }
+        NeuronLayer outputLayer = this.network.getOutputLayer();
+        int rows = expected.rows;
+        int correct = 0;
+        for (int j = 0; j < expected.columns; j++) {
+            int offset = j * rows;
+            int predicted = 0;
+            int label = 0;
+            for (int i = 1; i < rows; i++) {
+                if (output(outputLayer, offset + i) > output(outputLayer, offset + predicted)) {
+                    predicted = i;
+                }
+                if (expected.data[offset + i] > expected.data[offset + label]) {
+                    label = i;
+                }
+            }
+            if (predicted == label) {
+                correct++;
+            }
+        }
+        this.metrics.endStep(expected.columns, correct, cost);
+        return cost;
+    }
+
+    /**
+     * Returns an element of the output of the output layer in the precision of the network.
+     */
+    private double output(NeuronLayer outputLayer, int index) {
+        return this.network.getPrecision() == Precision.SINGLE ?
+                outputLayer.getSingleOutput().data[index] : outputLayer.getOutput().data[index];
+    }
+
+    /**
+     * Ends an epoch of the metrics if metrics are recorded and moves on to the learning rate of the next epoch.
+     */
+    private void endEpoch() {
+        if (this.metrics != null) {
+            this.metrics.endEpoch();
+        }
+        this.epoch++;
+        if (this.schedule != null) {
+            this.learningRate = this.schedule.getLearningRate(this.baseLearningRate, this.epoch);
+        }
+    }
+
+    /**
+     * Updates the weights of a layer, only the columns of the active inputs if the layer was fed sparse inputs.
+     */
+    private void updateWeights(int l, NeuronLayer layer, DoubleMatrix weightGradient) {
+        SparseInput sparseInput = layer.getSparseInput();
+        if (sparseInput != null) {
+            this.optimizer.updateColumns(weightParameter(l), layer.getWeights(), weightGradient,
+                    sparseInput.getActiveRows(), sparseInput.getActiveRowCount(), this.learningRate);
+        } else {
+            this.optimizer.update(weightParameter(l), layer.getWeights(), weightGradient, this.learningRate);
+        }
+    }
+
+    /**
+     * Returns the optimizer parameter number of the weights of a layer.
+     */
+    private static int weightParameter(int layer) {
+        return 2 * layer;
+    }
+
+    /**
+     * Returns the optimizer parameter number of the biases of a layer.
+     */
+    private static int biasParameter(int layer) {
+        return 2 * layer + 1;
     }
 }
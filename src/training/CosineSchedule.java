@@ -0,0 +1,36 @@
+package training;
+
+/**
+ * Anneals the learning rate from the base rate to a minimum along half a cosine over a fixed number of epochs,
+ * rate = minRate + (baseRate - minRate) * (1 + cos(pi * epoch / epochs)) / 2. Later epochs keep the minimum.
+ */
+public class CosineSchedule implements LearningRateSchedule {
+
+    private final int epochs;
+    private final double minRate;
+
+    /**
+     * Creates the schedule.
+     * @param epochs Number of epochs the rate is annealed over.
+     * @param minRate Learning rate at the end of the annealing.
+     */
+    public CosineSchedule(int epochs, double minRate) {
+        if (epochs < 1) {
+            throw new IllegalArgumentException("Epochs must be at least 1, got " + epochs);
+        }
+        this.epochs = epochs;
+        this.minRate = minRate;
+    }
+
+    @Override
+    public double getLearningRate(double baseRate, int epoch) {
+        return anneal(baseRate, minRate, Math.min(epoch, epochs), epochs);
+    }
+
+    /**
+     * Returns the cosine annealed rate at a position of a cycle.
+     */
+    static double anneal(double baseRate, double minRate, int position, int length) {
+        return minRate + (baseRate - minRate) * (1 + Math.cos(Math.PI * position / length)) / 2;
+    }
+}
@@ -0,0 +1,136 @@
+package training;
+
+import inference.EvaluationResult;
+import inference.Evaluator;
+import mnist.SampleSource;
+import neural.NeuronLayer;
+import neural.NeuronNetwork;
+import org.jblas.DoubleMatrix;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Stops training once the score on a validation set has not improved for a number of epochs. After every epoch the
+ * network is scored, and whenever the score improves the weights and biases are copied, so the best network can be
+ * restored when training stops.
+ */
+public class EarlyStopping {
+
+    /**
+     * Score that is monitored.
+     */
+    public enum Criterion {
+        /** Average validation cost, lower is better. */
+        LOSS,
+        /** Validation accuracy, higher is better. */
+        ACCURACY
+    }
+
+    private final SampleSource validationData;
+    private final Evaluator evaluator;
+    private final Criterion criterion;
+    private final int patience;
+    private final double minDelta;
+
+    private final List<EvaluationResult> history = new ArrayList<>();
+    private double bestScore = Double.NaN;
+    private int bestEpoch = -1;
+    private DoubleMatrix[] bestWeights;
+    private DoubleMatrix[] bestBiases;
+
+    /**
+     * Creates the criterion.
+     * @param validationData Samples the network is scored on, not trained on.
+     * @param evaluator Evaluator that scores the network.
+     * @param criterion Score that is monitored.
+     * @param patience Number of epochs without improvement after which training stops.
+     * @param minDelta Smallest change of the score that counts as an improvement.
+     */
+    public EarlyStopping(SampleSource validationData, Evaluator evaluator, Criterion criterion, int patience, double minDelta) {
+        if (patience < 1) {
+            throw new IllegalArgumentException("Patience must be at least 1, got " + patience);
+        }
+        this.validationData = validationData;
+        this.evaluator = evaluator;
+        this.criterion = criterion;
+        this.patience = patience;
+        this.minDelta = minDelta;
+    }
+
+    /**
+     * Scores the network after an epoch and remembers its weights if the score improved.
+     * @param network Network after the epoch.
+     * @return True if training should stop, false otherwise.
+     */
+    public boolean update(NeuronNetwork network) {
+        EvaluationResult result = evaluator.evaluate(network, validationData);
+        history.add(result);
+        // compare as a loss, accuracy is negated so that lower is better for both
+        double score = criterion == Criterion.LOSS ? result.getAverageCost() : -result.getAccuracy();
+        if (bestEpoch < 0 || score < bestScore - minDelta) {
+            bestScore = score;
+            bestEpoch = history.size() - 1;
+            saveWeights(network);
+        }
+        return history.size() - 1 - bestEpoch >= patience;
+    }
+
+    /**
+     * Copies the weights and biases of the best epoch back into the network. Does nothing if no epoch was scored.
+     * @param network Network that was passed to update.
+     */
+    public void restoreBest(NeuronNetwork network) {
+        if (bestWeights == null) {
+            return;
+        }
+        List<NeuronLayer> layers = network.getLayers();
+        for (int l = 1; l < layers.size(); l++) {
+            layers.get(l).importWeights(bestWeights[l]);
+            layers.get(l).importBias(bestBiases[l]);
+        }
+    }
+
+    /**
+     * Returns the epoch with the best score.
+     * @return Index of the best epoch among the scored ones, -1 if none was scored.
+     */
+    public int getBestEpoch() {
+        return bestEpoch;
+    }
+
+    /**
+     * Returns the validation scores of the best epoch.
+     * @return Scores of the best epoch, null if none was scored.
+     */
+    public EvaluationResult getBest() {
+        return bestEpoch < 0 ? null : history.get(bestEpoch);
+    }
+
+    /**
+     * Returns the validation scores of every scored epoch.
+     * @return Scores in the order of the epochs.
+     */
+    public List<EvaluationResult> getHistory() {
+        return Collections.unmodifiableList(history);
+    }
+
+    private void saveWeights(NeuronNetwork network) {
+        List<NeuronLayer> layers = network.getLayers();
+        if (bestWeights == null) {
+            bestWeights = new DoubleMatrix[layers.size()];
+            bestBiases = new DoubleMatrix[layers.size()];
+        }
+        for (int l = 1; l < layers.size(); l++) {
+            NeuronLayer layer = layers.get(l);
+            if (bestWeights[l] == null) {
+                bestWeights[l] = new DoubleMatrix(layer.getNeuronCount(), layer.getPreviousLayer().getNeuronCount());
+                bestBiases[l] = new DoubleMatrix(layer.getNeuronCount());
+            }
+            // reuse the copies of earlier improvements
+            layer.exportWeights(bestWeights[l]);
+            layer.exportBias(bestBiases[l]);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package training;
+
+import java.util.Locale;
+
+/**
+ * Summary of one training epoch: the average loss and accuracy of the samples trained on, the throughput, the
+ * allocation rate and the time spent in every phase of the training steps.
+ */
+public final class EpochMetrics {
+
+    private final int epoch;
+    private final long steps;
+    private final long samples;
+    private final double loss;
+    private final double accuracy;
+    private final long nanos;
+    private final long allocatedBytes;
+    private final long[] phaseNanos;
+
+    EpochMetrics(int epoch, long steps, long samples, double loss, double accuracy, long nanos, long allocatedBytes, long[] phaseNanos) {
+        this.epoch = epoch;
+        this.steps = steps;
+        this.samples = samples;
+        this.loss = loss;
+        this.accuracy = accuracy;
+        this.nanos = nanos;
+        this.allocatedBytes = allocatedBytes;
+        this.phaseNanos = phaseNanos.clone();
+    }
+
+    /**
+     * Returns the number of the epoch, starting at 1.
+     * @return Epoch number.
+     */
+    public int getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Returns the number of training steps of the epoch.
+     * @return Step count.
+     */
+    public long getSteps() {
+        return steps;
+    }
+
+    /**
+     * Returns the number of samples trained on.
+     * @return Sample count.
+     */
+    public long getSamples() {
+        return samples;
+    }
+
+    /**
+     * Returns the average cost of the samples, computed before every step updated the weights.
+     * @return Average loss.
+     */
+    public double getLoss() {
+        return loss;
+    }
+
+    /**
+     * Returns the fraction of samples the network classified correctly before its step updated the weights.
+     * @return Training accuracy between 0 and 1.
+     */
+    public double getAccuracy() {
+        return accuracy;
+    }
+
+    /**
+     * Returns the wall clock time from the start of the first step until the end of the epoch.
+     * @return Duration in nanoseconds.
+     */
+    public long getNanos() {
+        return nanos;
+    }
+
+    /**
+     * Returns the training throughput of the epoch.
+     * @return Samples per second.
+     */
+    public double getSamplesPerSecond() {
+        return nanos > 0 ? samples * 1e9 / nanos : 0.0;
+    }
+
+    /**
+     * Returns the bytes allocated by the training thread during the steps of the epoch.
+     * @return Allocated bytes, -1 if the JVM does not measure allocations.
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * Returns the average number of bytes allocated per step.
+     * @return Allocated bytes per step, -1 if the JVM does not measure allocations.
+     */
+    public double getAllocatedBytesPerStep() {
+        return allocatedBytes < 0 ? -1 : steps > 0 ? (double) allocatedBytes / steps : 0.0;
+    }
+
+    /**
+     * Returns the time spent in a phase of the training steps.
+     * @param phase Phase of a training step.
+     * @return Duration in nanoseconds.
+     */
+    public long getPhaseNanos(TrainingMetrics.Phase phase) {
+        return phaseNanos[phase.ordinal()];
+    }
+
+    /**
+     * Returns the header matching toCsv.
+     * @return Comma separated column names.
+     */
+    public static String csvHeader() {
+        StringBuilder header = new StringBuilder("epoch,steps,samples,loss,accuracy,seconds,samplesPerSecond,allocatedBytesPerStep");
+        for (TrainingMetrics.Phase phase : TrainingMetrics.Phase.values()) {
+            header.append(',').append(phase.getKey()).append("Nanos");
+        }
+        return header.toString();
+    }
+
+    /**
+     * Formats the epoch as a CSV row.
+     * @return Comma separated values in the order of csvHeader.
+     */
+    public String toCsv() {
+        StringBuilder row = new StringBuilder(String.format(Locale.ROOT, "%d,%d,%d,%.8f,%.6f,%.3f,%.1f,%.1f",
+                epoch, steps, samples, loss, accuracy, nanos / 1e9, getSamplesPerSecond(), getAllocatedBytesPerStep()));
+        for (long phase : phaseNanos) {
+            row.append(',').append(phase);
+        }
+        return row.toString();
+    }
+
+    /**
+     * Formats the epoch as a JSON object.
+     * @return JSON with the same values as toCsv.
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder(String.format(Locale.ROOT,
+                "{\"epoch\":%d,\"steps\":%d,\"samples\":%d,\"loss\":%s,\"accuracy\":%s,\"seconds\":%s,\"samplesPerSecond\":%s,\"allocatedBytesPerStep\":%s",
+                epoch, steps, samples, jsonNumber("%.8f", loss), jsonNumber("%.6f", accuracy), jsonNumber("%.3f", nanos / 1e9),
+                jsonNumber("%.1f", getSamplesPerSecond()), jsonNumber("%.1f", getAllocatedBytesPerStep())));
+        for (TrainingMetrics.Phase phase : TrainingMetrics.Phase.values()) {
+            json.append(",\"").append(phase.getKey()).append("Nanos\":").append(phaseNanos[phase.ordinal()]);
+        }
+        return json.append('}').toString();
+    }
+
+    /**
+     * Formats a JSON number, null for NaN and the infinities, which JSON cannot represent.
+     */
+    static String jsonNumber(String format, double value) {
+        return Double.isFinite(value) ? String.format(Locale.ROOT, format, value) : "null";
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "Epoch %d | Loss: %.6f | Accuracy: %.4f | %.1f samples/s", epoch, loss, accuracy, getSamplesPerSecond());
+    }
+}
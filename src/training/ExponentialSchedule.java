@@ -0,0 +1,25 @@
+package training;
+
+/**
+ * Decays the learning rate by a constant factor every epoch, rate = baseRate * gamma^epoch.
+ */
+public class ExponentialSchedule implements LearningRateSchedule {
+
+    private final double gamma;
+
+    /**
+     * Creates the schedule.
+     * @param gamma Factor the rate is multiplied with every epoch, usually slightly below 1.
+     */
+    public ExponentialSchedule(double gamma) {
+        if (gamma <= 0.0) {
+            throw new IllegalArgumentException("Gamma must be positive, got " + gamma);
+        }
+        this.gamma = gamma;
+    }
+
+    @Override
+    public double getLearningRate(double baseRate, int epoch) {
+        return baseRate * Math.pow(gamma, epoch);
+    }
+}
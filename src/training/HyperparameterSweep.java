@@ -0,0 +1,384 @@
+package training;
+
+import activation.SigmoidActivationFunction;
+import cost.CostFunction;
+import cost.CrossEntropyCostFunction;
+import inference.EvaluationResult;
+import inference.Evaluator;
+import mnist.Dataset;
+import mnist.MnistLoader;
+import mnist.Preprocessing;
+import mnist.SampleSource;
+import neural.NeuronLayer;
+import neural.NeuronNetwork;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Trains many hyperparameter configurations concurrently on a bounded thread pool. All configurations read the same
+ * training and validation data, which is shared read-only: every configuration trains on its own shuffled index view
+ * of the training set, the packed pixels exist only once.
+ *
+ * The sweep runs successive halving: every round trains the remaining configurations for a fixed number of epochs,
+ * scores them on the validation set and keeps the best 1 / reductionFactor of them for the next round, until a single
+ * configuration is left. Losing configurations stop early instead of using a full training budget. The results are
+ * ranked by the round a configuration reached and then by its validation accuracy.
+ *
+ * Usage: HyperparameterSweep [grid|random] [configurations] [epochs per round] [threads] [train labels] [train images]
+ */
+public class HyperparameterSweep {
+
+    // defaults point at the files used by Main
+    static final String trainLabelFile = "data/train-labels-idx1-ubyte.dat";
+    static final String trainImageFile = "data/train-images-idx3-ubyte.dat";
+    static final String resultFile = "data/sweep-results.txt";
+
+    /**
+     * Hyperparameters of a single training run.
+     */
+    public static final class Configuration {
+        private final double learningRate;
+        private final double momentum;
+        private final int hiddenNeurons;
+        private final int batchSize;
+
+        /**
+         * Creates the configuration.
+         * @param learningRate Learning rate of every step.
+         * @param momentum Momentum of the updates, 0 for plain gradient descent.
+         * @param hiddenNeurons Number of neurons of the hidden layer.
+         * @param batchSize Number of samples per training step.
+         */
+        public Configuration(double learningRate, double momentum, int hiddenNeurons, int batchSize) {
+            this.learningRate = learningRate;
+            this.momentum = momentum;
+            this.hiddenNeurons = hiddenNeurons;
+            this.batchSize = batchSize;
+        }
+
+        public double getLearningRate() {
+            return learningRate;
+        }
+
+        public double getMomentum() {
+            return momentum;
+        }
+
+        public int getHiddenNeurons() {
+            return hiddenNeurons;
+        }
+
+        public int getBatchSize() {
+            return batchSize;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "lr=%.4g momentum=%.3f hidden=%d batch=%d", learningRate, momentum, hiddenNeurons, batchSize);
+        }
+    }
+
+    /**
+     * Outcome of a configuration.
+     */
+    public static final class Result {
+        private final Configuration configuration;
+        private final int rounds;
+        private final int epochs;
+        private final EvaluationResult validation;
+        private final long nanos;
+
+        Result(Configuration configuration, int rounds, int epochs, EvaluationResult validation, long nanos) {
+            this.configuration = configuration;
+            this.rounds = rounds;
+            this.epochs = epochs;
+            this.validation = validation;
+            this.nanos = nanos;
+        }
+
+        public Configuration getConfiguration() {
+            return configuration;
+        }
+
+        /**
+         * Returns the number of rounds the configuration was trained in before it was cut off or won.
+         * @return Rounds reached, starting at 1.
+         */
+        public int getRounds() {
+            return rounds;
+        }
+
+        /**
+         * Returns the number of epochs the configuration was trained for.
+         * @return Epoch count.
+         */
+        public int getEpochs() {
+            return epochs;
+        }
+
+        /**
+         * Returns the scores on the validation set after the last round of the configuration.
+         * @return Validation scores.
+         */
+        public EvaluationResult getValidation() {
+            return validation;
+        }
+
+        /**
+         * Returns the time spent training and scoring the configuration.
+         * @return Duration in nanoseconds.
+         */
+        public long getNanos() {
+            return nanos;
+        }
+    }
+
+    /**
+     * Configuration in progress, owned by one pool thread at a time.
+     */
+    private static final class Run {
+        final Configuration configuration;
+        final NeuronNetwork network;
+        final BackPropagation trainer;
+        final Random random;
+        int rounds;
+        int epochs;
+        long nanos;
+        EvaluationResult validation;
+
+        Run(Configuration configuration, NeuronNetwork network, BackPropagation trainer, long seed) {
+            this.configuration = configuration;
+            this.network = network;
+            this.trainer = trainer;
+            this.random = new Random(seed);
+        }
+    }
+
+    // ranks by the round reached, then by validation accuracy, then by validation cost
+    private static final Comparator<Result> RANKING = Comparator.comparingInt(Result::getRounds).reversed()
+            .thenComparing(Comparator.comparingDouble((Result result) -> result.getValidation().getAccuracy()).reversed())
+            .thenComparingDouble(result -> result.getValidation().getAverageCost());
+
+    private final Dataset trainingData;
+    private final SampleSource validationData;
+    private final CostFunction costFunction;
+    private final int threadCount;
+    private final long seed;
+
+    /**
+     * Creates the sweep.
+     * @param trainingData Training data shared by all configurations.
+     * @param validationData Validation data the configurations are ranked on.
+     * @param costFunction Cost function that is minimized.
+     * @param threadCount Number of configurations trained at the same time.
+     * @param seed Seed of the shuffling of every configuration.
+     */
+    public HyperparameterSweep(Dataset trainingData, SampleSource validationData, CostFunction costFunction, int threadCount, long seed) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("Thread count must be at least 1, got " + threadCount);
+        }
+        this.trainingData = trainingData;
+        this.validationData = validationData;
+        this.costFunction = costFunction;
+        this.threadCount = threadCount;
+        this.seed = seed;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        boolean grid = args.length == 0 || !args[0].equals("random");
+        int count = args.length > 1 ? Integer.parseInt(args[1]) : 27;
+        int epochsPerRound = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+        int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+        String labels = args.length > 4 ? args[4] : trainLabelFile;
+        String images = args.length > 5 ? args[5] : trainImageFile;
+
+        // split the training set into training and validation set like Main
+        Dataset data = new MnistLoader().createDataset(labels, images, Preprocessing.OTSU, null);
+        int split = data.size() * 5 / 6;
+        Dataset trainingData = data.slice(0, split);
+        Dataset validationData = data.slice(split, data.size());
+
+        List<Configuration> configurations = grid ?
+                grid(new double[]{0.05, 0.15, 0.5}, new double[]{0.0, 0.5, 0.9}, new int[]{30, 100, 300}, new int[]{10}) :
+                random(count, 0.01, 1.0, 0.9, new int[]{30, 50, 100, 200, 300}, new int[]{1, 10, 32}, 42);
+
+        HyperparameterSweep sweep = new HyperparameterSweep(trainingData, validationData, new CrossEntropyCostFunction(), threads, 42);
+        List<Result> results = sweep.run(configurations, epochsPerRound, 3);
+        String table = formatTable(results);
+        System.out.print(table);
+        Files.write(Paths.get(resultFile), table.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Creates every combination of the given values.
+     * @param learningRates Learning rates to try.
+     * @param momentums Momentums to try.
+     * @param hiddenNeurons Hidden layer sizes to try.
+     * @param batchSizes Batch sizes to try.
+     * @return Configurations of the grid.
+     */
+    public static List<Configuration> grid(double[] learningRates, double[] momentums, int[] hiddenNeurons, int[] batchSizes) {
+        List<Configuration> configurations = new ArrayList<>();
+        for (double learningRate : learningRates) {
+            for (double momentum : momentums) {
+                for (int hidden : hiddenNeurons) {
+                    for (int batchSize : batchSizes) {
+                        configurations.add(new Configuration(learningRate, momentum, hidden, batchSize));
+                    }
+                }
+            }
+        }
+        return configurations;
+    }
+
+    /**
+     * Draws configurations at random, the learning rate log-uniformly and the momentum uniformly.
+     * @param count Number of configurations.
+     * @param minLearningRate Smallest learning rate.
+     * @param maxLearningRate Largest learning rate.
+     * @param maxMomentum Largest momentum, the smallest is 0.
+     * @param hiddenNeurons Hidden layer sizes to choose from.
+     * @param batchSizes Batch sizes to choose from.
+     * @param seed Seed of the draws.
+     * @return Random configurations.
+     */
+    public static List<Configuration> random(int count, double minLearningRate, double maxLearningRate, double maxMomentum,
+                                             int[] hiddenNeurons, int[] batchSizes, long seed) {
+        Random random = new Random(seed);
+        double logMin = Math.log(minLearningRate);
+        double logMax = Math.log(maxLearningRate);
+        List<Configuration> configurations = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            double learningRate = Math.exp(logMin + random.nextDouble() * (logMax - logMin));
+            double momentum = random.nextDouble() * maxMomentum;
+            configurations.add(new Configuration(learningRate, momentum,
+                    hiddenNeurons[random.nextInt(hiddenNeurons.length)], batchSizes[random.nextInt(batchSizes.length)]));
+        }
+        return configurations;
+    }
+
+    /**
+     * Runs successive halving over the configurations.
+     * @param configurations Configurations to compare.
+     * @param epochsPerRound Number of epochs every remaining configuration is trained for per round.
+     * @param reductionFactor Every round keeps the best 1 / reductionFactor of the configurations, at least 2.
+     * @return Results of all configurations, best first.
+     * @throws InterruptedException If the thread was interrupted while waiting for the pool.
+     */
+    public List<Result> run(List<Configuration> configurations, int epochsPerRound, int reductionFactor) throws InterruptedException {
+        if (epochsPerRound < 1) {
+            throw new IllegalArgumentException("Epochs per round must be at least 1, got " + epochsPerRound);
+        }
+        if (reductionFactor < 2) {
+            throw new IllegalArgumentException("Reduction factor must be at least 2, got " + reductionFactor);
+        }
+
+        // networks are created here, so the random initial weights do not depend on the thread scheduling
+        List<Run> remaining = new ArrayList<>();
+        for (int i = 0; i < configurations.size(); i++) {
+            remaining.add(createRun(configurations.get(i), seed + i));
+        }
+
+        List<Result> results = new ArrayList<>();
+        AtomicInteger threadNumber = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount, runnable -> {
+            Thread thread = new Thread(runnable, "sweep-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        // scores the configurations of a round while others still train
+        Evaluator evaluator = new Evaluator(costFunction, threadCount, 256);
+        try {
+            while (!remaining.isEmpty()) {
+                List<Future<?>> round = new ArrayList<>();
+                for (Run run : remaining) {
+                    round.add(executor.submit(() -> train(run, epochsPerRound, evaluator)));
+                }
+                for (Future<?> future : round) {
+                    future.get();
+                }
+
+                // keep the best configurations of the round, the others are done
+                remaining.sort(Comparator.comparing(this::toResult, RANKING));
+                int keep = remaining.size() == 1 ? 0 : Math.max(1, remaining.size() / reductionFactor);
+                for (Run run : remaining.subList(keep, remaining.size())) {
+                    results.add(toResult(run));
+                }
+                remaining = new ArrayList<>(remaining.subList(0, keep));
+            }
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Training a configuration failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
+            evaluator.close();
+        }
+
+        results.sort(RANKING);
+        return results;
+    }
+
+    /**
+     * Formats the results as a ranked table.
+     * @param results Results, best first.
+     * @return Table with one line per configuration.
+     */
+    public static String formatTable(List<Result> results) {
+        StringBuilder table = new StringBuilder(String.format(Locale.ROOT, "%4s %10s %9s %7s %6s %7s %7s %10s %12s %9s%n",
+                "Rank", "LR", "Momentum", "Hidden", "Batch", "Rounds", "Epochs", "Accuracy", "Cost", "Seconds"));
+        for (int i = 0; i < results.size(); i++) {
+            Result result = results.get(i);
+            Configuration configuration = result.getConfiguration();
+            table.append(String.format(Locale.ROOT, "%4d %10.4g %9.3f %7d %6d %7d %7d %10.4f %12.6g %9.1f%n",
+                    i + 1, configuration.getLearningRate(), configuration.getMomentum(), configuration.getHiddenNeurons(),
+                    configuration.getBatchSize(), result.getRounds(), result.getEpochs(),
+                    result.getValidation().getAccuracy(), result.getValidation().getAverageCost(), result.getNanos() / 1e9));
+        }
+        return table.toString();
+    }
+
+    private Run createRun(Configuration configuration, long runSeed) {
+        NeuronNetwork network = new NeuronNetwork();
+        network.addLayer(new NeuronLayer(null, trainingData.getInputSize(), false));
+        network.addLayer(new NeuronLayer(new SigmoidActivationFunction(), configuration.getHiddenNeurons(), true));
+        network.addLayer(new NeuronLayer(new SigmoidActivationFunction(), trainingData.getClassCount(), true));
+        network.finalizeNetwork();
+
+        BackPropagation trainer = new BackPropagation(network, costFunction, configuration.getLearningRate(), configuration.getMomentum());
+        trainer.useWorkspace(configuration.getBatchSize());
+        // binarized digits are fed sparsely, which skips the weight columns of unset pixels
+        trainer.useSparseInputs(trainingData.isBinary());
+        return new Run(configuration, network, trainer, runSeed);
+    }
+
+    /**
+     * Trains a configuration for one round and scores it.
+     */
+    private void train(Run run, int epochs, Evaluator evaluator) {
+        long start = System.nanoTime();
+        for (int epoch = 0; epoch < epochs; epoch++) {
+            run.trainer.trainBatch(trainingData.shuffle(run.random), run.configuration.getBatchSize());
+        }
+        run.validation = evaluator.evaluate(run.network, validationData);
+        run.rounds++;
+        run.epochs += epochs;
+        run.nanos += System.nanoTime() - start;
+    }
+
+    private Result toResult(Run run) {
+        return new Result(run.configuration, run.rounds, run.epochs, run.validation, run.nanos);
+    }
+}
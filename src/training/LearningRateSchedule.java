@@ -0,0 +1,16 @@
+package training;
+
+/**
+ * Learning rate of every epoch, derived from the base learning rate of the trainer. The trainer asks for the rate at
+ * the start of every epoch, so the rate is constant within an epoch.
+ */
+public interface LearningRateSchedule {
+
+    /**
+     * Returns the learning rate of an epoch.
+     * @param baseRate Learning rate the trainer was created with.
+     * @param epoch Number of finished epochs, 0 for the first epoch.
+     * @return Learning rate of the epoch.
+     */
+    double getLearningRate(double baseRate, int epoch);
+}
@@ -0,0 +1,71 @@
+package training;
+
+import org.jblas.DoubleMatrix;
+import org.jblas.FloatMatrix;
+
+/**
+ * Gradient descent with classical momentum. Every parameter keeps a velocity that accumulates the past steps,
+ * v = momentum * v - learningRate * g and w = w + v.
+ */
+public class MomentumOptimizer implements Optimizer {
+
+    protected final double momentum;
+    private final OptimizerState state = new OptimizerState(1);
+
+    /**
+     * Creates the optimizer.
+     * @param momentum Fraction of the velocity that is kept every step, usually 0.9.
+     */
+    public MomentumOptimizer(double momentum) {
+        if (momentum < 0.0 || momentum >= 1.0) {
+            throw new IllegalArgumentException("Momentum must be in [0, 1), got " + momentum);
+        }
+        this.momentum = momentum;
+    }
+
+    /**
+     * Returns the momentum of the optimizer.
+     * @return Fraction of the velocity that is kept every step.
+     */
+    public double getMomentum() {
+        return momentum;
+    }
+
+    @Override
+    public void update(int parameter, DoubleMatrix value, DoubleMatrix gradient, double learningRate) {
+        double[] v = state.get(parameter, value.length)[0];
+        double[] w = value.data;
+        double[] g = gradient.data;
+        for (int i = 0; i < value.length; i++) {
+            v[i] = momentum * v[i] - learningRate * g[i];
+            w[i] += step(v[i], g[i], learningRate);
+        }
+    }
+
+    @Override
+    public void update(int parameter, FloatMatrix value, FloatMatrix gradient, double learningRate) {
+        float[] v = state.getFloat(parameter, value.length)[0];
+        float[] w = value.data;
+        float[] g = gradient.data;
+        for (int i = 0; i < value.length; i++) {
+            v[i] = (float) (momentum * v[i] - learningRate * g[i]);
+            w[i] += (float) step(v[i], g[i], learningRate);
+        }
+    }
+
+    /**
+     * Returns the change of a single weight from its updated velocity.
+     * @param velocity Velocity after this step.
+     * @param gradient Gradient of this step.
+     * @param learningRate Learning rate of this step.
+     * @return Change of the weight.
+     */
+    protected double step(double velocity, double gradient, double learningRate) {
+        return velocity;
+    }
+
+    @Override
+    public void reset() {
+        state.clear();
+    }
+}
@@ -0,0 +1,22 @@
+package training;
+
+/**
+ * Gradient descent with Nesterov momentum, which applies the velocity as seen from the point the momentum is about to
+ * carry the weights to. In the reformulation that only needs the gradient at the current weights,
+ * v = momentum * v - learningRate * g and w = w + momentum * v - learningRate * g.
+ */
+public class NesterovOptimizer extends MomentumOptimizer {
+
+    /**
+     * Creates the optimizer.
+     * @param momentum Fraction of the velocity that is kept every step, usually 0.9.
+     */
+    public NesterovOptimizer(double momentum) {
+        super(momentum);
+    }
+
+    @Override
+    protected double step(double velocity, double gradient, double learningRate) {
+        return momentum * velocity - learningRate * gradient;
+    }
+}
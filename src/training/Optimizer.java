@@ -0,0 +1,64 @@
+package training;
+
+import org.jblas.DoubleMatrix;
+import org.jblas.FloatMatrix;
+
+import java.util.Arrays;
+
+/**
+ * Update rule that turns the gradients of a training step into changes of the weights and biases. Every weight or bias
+ * matrix of the network is a parameter identified by a number, under which the optimizer keeps its per-parameter
+ * state such as velocities. The state is allocated the first time a parameter is updated and reused in place
+ * afterwards, so optimizers create no objects in steady state.
+ */
+public interface Optimizer {
+
+    /**
+     * Called once per training step before its parameters are updated.
+     */
+    default void startStep() {}
+
+    /**
+     * Updates a parameter in place.
+     * @param parameter Number identifying the parameter, stable across training steps.
+     * @param value Weights or biases to update.
+     * @param gradient Gradient of the cost averaged over the batch, of the same size as the value.
+     * @param learningRate Learning rate of the step.
+     */
+    void update(int parameter, DoubleMatrix value, DoubleMatrix gradient, double learningRate);
+
+    /**
+     * Updates a parameter in place whose gradient was only computed for the given columns and is 0 in all others, as
+     * the first layer gets it from sparse inputs. The default implementation clears the other columns of the gradient
+     * and updates the whole parameter, since the state of most optimizers changes even where the gradient is 0.
+     * @param parameter Number identifying the parameter, stable across training steps.
+     * @param value Weights to update.
+     * @param gradient Gradient of the cost averaged over the batch, valid in the given columns only.
+     * @param columns Columns of the gradient that were computed, in increasing order.
+     * @param columnCount Number of valid entries in columns.
+     * @param learningRate Learning rate of the step.
+     */
+    default void updateColumns(int parameter, DoubleMatrix value, DoubleMatrix gradient, int[] columns, int columnCount, double learningRate) {
+        int next = 0;
+        for (int k = 0; k <= columnCount; k++) {
+            int column = k < columnCount ? columns[k] : gradient.columns;
+            Arrays.fill(gradient.data, next * gradient.rows, column * gradient.rows, 0.0);
+            next = column + 1;
+        }
+        update(parameter, value, gradient, learningRate);
+    }
+
+    /**
+     * Single precision version of update. The state is kept separately from the double precision state.
+     * @param parameter Number identifying the parameter, stable across training steps.
+     * @param value Weights or biases to update.
+     * @param gradient Gradient of the cost averaged over the batch, of the same size as the value.
+     * @param learningRate Learning rate of the step.
+     */
+    void update(int parameter, FloatMatrix value, FloatMatrix gradient, double learningRate);
+
+    /**
+     * Drops the state of all parameters, the next step starts as if it were the first.
+     */
+    void reset();
+}
@@ -0,0 +1,60 @@
+package training;
+
+import java.util.Arrays;
+
+/**
+ * Per-parameter state buffers of an optimizer. Every parameter owns a fixed number of buffers of its size, which start
+ * out as zeros. Buffers are only reallocated when the size of a parameter changes.
+ */
+final class OptimizerState {
+
+    private final int buffers; // number of buffers per parameter
+    private double[][][] doubleState = new double[0][][];
+    private float[][][] floatState = new float[0][][];
+
+    /**
+     * Creates the state holder.
+     * @param buffers Number of buffers every parameter needs.
+     */
+    OptimizerState(int buffers) {
+        this.buffers = buffers;
+    }
+
+    /**
+     * Returns the double precision buffers of a parameter, allocating zeroed buffers on first use.
+     */
+    double[][] get(int parameter, int length) {
+        if (parameter >= doubleState.length) {
+            doubleState = Arrays.copyOf(doubleState, parameter + 1);
+        }
+        double[][] state = doubleState[parameter];
+        if (state == null || state[0].length != length) {
+            state = new double[buffers][length];
+            doubleState[parameter] = state;
+        }
+        return state;
+    }
+
+    /**
+     * Returns the single precision buffers of a parameter, allocating zeroed buffers on first use.
+     */
+    float[][] getFloat(int parameter, int length) {
+        if (parameter >= floatState.length) {
+            floatState = Arrays.copyOf(floatState, parameter + 1);
+        }
+        float[][] state = floatState[parameter];
+        if (state == null || state[0].length != length) {
+            state = new float[buffers][length];
+            floatState[parameter] = state;
+        }
+        return state;
+    }
+
+    /**
+     * Drops all buffers.
+     */
+    void clear() {
+        doubleState = new double[0][][];
+        floatState = new float[0][][];
+    }
+}
@@ -0,0 +1,278 @@
+package training;
+
+import activation.ActivationFunction;
+import cost.CostFunction;
+import mnist.Dataset;
+import mnist.MnistSet;
+import neural.NeuronLayer;
+import neural.NeuronNetwork;
+import neural.Precision;
+import org.jblas.DoubleMatrix;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Training class which performs data-parallel mini-batch Back Propagation. Every batch is split into shards that are
+ * processed by the workers of a fork-join pool. The workers only read the shared weights and keep their activations
+ * to themselves, and their gradients are summed pairwise on the way back up the fork tree before a single update,
+ * which an Optimizer applies to the averaged gradients like in BackPropagation.
+ */
+public class ParallelBackPropagation {
+
+    /**
+     * Class which holds the gradients of every layer summed over a shard of the batch.
+     */
+    static class Gradients {
+        // gradients per layer, the input layer has none
+        final DoubleMatrix[] weightGradients;
+        final DoubleMatrix[] biasGradients;
+        // cost summed over the shard
+        double cost;
+
+        Gradients(int layerCount) {
+            this.weightGradients = new DoubleMatrix[layerCount];
+            this.biasGradients = new DoubleMatrix[layerCount];
+        }
+
+        /**
+         * Adds the gradients of another shard to this one.
+         * @param other Gradients of the other shard.
+         * @return This object.
+         */
+        Gradients add(Gradients other) {
+            for (int l = 1; l < weightGradients.length; l++) {
+                weightGradients[l].addi(other.weightGradients[l]);
+                biasGradients[l].addi(other.biasGradients[l]);
+            }
+            cost += other.cost;
+            return this;
+        }
+    }
+
+    /**
+     * Task computing the gradients for the columns [from, to) of a batch.
+     */
+    private class ShardTask extends RecursiveTask<Gradients> {
+        private static final long serialVersionUID = 1L;
+
+        private final DoubleMatrix input;
+        private final DoubleMatrix expected;
+        private final int from;
+        private final int to;
+        private final int shardSize;
+
+        ShardTask(DoubleMatrix input, DoubleMatrix expected, int from, int to, int shardSize) {
+            this.input = input;
+            this.expected = expected;
+            this.from = from;
+            this.to = to;
+            this.shardSize = shardSize;
+        }
+
+        @Override
+        protected Gradients compute() {
+            if (to - from <= shardSize) {
+                return gradients(columns(input, from, to), columns(expected, from, to));
+            }
+            int mid = (from + to) >>> 1;
+            ShardTask left = new ShardTask(input, expected, from, mid, shardSize);
+            ShardTask right = new ShardTask(input, expected, mid, to, shardSize);
+            left.fork();
+            Gradients result = right.compute();
+            return result.add(left.join());
+        }
+    }
+
+    private double learningRate;
+    private Optimizer optimizer;
+    private NeuronNetwork network;
+    private CostFunction costFunction;
+    private ForkJoinPool pool;
+
+    /**
+     * Creates a trainer running on a pool with one worker per available processor.
+     * @param network Network that will be trained.
+     * @param costFunction Cost function used for the output error.
+     * @param learningRate Learning rate.
+     */
+    public ParallelBackPropagation(NeuronNetwork network, CostFunction costFunction, double learningRate) {
+        this(network, costFunction, learningRate, new ForkJoinPool(Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Creates a trainer running on the given pool.
+     * @param network Network that will be trained.
+     * @param costFunction Cost function used for the output error.
+     * @param learningRate Learning rate.
+     * @param pool Pool whose workers process the shards of a batch.
+     */
+    public ParallelBackPropagation(NeuronNetwork network, CostFunction costFunction, double learningRate, ForkJoinPool pool) {
+        this(network, costFunction, learningRate, new SgdOptimizer(), pool);
+    }
+
+    /**
+     * Creates a trainer with the given optimizer, running on a pool with one worker per available processor.
+     * @param network Network that will be trained.
+     * @param costFunction Cost function used for the output error.
+     * @param learningRate Learning rate.
+     * @param optimizer Update rule applied to the weights and biases, for example a MomentumOptimizer.
+     */
+    public ParallelBackPropagation(NeuronNetwork network, CostFunction costFunction, double learningRate, Optimizer optimizer) {
+        this(network, costFunction, learningRate, optimizer, new ForkJoinPool(Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Creates a trainer with the given optimizer, running on the given pool.
+     * @param network Network that will be trained.
+     * @param costFunction Cost function used for the output error.
+     * @param learningRate Learning rate.
+     * @param optimizer Update rule applied to the weights and biases, for example a MomentumOptimizer.
+     * @param pool Pool whose workers process the shards of a batch.
+     */
+    public ParallelBackPropagation(NeuronNetwork network, CostFunction costFunction, double learningRate, Optimizer optimizer, ForkJoinPool pool) {
+        // set the class variables
+        this.network = network;
+        this.costFunction = costFunction;
+        this.learningRate = learningRate;
+        this.optimizer = optimizer;
+        this.pool = pool;
+        // notify the function that is going to be used
+        System.out.println("Running ParallelBackPropagation on " + pool.getParallelism() + " workers with the following cost function: " + costFunction.getName());
+    }
+
+    /**
+     * Performs mini-batch training with every batch being split across the workers of the pool.
+     * @param trainingSets Training sets that will be used.
+     * @param batchSize Number of training sets in a single batch.
+     * @return Running average of the cost after every batch.
+     */
+    public double[] train(List<MnistSet> trainingSets, int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1, got " + batchSize);
+        }
+
+        int batches = (trainingSets.size() + batchSize - 1) / batchSize;
+        double sum = 0;
+        double[] average = new double[batches];
+
+        for (int batch = 0; batch < batches; batch++) {
+            int from = batch * batchSize;
+            int to = Math.min(from + batchSize, trainingSets.size());
+            List<MnistSet> batchSets = trainingSets.subList(from, to);
+
+            sum += iteration(MnistSet.stackInputs(batchSets), MnistSet.stackOutputs(batchSets));
+            average[batch] = sum / (batch + 1);
+        }
+
+        return average;
+    }
+
+    /**
+     * Performs mini-batch training on a compact dataset, expanding every batch into matrices when it is used.
+     * @param trainingData Training data that will be used.
+     * @param batchSize Number of samples in a single batch.
+     * @return Running average of the cost after every batch.
+     */
+    public double[] train(Dataset trainingData, int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1, got " + batchSize);
+        }
+
+        int batches = (trainingData.size() + batchSize - 1) / batchSize;
+        double sum = 0;
+        double[] average = new double[batches];
+
+        for (int batch = 0; batch < batches; batch++) {
+            int from = batch * batchSize;
+            int to = Math.min(from + batchSize, trainingData.size());
+
+            sum += iteration(trainingData.batchInputs(from, to), trainingData.batchOutputs(from, to));
+            average[batch] = sum / (batch + 1);
+        }
+
+        return average;
+    }
+
+    /**
+     * Performs a single training step on a batch, sharding its columns across the pool.
+     * @param input Input matrix with one training set per column.
+     * @param expected Expected output matrix with one training set per column.
+     * @return Average cost of the batch.
+     */
+    public double iteration(DoubleMatrix input, DoubleMatrix expected) {
+        if (network.getPrecision() != Precision.DOUBLE) {
+            // the shards read and update the double weights directly
+            throw new IllegalStateException("Parallel training needs a network in double precision");
+        }
+        int batchSize = input.columns;
+        // split the batch evenly between the workers
+        int shardSize = Math.max(1, (batchSize + pool.getParallelism() - 1) / pool.getParallelism());
+
+        Gradients gradients = pool.invoke(new ShardTask(input, expected, 0, batchSize, shardSize));
+
+        // the gradients are summed over the batch, the optimizer expects their average
+        double scale = 1.0 / batchSize;
+        List<NeuronLayer> layers = network.getLayers();
+        this.optimizer.startStep();
+        for (int l = 1; l < layers.size(); l++) {
+            NeuronLayer layer = layers.get(l);
+            // same parameter numbers as BackPropagation
+            this.optimizer.update(2 * l, layer.getWeights(), gradients.weightGradients[l].muli(scale), this.learningRate);
+            this.optimizer.update(2 * l + 1, layer.getBias(), gradients.biasGradients[l].muli(scale), this.learningRate);
+        }
+
+        return gradients.cost / batchSize;
+    }
+
+    /**
+     * Computes the summed gradients of a shard. The activations are kept in local matrices, so the layers of the
+     * network are never written to and any number of shards can run at the same time.
+     * @param input Input matrix of the shard.
+     * @param expected Expected output matrix of the shard.
+     * @return Gradients of the shard.
+     */
+    private Gradients gradients(DoubleMatrix input, DoubleMatrix expected) {
+        List<NeuronLayer> layers = network.getLayers();
+        int layerCount = layers.size();
+        DoubleMatrix[] weightedOutputs = new DoubleMatrix[layerCount];
+        DoubleMatrix[] outputs = new DoubleMatrix[layerCount];
+
+        // feedforward, z = w * a + b and a = f(z)
+        outputs[0] = input;
+        for (int l = 1; l < layerCount; l++) {
+            NeuronLayer layer = layers.get(l);
+            weightedOutputs[l] = layer.getWeights().mmul(outputs[l - 1]).addiColumnVector(layer.getBias());
+            outputs[l] = layer.getActivationFunction().fn(weightedOutputs[l]);
+        }
+
+        // backpropagate the output error through every layer
+        Gradients gradients = new Gradients(layerCount);
+        int last = layerCount - 1;
+        // output error and cost in a single pass over the output
+        DoubleMatrix delta = new DoubleMatrix(outputs[last].rows, outputs[last].columns);
+        gradients.cost = costFunction.deltaAndCostInto(weightedOutputs[last], outputs[last], expected, delta);
+        for (int l = last; l > 0; l--) {
+            gradients.weightGradients[l] = delta.mmul(outputs[l - 1].transpose());
+            gradients.biasGradients[l] = delta.rowSums();
+            if (l > 1) {
+                ActivationFunction activation = layers.get(l - 1).getActivationFunction();
+                // the weighted output is not needed anymore and receives the derivative
+                DoubleMatrix derivative = activation.derivativeInto(weightedOutputs[l - 1], outputs[l - 1], weightedOutputs[l - 1]);
+                delta = layers.get(l).getWeights().transpose().mmul(delta).muli(derivative);
+            }
+        }
+
+        return gradients;
+    }
+
+    /**
+     * Copies the columns [from, to) of a matrix.
+     */
+    private static DoubleMatrix columns(DoubleMatrix matrix, int from, int to) {
+        DoubleMatrix result = new DoubleMatrix(matrix.rows, to - from);
+        System.arraycopy(matrix.data, from * matrix.rows, result.data, 0, result.length);
+        return result;
+    }
+}
@@ -0,0 +1,62 @@
+package training;
+
+import org.jblas.DoubleMatrix;
+import org.jblas.FloatMatrix;
+
+/**
+ * RMSProp, which divides the step of every weight by a running root mean square of its gradients,
+ * s = decay * s + (1 - decay) * g^2 and w = w - learningRate * g / (sqrt(s) + epsilon).
+ */
+public class RmsPropOptimizer implements Optimizer {
+
+    private final double decay;
+    private final double epsilon;
+    private final OptimizerState state = new OptimizerState(1);
+
+    /**
+     * Creates the optimizer with a decay of 0.9 and an epsilon of 1e-8.
+     */
+    public RmsPropOptimizer() {
+        this(0.9, 1e-8);
+    }
+
+    /**
+     * Creates the optimizer.
+     * @param decay Fraction of the mean square that is kept every step.
+     * @param epsilon Small value that keeps the division defined.
+     */
+    public RmsPropOptimizer(double decay, double epsilon) {
+        if (decay < 0.0 || decay >= 1.0) {
+            throw new IllegalArgumentException("Decay must be in [0, 1), got " + decay);
+        }
+        this.decay = decay;
+        this.epsilon = epsilon;
+    }
+
+    @Override
+    public void update(int parameter, DoubleMatrix value, DoubleMatrix gradient, double learningRate) {
+        double[] s = state.get(parameter, value.length)[0];
+        double[] w = value.data;
+        double[] g = gradient.data;
+        for (int i = 0; i < value.length; i++) {
+            s[i] = decay * s[i] + (1.0 - decay) * g[i] * g[i];
+            w[i] -= learningRate * g[i] / (Math.sqrt(s[i]) + epsilon);
+        }
+    }
+
+    @Override
+    public void update(int parameter, FloatMatrix value, FloatMatrix gradient, double learningRate) {
+        float[] s = state.getFloat(parameter, value.length)[0];
+        float[] w = value.data;
+        float[] g = gradient.data;
+        for (int i = 0; i < value.length; i++) {
+            s[i] = (float) (decay * s[i] + (1.0 - decay) * g[i] * g[i]);
+            w[i] -= (float) (learningRate * g[i] / (Math.sqrt(s[i]) + epsilon));
+        }
+    }
+
+    @Override
+    public void reset() {
+        state.clear();
+    }
+}
@@ -0,0 +1,47 @@
+package training;
+
+import org.jblas.DoubleMatrix;
+import org.jblas.FloatMatrix;
+
+/**
+ * Plain stochastic gradient descent, w = w - learningRate * g.
+ */
+public class SgdOptimizer implements Optimizer {
+
+    @Override
+    public void update(int parameter, DoubleMatrix value, DoubleMatrix gradient, double learningRate) {
+        double[] w = value.data;
+        double[] g = gradient.data;
+        for (int i = 0; i < value.length; i++) {
+            w[i] -= learningRate * g[i];
+        }
+    }
+
+    /**
+     * Updates only the given columns, a zero gradient leaves the other weights unchanged.
+     */
+    @Override
+    public void updateColumns(int parameter, DoubleMatrix value, DoubleMatrix gradient, int[] columns, int columnCount, double learningRate) {
+        double[] w = value.data;
+        double[] g = gradient.data;
+        for (int k = 0; k < columnCount; k++) {
+            int offset = columns[k] * value.rows;
+            for (int i = offset; i < offset + value.rows; i++) {
+                w[i] -= learningRate * g[i];
+            }
+        }
+    }
+
+    @Override
+    public void update(int parameter, FloatMatrix value, FloatMatrix gradient, double learningRate) {
+        float rate = (float) learningRate;
+        float[] w = value.data;
+        float[] g = gradient.data;
+        for (int i = 0; i < value.length; i++) {
+            w[i] -= rate * g[i];
+        }
+    }
+
+    @Override
+    public void reset() {}
+}
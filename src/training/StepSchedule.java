@@ -0,0 +1,28 @@
+package training;
+
+/**
+ * Multiplies the learning rate by a factor every given number of epochs, rate = baseRate * gamma^floor(epoch / stepSize).
+ */
+public class StepSchedule implements LearningRateSchedule {
+
+    private final int stepSize;
+    private final double gamma;
+
+    /**
+     * Creates the schedule.
+     * @param stepSize Number of epochs between two decays.
+     * @param gamma Factor the rate is multiplied with at every decay, usually 0.1 to 0.5.
+     */
+    public StepSchedule(int stepSize, double gamma) {
+        if (stepSize < 1) {
+            throw new IllegalArgumentException("Step size must be at least 1, got " + stepSize);
+        }
+        this.stepSize = stepSize;
+        this.gamma = gamma;
+    }
+
+    @Override
+    public double getLearningRate(double baseRate, int epoch) {
+        return baseRate * Math.pow(gamma, epoch / stepSize);
+    }
+}
@@ -0,0 +1,20 @@
+package training;
+
+/**
+ * Receives the metrics of a training run while it is in progress. Listeners are called on the training thread, so
+ * they should return quickly.
+ */
+public interface TrainingListener {
+
+    /**
+     * Called after every training step.
+     * @param metrics Metrics of the run, getLast* describes the finished step.
+     */
+    default void onStep(TrainingMetrics metrics) {}
+
+    /**
+     * Called after every epoch.
+     * @param epoch Summary of the finished epoch.
+     */
+    default void onEpoch(EpochMetrics epoch) {}
+}
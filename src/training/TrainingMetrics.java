@@ -0,0 +1,395 @@
+package training;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Metrics of a training run, recorded by BackPropagation once it was given them with setMetrics. Every training step
+ * is split into phases that are timed separately, and the trainer counts the samples, the cost, the correctly
+ * classified samples and the bytes the training thread allocated. The steps are summed up per epoch and over the
+ * whole run.
+ *
+ * The metrics are reported to listeners after every step and epoch, can be read over JMX after register and can be
+ * written as CSV or JSON. Steps are recorded by a single training thread, the getters may be called from any thread.
+ */
+public class TrainingMetrics implements TrainingMetricsMXBean {
+
+    /**
+     * Phases of a training step.
+     */
+    public enum Phase {
+        /** Feedforward of the batch through the network. */
+        FEED_FORWARD("feedForward"),
+        /** Output error and backpropagation of the error through the layers. */
+        DELTA("delta"),
+        /** Weight and bias gradients. */
+        GRADIENT("gradient"),
+        /** Optimizer updates of the weights and biases. */
+        UPDATE("update");
+
+        private final String key;
+
+        Phase(String key) {
+            this.key = key;
+        }
+
+        /**
+         * Returns the name of the phase in CSV and JSON output.
+         * @return Camel case name.
+         */
+        public String getKey() {
+            return key;
+        }
+    }
+
+    private static final int PHASES = Phase.values().length;
+    // allocation counter of the JVM, null if it does not measure allocations per thread
+    private static final com.sun.management.ThreadMXBean ALLOCATIONS = allocationCounter();
+
+    private final List<TrainingListener> listeners = new CopyOnWriteArrayList<>();
+
+    // current step, only touched by the training thread
+    private long stepStart;
+    private long lapStart;
+    private long stepAllocatedStart;
+    private final long[] stepPhaseNanos = new long[PHASES];
+
+    // last finished step
+    private final long[] lastPhaseNanos = new long[PHASES];
+    private long lastStepNanos;
+    private long lastAllocatedBytes;
+    private double lastLoss = Double.NaN;
+
+    // whole run
+    private long steps;
+    private long samples;
+    private long stepNanos;
+    private long allocatedBytes;
+    private final long[] phaseNanos = new long[PHASES];
+    private final List<EpochMetrics> epochs = new ArrayList<>();
+
+    // current epoch
+    private long epochStart = -1;
+    private long epochSteps;
+    private long epochSamples;
+    private double epochCost;
+    private long epochCostSamples; // samples of the steps that computed their cost
+    private long epochCorrect;
+    private long epochAllocatedBytes;
+    private final long[] epochPhaseNanos = new long[PHASES];
+
+    /**
+     * Adds a listener that is called after every step and epoch.
+     * @param listener Listener to add.
+     */
+    public void addListener(TrainingListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Removes a listener.
+     * @param listener Listener to remove.
+     */
+    public void removeListener(TrainingListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Starts timing a training step, the first phase starts now.
+     */
+    void startStep() {
+        stepStart = System.nanoTime();
+        lapStart = stepStart;
+        stepAllocatedStart = allocatedBytes();
+        if (epochStart < 0) {
+            epochStart = stepStart;
+        }
+        for (int i = 0; i < PHASES; i++) {
+            stepPhaseNanos[i] = 0;
+        }
+    }
+
+    /**
+     * Ends a phase of the current step, the next phase starts now. A phase may end several times per step, its times
+     * are added up.
+     * @param phase Phase that ended.
+     */
+    void lap(Phase phase) {
+        long now = System.nanoTime();
+        stepPhaseNanos[phase.ordinal()] += now - lapStart;
+        lapStart = now;
+    }
+
+    /**
+     * Ends the current step and notifies the listeners.
+     * @param stepSamples Number of samples of the step.
+     * @param correct Number of samples the network classified correctly.
+     * @param loss Average cost of the samples, NaN if the step did not compute it.
+     */
+    void endStep(int stepSamples, int correct, double loss) {
+        long nanos = System.nanoTime() - stepStart;
+        long allocated = ALLOCATIONS != null ? allocatedBytes() - stepAllocatedStart : -1;
+        synchronized (this) {
+            System.arraycopy(stepPhaseNanos, 0, lastPhaseNanos, 0, PHASES);
+            lastStepNanos = nanos;
+            lastAllocatedBytes = allocated;
+            if (!Double.isNaN(loss)) {
+                lastLoss = loss;
+                epochCost += loss * stepSamples;
+                epochCostSamples += stepSamples;
+            }
+
+            steps++;
+            samples += stepSamples;
+            stepNanos += nanos;
+            allocatedBytes += allocated;
+            epochSteps++;
+            epochSamples += stepSamples;
+            epochCorrect += correct;
+            epochAllocatedBytes += allocated;
+            for (int i = 0; i < PHASES; i++) {
+                phaseNanos[i] += stepPhaseNanos[i];
+                epochPhaseNanos[i] += stepPhaseNanos[i];
+            }
+        }
+        for (TrainingListener listener : listeners) {
+            listener.onStep(this);
+        }
+    }
+
+    /**
+     * Ends the current epoch and notifies the listeners. Does nothing if no step was recorded since the last epoch.
+     */
+    void endEpoch() {
+        EpochMetrics epoch;
+        synchronized (this) {
+            if (epochSteps == 0) {
+                return;
+            }
+            epoch = new EpochMetrics(epochs.size() + 1, epochSteps, epochSamples,
+                    epochCostSamples > 0 ? epochCost / epochCostSamples : Double.NaN,
+                    (double) epochCorrect / epochSamples, System.nanoTime() - epochStart,
+                    ALLOCATIONS != null ? epochAllocatedBytes : -1, epochPhaseNanos);
+            epochs.add(epoch);
+
+            epochStart = -1;
+            epochSteps = 0;
+            epochSamples = 0;
+            epochCost = 0;
+            epochCostSamples = 0;
+            epochCorrect = 0;
+            epochAllocatedBytes = 0;
+            for (int i = 0; i < PHASES; i++) {
+                epochPhaseNanos[i] = 0;
+            }
+        }
+        for (TrainingListener listener : listeners) {
+            listener.onEpoch(epoch);
+        }
+    }
+
+    /**
+     * Returns the summaries of all finished epochs.
+     * @return Epochs in the order they finished.
+     */
+    public synchronized List<EpochMetrics> getEpochList() {
+        return Collections.unmodifiableList(new ArrayList<>(epochs));
+    }
+
+    /**
+     * Returns the time the last step spent in a phase.
+     * @param phase Phase of a training step.
+     * @return Duration in nanoseconds.
+     */
+    public synchronized long getLastPhaseNanos(Phase phase) {
+        return lastPhaseNanos[phase.ordinal()];
+    }
+
+    /**
+     * Returns the duration of the last step.
+     * @return Duration in nanoseconds.
+     */
+    public synchronized long getLastStepNanos() {
+        return lastStepNanos;
+    }
+
+    /**
+     * Returns the bytes the training thread allocated during the last step.
+     * @return Allocated bytes, -1 if the JVM does not measure allocations.
+     */
+    public synchronized long getLastAllocatedBytes() {
+        return lastAllocatedBytes;
+    }
+
+    /**
+     * Returns the time all steps spent in a phase.
+     * @param phase Phase of a training step.
+     * @return Duration in nanoseconds.
+     */
+    public synchronized long getPhaseNanos(Phase phase) {
+        return phaseNanos[phase.ordinal()];
+    }
+
+    @Override
+    public synchronized long getSteps() {
+        return steps;
+    }
+
+    @Override
+    public synchronized long getSamples() {
+        return samples;
+    }
+
+    @Override
+    public synchronized int getEpochs() {
+        return epochs.size();
+    }
+
+    /**
+     * Returns the training throughput over the time spent in training steps, which excludes loading the batches.
+     * @return Samples per second.
+     */
+    @Override
+    public synchronized double getSamplesPerSecond() {
+        return stepNanos > 0 ? samples * 1e9 / stepNanos : 0.0;
+    }
+
+    @Override
+    public synchronized double getAllocatedBytesPerStep() {
+        return ALLOCATIONS == null ? -1 : steps > 0 ? (double) allocatedBytes / steps : 0.0;
+    }
+
+    @Override
+    public synchronized double getLastLoss() {
+        return lastLoss;
+    }
+
+    @Override
+    public synchronized double getLastEpochLoss() {
+        return epochs.isEmpty() ? Double.NaN : epochs.get(epochs.size() - 1).getLoss();
+    }
+
+    @Override
+    public synchronized double getLastEpochAccuracy() {
+        return epochs.isEmpty() ? Double.NaN : epochs.get(epochs.size() - 1).getAccuracy();
+    }
+
+    @Override
+    public long getFeedForwardNanos() {
+        return getPhaseNanos(Phase.FEED_FORWARD);
+    }
+
+    @Override
+    public long getDeltaNanos() {
+        return getPhaseNanos(Phase.DELTA);
+    }
+
+    @Override
+    public long getGradientNanos() {
+        return getPhaseNanos(Phase.GRADIENT);
+    }
+
+    @Override
+    public long getUpdateNanos() {
+        return getPhaseNanos(Phase.UPDATE);
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server.
+     * @param name Name of the training run, used as the name key of the object name.
+     * @return Object name the metrics were registered under.
+     */
+    public ObjectName register(String name) {
+        try {
+            ObjectName objectName = new ObjectName("training:type=TrainingMetrics,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            return objectName;
+        } catch (JMException e) {
+            throw new IllegalStateException("Failed to register the training metrics as " + name, e);
+        }
+    }
+
+    /**
+     * Removes the metrics from the platform MBean server.
+     * @param objectName Object name returned by register.
+     */
+    public void unregister(ObjectName objectName) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+        } catch (JMException e) {
+            throw new IllegalStateException("Failed to unregister " + objectName, e);
+        }
+    }
+
+    /**
+     * Writes one CSV row per finished epoch.
+     * @param path File the rows are written to, replaced if it exists.
+     * @throws IOException If the file cannot be written.
+     */
+    public void writeCsv(Path path) throws IOException {
+        List<String> lines = new ArrayList<>();
+        lines.add(EpochMetrics.csvHeader());
+        for (EpochMetrics epoch : getEpochList()) {
+            lines.add(epoch.toCsv());
+        }
+        Files.write(path, lines, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes the totals of the run and all finished epochs as JSON.
+     * @param path File the JSON is written to, replaced if it exists.
+     * @throws IOException If the file cannot be written.
+     */
+    public void writeJson(Path path) throws IOException {
+        Files.write(path, toJson().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Formats the totals of the run and all finished epochs as a JSON object.
+     * @return JSON object.
+     */
+    public synchronized String toJson() {
+        StringBuilder json = new StringBuilder(String.format(Locale.ROOT,
+                "{\"steps\":%d,\"samples\":%d,\"samplesPerSecond\":%s,\"allocatedBytesPerStep\":%s",
+                steps, samples, EpochMetrics.jsonNumber("%.1f", getSamplesPerSecond()),
+                EpochMetrics.jsonNumber("%.1f", getAllocatedBytesPerStep())));
+        for (Phase phase : Phase.values()) {
+            json.append(",\"").append(phase.getKey()).append("Nanos\":").append(phaseNanos[phase.ordinal()]);
+        }
+        json.append(",\"epochs\":[");
+        for (int i = 0; i < epochs.size(); i++) {
+            json.append(i > 0 ? "," : "").append(epochs.get(i).toJson());
+        }
+        return json.append("]}").toString();
+    }
+
+    private static long allocatedBytes() {
+        return ALLOCATIONS != null ? ALLOCATIONS.getThreadAllocatedBytes(Thread.currentThread().getId()) : 0;
+    }
+
+    private static com.sun.management.ThreadMXBean allocationCounter() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean counter = (com.sun.management.ThreadMXBean) threads;
+            if (counter.isThreadAllocatedMemorySupported() && counter.isThreadAllocatedMemoryEnabled()) {
+                return counter;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,31 @@
+package training;
+
+/**
+ * JMX view of the metrics of a training run, see TrainingMetrics.register.
+ */
+public interface TrainingMetricsMXBean {
+
+    long getSteps();
+
+    long getSamples();
+
+    int getEpochs();
+
+    double getSamplesPerSecond();
+
+    double getAllocatedBytesPerStep();
+
+    double getLastLoss();
+
+    double getLastEpochLoss();
+
+    double getLastEpochAccuracy();
+
+    long getFeedForwardNanos();
+
+    long getDeltaNanos();
+
+    long getGradientNanos();
+
+    long getUpdateNanos();
+}
@@ -0,0 +1,39 @@
+package training;
+
+/**
+ * Cosine annealing with warm restarts: the rate is annealed from the base rate to a minimum over a cycle and jumps
+ * back to the base rate when the cycle ends. Every cycle is a given factor longer than the one before it.
+ */
+public class WarmRestartSchedule implements LearningRateSchedule {
+
+    private final int period;
+    private final int multiplier;
+    private final double minRate;
+
+    /**
+     * Creates the schedule.
+     * @param period Number of epochs of the first cycle.
+     * @param multiplier Factor every cycle is longer than the one before it, 1 for cycles of equal length.
+     * @param minRate Learning rate at the end of every cycle.
+     */
+    public WarmRestartSchedule(int period, int multiplier, double minRate) {
+        if (period < 1 || multiplier < 1) {
+            throw new IllegalArgumentException("Period and multiplier must be at least 1, got " + period + " and " + multiplier);
+        }
+        this.period = period;
+        this.multiplier = multiplier;
+        this.minRate = minRate;
+    }
+
+    @Override
+    public double getLearningRate(double baseRate, int epoch) {
+        // find the cycle the epoch falls into
+        int position = epoch;
+        int length = period;
+        while (position >= length) {
+            position -= length;
+            length *= multiplier;
+        }
+        return CosineSchedule.anneal(baseRate, minRate, position, length);
+    }
+}